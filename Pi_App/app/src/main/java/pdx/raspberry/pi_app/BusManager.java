@@ -0,0 +1,261 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the manager of the PIC boards
+ *  sharing the Pi's I2C bus. Each board is a RaspPi at its own
+ *  address, with its own retries and metrics. All their transactions
+ *  go through one BusScheduler on the sampling thread: actuator writes
+ *  first, then the sensor polls that are due, each board within its
+ *  budget of transactions per second.
+ *
+ *  Board MAIN is the one the control stage reads and drives. It is
+ *  polled every cycle; the other boards at their own rate.
+ *
+ */
+
+package pdx.raspberry.pi_app;
+
+import pdx.raspberry.core.BusScheduler;
+import pdx.raspberry.core.PicRegisters;
+import pdx.raspberry.core.Sample;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class BusManager {
+
+    public static final int MAIN = 0;                   // Board read by the control stage.
+    private static final int QUEUE_CAPACITY = 64;       // Jobs waiting per priority class.
+    private static final int MAX_JOBS_PER_CYCLE = 32;   // Bounds the time one cycle spends on the bus.
+
+    private final BusScheduler mScheduler = new BusScheduler(QUEUE_CAPACITY);
+    private volatile Board[] mBoards = new Board[0];    // Copied on change, read without locking.
+
+    /**
+     *  Description:
+     *      One PIC board and its preallocated jobs.
+     */
+    private static class Board {
+        final String name;
+        final RaspPi pic;
+        final int device;
+        final long pollPeriodNanos;     // 0 to poll every cycle.
+        long nextPollNanos = 0;
+        final Sample read = new Sample();   // Bus thread only.
+        final Sample latest = new Sample(); // Guarded by the board.
+        boolean fresh = false;          // Polled since the last takeSensors.
+        PollJob poll;
+        final WriteJob[] writes = new WriteJob[PicRegisters.ACTUATOR_COUNT];
+
+        Board(String name, RaspPi pic, int device, int pollHz) {
+            this.name = name;
+            this.pic = pic;
+            this.device = device;
+            this.pollPeriodNanos = pollHz > 0 ? 1000000000L / pollHz : 0;
+        }
+    }
+
+    /**
+     *  Description:
+     *      Reads the sensor block of a board.
+     */
+    private static class PollJob extends BusScheduler.Job {
+        private final Board mBoard;
+
+        PollJob(Board board) {
+            super(board.device, BusScheduler.POLL);
+            mBoard = board;
+        }
+
+        @Override
+        protected void run() throws IOException {
+            mBoard.pic.readSensors(mBoard.read);
+            synchronized (mBoard) {
+                mBoard.latest.ada5 = mBoard.read.ada5;
+                mBoard.latest.adc3 = mBoard.read.adc3;
+                mBoard.latest.adc4 = mBoard.read.adc4;
+                mBoard.latest.adc5 = mBoard.read.adc5;
+                mBoard.latest.fresh |= mBoard.read.fresh;     // Kept until taken, polls may outpace takes.
+                mBoard.latest.time = System.currentTimeMillis();
+                mBoard.fresh = true;
+            }
+        }
+    }
+
+    /**
+     *  Description:
+     *      Writes the newest value of one actuator register. Updates
+     *      made while it waits are merged into one write.
+     */
+    private static class WriteJob extends BusScheduler.Job {
+        private final Board mBoard;
+        private final int mReg;
+        volatile int value;
+
+        WriteJob(Board board, int reg) {
+            super(board.device, BusScheduler.ACTUATOR);
+            mBoard = board;
+            mReg = reg;
+        }
+
+        @Override
+        protected void run() throws IOException {
+            mBoard.pic.writeActuator(mReg, value);     // Skipped if it went back to what is on the PIC.
+        }
+
+        @Override
+        protected void failed(IOException e) {
+            PiEvents.RECORDER.record(PiEvents.WRITE_FAILED, mBoard.device, mReg, value);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Manager with a single board and no budget, the setup
+     *      before there was more than one PIC.
+     *
+     * @param pic   The board.
+     * @return  Manager with pic as MAIN.
+     */
+    public static BusManager single(RaspPi pic) {
+        BusManager manager = new BusManager();
+        manager.addBoard("pic0", pic, 0, 0, 0);
+        return manager;
+    }
+
+    /**
+     *  Description:
+     *      Adds a board. The first one added is MAIN.
+     *
+     * @param name          Name used in the summary.
+     * @param pic           Opened board.
+     * @param pollHz        Sensor polls per second, 0 for every cycle.
+     * @param budget        Transactions per second, 0 for no limit.
+     * @param burst         Transactions that can run back to back.
+     * @return  Board index.
+     */
+    public synchronized int addBoard(String name, RaspPi pic, int pollHz, int budget, int burst) {
+        Board board = new Board(name, pic, mScheduler.addDevice(name, budget, burst), pollHz);
+        board.poll = new PollJob(board);
+        for (int reg = 0; reg < PicRegisters.ACTUATOR_COUNT; reg++) {
+            board.writes[reg] = new WriteJob(board, reg);
+        }
+        Board[] boards = Arrays.copyOf(mBoards, mBoards.length + 1);
+        boards[boards.length - 1] = board;
+        mBoards = boards;
+        return boards.length - 1;
+    }
+
+    public RaspPi getPic(int board) {
+        return mBoards[board].pic;
+    }
+
+    public int getBoardCount() {
+        return mBoards.length;
+    }
+
+    /**
+     *  Description:
+     *      Queues an actuator write. Values matching what the board
+     *      already has never reach the queue. Called on the sampling
+     *      thread, which owns the shadow copies.
+     *
+     * @param board     Board index.
+     * @param reg       PicRegisters.PWM3_ADDRESS to PicRegisters.DAC1_ADDRESS.
+     * @param value     Value for the register.
+     */
+    public void write(int board, int reg, int value) {
+        Board b = mBoards[board];
+        WriteJob job = b.writes[reg];
+        job.value = value;      // A write already queued picks up the newest value.
+        if (!b.pic.skipIfUnchanged(reg, value)) {
+            mScheduler.submit(job);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Runs one cycle of bus work: writes left from before, then
+     *      the polls that are due. Copies the sensors of MAIN.
+     *
+     * @param nowNanos  Current System.nanoTime().
+     * @param out       Sample given the sensor values of MAIN.
+     * @return  False if MAIN couldn't be read this cycle.
+     */
+    public boolean poll(long nowNanos, Sample out) {
+        for (Board board : mBoards) {
+            if (nowNanos - board.nextPollNanos >= 0) {
+                board.nextPollNanos = Math.max(board.nextPollNanos + board.pollPeriodNanos, nowNanos);  // Late polls don't pile up.
+                mScheduler.submit(board.poll);
+            }
+        }
+        mScheduler.runPending(nowNanos, BusScheduler.BACKGROUND, MAX_JOBS_PER_CYCLE);
+        return takeSensors(MAIN, out);
+    }
+
+    /**
+     *  Description:
+     *      Puts the writes queued by the control stage on the bus.
+     *
+     * @param nowNanos  Current System.nanoTime().
+     */
+    public void flushWrites(long nowNanos) {
+        mScheduler.runPending(nowNanos, BusScheduler.ACTUATOR, MAX_JOBS_PER_CYCLE);
+    }
+
+    /**
+     *  Description:
+     *      Copies the sensors of a board if it was polled since the
+     *      last call.
+     *
+     * @param board     Board index.
+     * @param out       Sample given ada5, adc3, adc4, adc5 and which were read.
+     * @return  False if nothing new was read.
+     */
+    public boolean takeSensors(int board, Sample out) {
+        Board b = mBoards[board];
+        synchronized (b) {
+            if (!b.fresh) {
+                return false;
+            }
+            b.fresh = false;
+            out.ada5 = b.latest.ada5;
+            out.adc3 = b.latest.adc3;
+            out.adc4 = b.latest.adc4;
+            out.adc5 = b.latest.adc5;
+            out.fresh = b.latest.fresh;
+            b.latest.fresh = 0;
+            return true;
+        }
+    }
+
+    public BusScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     *  Description:
+     *      Scheduler summary followed by the health of every board.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public StringBuilder health(StringBuilder out) {
+        mScheduler.summary(out);
+        for (Board board : mBoards) {
+            out.append(board.name).append(":\n");
+            board.pic.health(out);
+        }
+        return out;
+    }
+
+    /**
+     *  Description:
+     *      Closes every board.
+     */
+    public void close() {
+        for (Board board : mBoards) {
+            board.pic.cleanupI2C();
+        }
+    }
+}
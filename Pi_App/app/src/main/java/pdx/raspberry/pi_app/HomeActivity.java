@@ -16,21 +16,58 @@
 package pdx.raspberry.pi_app;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.provider.Settings;
 import android.util.Log;
 import android.widget.TextView;
 
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 
+import pdx.raspberry.core.AdcFilter;
+import pdx.raspberry.core.CommandStore;
+import pdx.raspberry.core.ControlExchange;
+import pdx.raspberry.core.ControlState;
+import pdx.raspberry.core.DevicePaths;
+import pdx.raspberry.core.EventExporter;
+import pdx.raspberry.core.FanControl;
+import pdx.raspberry.core.FirebaseData;
+import pdx.raspberry.core.LanProtocol;
+import pdx.raspberry.core.LanServer;
+import pdx.raspberry.core.LatencyTracer;
+import pdx.raspberry.core.LogReplayer;
+import pdx.raspberry.core.PicRegisters;
+import pdx.raspberry.core.RollupPublisher;
+import pdx.raspberry.core.RuleEngine;
+import pdx.raspberry.core.RuleProgram;
+import pdx.raspberry.core.RuleSpec;
+import pdx.raspberry.core.RuleStore;
+import pdx.raspberry.core.Sample;
+import pdx.raspberry.core.SampleFilter;
+import pdx.raspberry.core.SampleQueue;
+import pdx.raspberry.core.StartupTrace;
+import pdx.raspberry.core.TelemetryCodec;
+import pdx.raspberry.core.TelemetryDelta;
+import pdx.raspberry.core.TelemetryLog;
+import pdx.raspberry.core.TimeSeriesStore;
+import pdx.raspberry.core.Tmp36;
+
+import java.io.File;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Skeleton of an Android Things activity.
@@ -53,28 +90,64 @@ import java.util.Map;
  */
 public class HomeActivity extends AppCompatActivity {
 
-    private static final int I2C_SLAVE_ADDR = 0x08;     // Device Addresses.
-    private static final int PWM3_ADDRESS = 0x00;
-    private static final int PWM4_ADDRESS = 0x01;
-    private static final int PWM5_ADDRESS = 0x02;
-    private static final int PWM6_ADDRESS = 0x03;
-    private static final int DAC1_ADDRESS = 0x04;
-    private static final int ADA5_ADDRESS = 0x05;
-    private static final int ADC3_ADDRESS = 0x07;
-    private static final int ADC4_ADDRESS = 0x09;
-    private static final int ADC5_ADDRESS = 0x0b;
-
-    static int mLockFlag = 0;   // Initialize shared resource flag.
-
-
+    private static final int I2C_SLAVE_ADDR = 0x08;     // Device Address. Register map is in RaspPi.
+    private static final int MAIN_BUS_BUDGET = 500;     // Transactions per second for the main PIC, polls and writes.
+    private static final int MAIN_BUS_BURST = 10;       // Transactions it can run back to back.
+
+    private static final int SAMPLE_RATE_HZ = 100;      // Sensor reads and control updates per second.
+    private static final int FAN_CONTROL_HZ = 10;       // Fan PID steps per second, every tenth sample.
+    private static final int TEMP_MAX_AGE_MS = 500;     // Temperature moves over seconds, read it twice a second.
+    private static final int UI_PERIOD_MS = 100;        // Text views are refreshed at 10 Hz.
+    private static final int UPLOAD_PERIOD_MS = 500;    // Firebase is checked for changes twice a second.
+    private static final int UPLOAD_HEARTBEAT_MS = 60000;   // Everything is sent at least once a minute.
+    private static final int ADC_DEADBAND = 2;          // Counts of ADC noise not worth uploading.
+    private static final int ACTUATOR_REFRESH_MS = 5000; // Unchanged outputs are rewritten this often.
+    private static final int DIAGNOSTICS_PERIOD_MS = 60000; // Latency summary is logged and uploaded this often.
+    private static final int LOG_SEGMENT_BYTES = 1 << 20;   // About 3 hours of offline telemetry per segment.
+    private static final long LOG_MAX_BYTES = 32L << 20;    // Disk budget of the offline log.
+    private static final int REPLAY_BATCH = 50;             // Logged records per replayed batch.
+    private static final int REPLAY_PERIOD_MS = 1000;       // At most one batch a second, live data keeps the rest.
+    private static final int ROLLUP_PERIOD_MS = 60000;      // History rollups are published once a minute.
+    private static final int EVENT_EXPORT_MS = 1000;        // Recorded events reach logcat once a second.
 
     private static final String TAG = "HomeActivity";
 
-    private Handler handler = new Handler();    // Instantiate handler for thread.
+    private Handler handler = new Handler();    // Instantiate handler for UI and upload stages.
 
+    private String mDeviceId;                   // Name of this Pi's shard in the database.
     private DatabaseReference mDatabase = null; // Database reference object.
-    private FirebaseData data;                  // Firebase data set in listener for database.
-    FirebaseData dataCpy = null;                // Contains copy of firebase data.
+    private DatabaseReference mTelemetry = null;    // Where this Pi's readings are written.
+    private DatabaseReference mAck = null;          // Where applied commands are acknowledged.
+    private volatile long mAppliedSeq = 0;          // Sequence number of the command on the hardware.
+    private long mAckedSeq = 0;                     // Sequence number last acknowledged.
+    private final LatencyTracer mTracer = new LatencyTracer();  // Command and telemetry latencies.
+    private long mTracedVersion = 0;                // Last control state timed, sampling thread only.
+    private final StringBuilder mDiagnostics = new StringBuilder();
+    private final ControlExchange mControls = new ControlExchange();  // Latest database values for the hardware.
+    private final FirebaseData mUpload = new FirebaseData(); // Values sent to Firebase.
+    private final FanControl mFan = new FanControl(FAN_CONTROL_HZ);    // Fan PID, sampling thread only.
+    private int mFanDivider = 0;                        // Samples since the last fan step.
+    private final TelemetryDelta mDelta = new TelemetryDelta(UPLOAD_HEARTBEAT_MS);  // Picks the fields that changed.
+    private DatabaseReference mHistoryRef = null;   // Where logged telemetry is replayed.
+    private TelemetryLog mLog = null;               // Telemetry stored while offline, null if the disk failed.
+    private LogReplayer mReplayer = null;           // Sends the log once the connection is back.
+    private boolean mOnline = false;                // Database connection state, main thread only.
+    private volatile LanServer mLan = null;                 // Direct control from phones on the same network, null if unavailable.
+    private final StartupTrace mStartup = new StartupTrace(System.nanoTime(), SystemClock.elapsedRealtime());  // Time to first sample and upload.
+    private CommandStore mCommandStore = null;      // Last commands on the hardware, kept across restarts.
+    private long mSavedVersion = 0;                 // Control state last stored, main thread only.
+    private Thread mHardwareThread = null;          // Opens the bus and starts sampling.
+    private TelemetryLog mOpenedLog = null;         // Opened by the startup thread, handed over by mStorageStartup.
+    private byte[] mLanKey = null;                  // Loaded by the startup thread, null if unavailable.
+    private final RuleEngine mRules = new RuleEngine(TimeZone.getDefault());  // Automation rules, evaluated on the sampling thread.
+    private RuleStore mRuleStore = null;            // Rules kept for restarts without a connection.
+    private final ExecutorService mRuleWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "rules");      // Compiles and saves rules off the main thread.
+        }
+    });
+    private final EventExporter mEvents = new EventExporter(PiEvents.RECORDER, PiEvents.LOGCAT, EVENT_EXPORT_MS);
 
     private TextView mTempTxtVw;          // Temperature text views.
     private TextView mADC3TxtVw;          // ADC text views.
@@ -87,6 +160,16 @@ public class HomeActivity extends AppCompatActivity {
     private TextView mPWM6TxtVw;
 
     RaspPi raspPi = new RaspPi();       // Instantiate the I2C interface class.
+    private final BusManager mBus = new BusManager();  // Every PIC on the bus, raspPi is the main one.
+    private SamplingEngine mEngine;     // Runs reads and control on its own thread.
+    private final SampleFilter mFilter = new SampleFilter();    // Filters between the read and the control stage.
+    private final TimeSeriesStore mHistory = TimeSeriesStore.forRate(SAMPLE_RATE_HZ);  // Recent history of every channel.
+    private RollupPublisher mRollups = null;        // Publishes mHistory for the phone charts.
+    private final Map<String, Object> mRollupValues = new HashMap<>();
+    private final SampleQueue mUiQueue = new SampleQueue(4);        // Samples waiting for each consumer.
+    private final SampleQueue mUploadQueue = new SampleQueue(4);
+    private final Sample mUiSample = new Sample();          // Latest sample taken by each consumer.
+    private final Sample mUploadSample = new Sample();
     /**
      *  Initializes all UI elements and thread for driving hardware.
      *
@@ -117,158 +200,531 @@ public class HomeActivity extends AppCompatActivity {
         mPWM5TxtVw.setText("0");
         mPWM6TxtVw.setText("0");
 
-        data = new FirebaseData(0,0,0,0,0,0,0,0,0,""); // Initialize data class. Has most recent data once updated.
+        mDeviceId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);   // Stable per board.
+        mRollups = new RollupPublisher(mHistory, mDeviceId);
+        mCommandStore = new CommandStore(new File(getFilesDir(), "commands"));
+        mRuleStore = new RuleStore(new File(getFilesDir(), "rules"));
+        mDelta.setDeadband(TelemetryDelta.ADC3IN, ADC_DEADBAND);        // Temperature is whole degrees, any change is sent.
+        mDelta.setDeadband(TelemetryDelta.ADC4IN, ADC_DEADBAND);
+        mDelta.setDeadband(TelemetryDelta.ADC5IN, ADC_DEADBAND);
+
+        mEngine = new SamplingEngine(mBus, SAMPLE_RATE_HZ, mController);
+        mFilter.setFilter(SampleFilter.ADA5, new AdcFilter(3, 1, 2));   // Fed only the 2 Hz fresh readings, see TEMP_MAX_AGE_MS.
+        mFilter.setFilter(SampleFilter.ADC3, new AdcFilter(3, 1, 1));   // Readbacks follow the sliders closely.
+        mFilter.setFilter(SampleFilter.ADC4, new AdcFilter(3, 1, 1));
+        mFilter.setFilter(SampleFilter.ADC5, new AdcFilter(3, 1, 1));
+        mEngine.setFilter(mFilter);
+        mEngine.setStore(mHistory);
+        mEngine.addConsumer(mUiQueue);
+        mEngine.addConsumer(mUploadQueue);
+
+        mEvents.start();                            // Before anything can record events.
+
+        // Staged startup: the hardware never waits on the network, and the network never blocks the main thread.
+        handler.post(mUiRunnable);                  // Start the consumers.
+        handler.post(mCloudStartup);                // Once onCreate returns, ahead of anything the startup thread posts.
+        mHardwareThread = new Thread(mHardwareStartup, "startup");
+        mHardwareThread.start();
 
-        mDatabase = FirebaseDatabase.getInstance().getReference();      // Get reference to database.
+    }
 
-        // Adding a listener for detecting new data on server.
-        mDatabase.addValueEventListener( new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
-                // Quick to make lock. Not the best idea probably because of context where this flag is being set.
-                if(mLockFlag == 0) {    // Be sure to set and reset lock on data.
-                    mLockFlag = 1;
-                    data = dataSnapshot.getValue(FirebaseData.class);   // Grab the latest data.
-                    mLockFlag = 0;
+    /**
+     * Hardware startup
+     *
+     * Description:
+     *  Runs on its own thread as soon as the activity is created.
+     *  Hands the last known commands to the control stage, opens I2C
+     *  and starts sampling, so the outputs are driven again without
+     *  waiting for the database. Then recovers the offline log and
+     *  loads the LAN key, which can take seconds of disk work, and
+     *  posts them to the main thread.
+     *
+     */
+    private final Runnable mHardwareStartup = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                ControlState saved = mCommandStore.load();
+                if (saved != null && mControls.publishIfNewer(saved) != null) {
+                    mStartup.mark(StartupTrace.COMMANDS_RESTORED, System.nanoTime());   // Unless the database was faster.
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "Saved commands unavailable", e);
             }
-
-            @Override
-            public void onCancelled(DatabaseError databaseError) {
-                // Getting Post failed, log a message
-                // ...
+            try {
+                List<RuleSpec> rules = mRuleStore.load();
+                if (rules != null) {
+                    mRules.setProgramIfEmpty(RuleProgram.compile(rules));   // Unless the database was faster.
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Saved rules unavailable", e);
             }
-        });
-
-        raspPi.listI2C();
-        raspPi.setupI2C("I2C1", I2C_SLAVE_ADDR);    // I2C init.
 
-       handler.post(blinkRunnable); // Start the thread.
+            raspPi.setupI2C("I2C1", I2C_SLAVE_ADDR);    // I2C init.
+            raspPi.setActuatorRefresh(ACTUATOR_REFRESH_MS);
+            raspPi.setSensorMaxAge(PicRegisters.ADA5_ADDRESS, TEMP_MAX_AGE_MS);   // Only the PWM feedback ADCs are read every cycle.
+            mBus.addBoard("pic0", raspPi, 0, MAIN_BUS_BUDGET, MAIN_BUS_BURST);    // Polled every cycle. More boards are added the same way.
+            mStartup.mark(StartupTrace.HARDWARE_OPEN, System.nanoTime());
+            mEngine.start();                            // Start the sampling thread.
+
+            try {
+                mOpenedLog = new TelemetryLog(new File(getFilesDir(), "telemetry"), LOG_SEGMENT_BYTES, LOG_MAX_BYTES);
+            } catch (IOException e) {
+                Log.e(TAG, "Telemetry log unavailable", e);
+            }
+            try {
+                mLanKey = LanProtocol.loadOrCreateKey(new File(getFilesDir(), "lan.key"));
+            } catch (IOException e) {
+                Log.e(TAG, "LAN control unavailable", e);
+            }
+            handler.post(mStorageStartup);              // The post publishes both fields to the main thread.
 
-    }
+            raspPi.listI2C();                           // Only informational, so after sampling began.
+        }
+    };
 
     /**
-     * Runnable Thread
+     * Cloud startup
      *
      * Description:
-     *  This thread interacts with the hardware and updates firebase with
-     *  the results.
-     *  Thread reads the following: ADA5, ADC3, ADC4, ADC5
-     *  Thread writes to following: DAC1, PWM3, PWM4, PWM5, PWM6.
-     *
-     *  Thread runs every 2000 milliseconds and uses a flag
-     *  to ensure "data" variable is safe to use.
+     *  Posted to the main thread by onCreate. Attaches the database
+     *  listeners, then starts the upload and diagnostics stages.
+     *  Until then the control stage runs on the saved commands. The
+     *  offline log and the LAN server follow in mStorageStartup.
      *
      */
-    private Runnable blinkRunnable = new Runnable() {
+    private final Runnable mCloudStartup = new Runnable() {
         @Override
         public void run() {
-            Log.d(TAG, "Thread Running. ");
-            handler.postDelayed(blinkRunnable, 2000);
-            if (mLockFlag == 0) {   // Check if the flag is not set for updating the data for hardware.
-                mLockFlag = 1;
-                dataCpy = data;
-                mLockFlag = 0;  // Reset the lock.
-            }
-            if (dataCpy != null) {
-                try {
-                    dataCpy.ADA5IN = raspPi.readRegWordI2C(ADA5_ADDRESS);  // Read temp ADC.
-                    Log.d(TAG, "TEMP: " + dataCpy.ADA5IN);
-                    if(dataCpy.ADA5IN > 1023)
-                    {
-                        dataCpy.ADA5IN = 1023; // Limiting max to 10 bits.
-                    }
-                    else if(dataCpy.ADA5IN > 0) {
-                        // https://www.microchip.com/forums/m589143.aspx        ~helpful link
-                       //dataCpy.ADA5IN = (int) ((dataCpy.ADA5IN * ((1.98) / 1024)) * 100);    // Convert to temperature. Converts to Fahrenheit.
-                       //dataCpy.ADA5IN = (int) (((dataCpy.ADA5IN-32)*5)/9);   // Convert to celsius.
-                        dataCpy.ADA5IN = (data.ADA5IN-500)/10;
+            mDatabase = FirebaseDatabase.getInstance().getReference();      // Get reference to database.
+            mDatabase.child(DevicePaths.index(mDeviceId)).setValue(true);  // Let phones find this board.
+            mTelemetry = mDatabase.child(DevicePaths.telemetry(mDeviceId));
+            mAck = mDatabase.child(DevicePaths.ack(mDeviceId));
+            mHistoryRef = mDatabase.child(DevicePaths.history(mDeviceId));
+
+            // Keeps the tracer on the server clock, shared with the phone.
+            mDatabase.child(DevicePaths.SERVER_OFFSET).addValueEventListener(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    Double offset = dataSnapshot.getValue(Double.class);
+                    if (offset != null) {
+                        mTracer.setServerOffset(offset.longValue());
                     }
-                    else {
-                        dataCpy.ADA5IN = 0;
-                    }
-
+                }
 
-                    dataCpy.ADC5IN = raspPi.readRegWordI2C(ADC5_ADDRESS) & 0x000003FF; // Read all PWM ADCs.
-                    dataCpy.ADC4IN = raspPi.readRegWordI2C(ADC4_ADDRESS) & 0x000003FF;
-                    dataCpy.ADC3IN = raspPi.readRegWordI2C(ADC3_ADDRESS) & 0x000003FF;
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                }
+            });
 
+            mDatabase.child(DevicePaths.CONNECTED).addValueEventListener(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    Boolean connected = dataSnapshot.getValue(Boolean.class);
+                    mOnline = connected != null && connected;
+                }
 
-                } catch (IOException e){
-                    Log.d(TAG, "LOG: Read I2C failed. ");
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
                 }
-                try {
-                    if(dataCpy.ADA5IN > 15 && dataCpy.ADA5IN < 18)    // Setting duty cycle based on temp in Celsius.
-                    {
-                        dataCpy.PWM3 = (int) (1023*.30);    // Set 30% duty cycle.
-                    }
-                    else if(dataCpy.ADA5IN > 18 && dataCpy.ADA5IN < 22)
-                    {
-                        dataCpy.PWM3 = (int) (1023*.50);    // Set 50% duty cycle.
-                    } else if(dataCpy.ADA5IN > 22 && dataCpy.ADA5IN < 25)
-                    {
-                        dataCpy.PWM3 = (int) (1023*.70);    // Set 70% duty cycle.
+            });
+
+            // Adding a listener for detecting new commands for this board only.
+            mDatabase.child(DevicePaths.commands(mDeviceId)).addValueEventListener( new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    FirebaseData data = dataSnapshot.getValue(FirebaseData.class);   // Grab the latest data.
+                    if (data != null) {
+                        applyCommand(data);
                     }
-                    else if(dataCpy.ADA5IN < 15)
-                    {
-                        dataCpy.PWM3 = (int) (1023*.80);    // Set 80% duty cycle.
-                    } else {
-                        dataCpy.PWM3 = (int) (1023*.40);    // Set 40% duty cycle.
-                    }
-                    raspPi.writeRegWordI2C(PWM3_ADDRESS, (short)(dataCpy.PWM3 & 0x0000FFFF));  // Update motor PWM output.
-                } catch (IOException e) {
-                    Log.d(TAG, "LOG: PWM3 Write failed. ");
                 }
-                try {
-                    short to_write = (short) (dataCpy.PWM4 & 0x0000FFFF);
-                    raspPi.writeRegWordI2C(PWM4_ADDRESS, to_write);     // Update RGB PWM channel.
-                } catch (IOException e) {
-                    Log.d(TAG, "LOG: PWM4 Write failed. ");
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    // Getting Post failed, log a message
+                    // ...
                 }
-                try {
-                    short to_write = (short) (dataCpy.PWM5 & 0x0000FFFF);
-                    raspPi.writeRegWordI2C(PWM5_ADDRESS, to_write);     // Update RGB PWM channel.
-                } catch (IOException e) {
-                    Log.d(TAG, "LOG: PWM5 Write failed. ");
+            });
+
+            // Rules are compiled here and swapped in whole; the saved copy covers restarts while offline.
+            mDatabase.child(DevicePaths.rules(mDeviceId)).addValueEventListener(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    final List<RuleSpec> rules = new ArrayList<>();
+                    for (DataSnapshot child : dataSnapshot.getChildren()) {
+                        try {
+                            rules.add(child.getValue(RuleSpec.class));
+                        } catch (DatabaseException e) {
+                            rules.add(null);    // Not a rule, compile counts it as rejected.
+                        }
+                    }
+                    mRuleWorker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            compileRules(rules);
+                        }
+                    });
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
                 }
+            });
+
+            mStartup.mark(StartupTrace.CLOUD_ATTACHED, System.nanoTime());
+            handler.postDelayed(mUploadRunnable, UPLOAD_PERIOD_MS);
+            handler.postDelayed(mDiagnosticsRunnable, DIAGNOSTICS_PERIOD_MS);
+            handler.postDelayed(mRollupRunnable, ROLLUP_PERIOD_MS);
+        }
+    };
+
+    /**
+     *  Description:
+     *      Compiles rules from the database, swaps them in and saves
+     *      them for restarts. Runs on mRuleWorker, in arrival order.
+     *
+     * @param rules Rules in database order, null for malformed entries.
+     */
+    private void compileRules(List<RuleSpec> rules) {
+        RuleProgram program = RuleProgram.compile(rules);
+        mRules.setProgram(program);
+        Log.i(TAG, "Rules: " + program.getRuleCount() + " compiled, " + program.getRejected() + " rejected");
+        List<RuleSpec> parsed = new ArrayList<>();
+        for (RuleSpec rule : rules) {
+            if (rule != null) {
+                parsed.add(rule);
+            }
+        }
+        try {
+            mRuleStore.save(parsed);
+        } catch (IOException e) {
+            Log.e(TAG, "Saving rules failed", e);
+        }
+    }
+
+    /**
+     * Storage startup
+     *
+     * Description:
+     *  Posted to the main thread by the startup thread, always after
+     *  mCloudStartup. Takes over the offline log and starts the LAN
+     *  server with the key the startup thread read from disk.
+     *
+     */
+    private final Runnable mStorageStartup = new Runnable() {
+        @Override
+        public void run() {
+            // Offline telemetry goes to the log and is replayed once the connection returns.
+            if (mOpenedLog != null) {
+                mLog = mOpenedLog;
+                mReplayer = new LogReplayer(mLog, mHistorySink, REPLAY_BATCH, REPLAY_PERIOD_MS);
+            }
+
+            // Phones on the same network skip the cloud. Whichever copy of a command arrives second is dropped by its SEQ.
+            // The key reaches the phones through the device shard, so only signed in phones can use the LAN.
+            if (mLanKey == null) {
+                return;
+            }
+            mDatabase.child(DevicePaths.lanKey(mDeviceId)).setValue(LanProtocol.keyToHex(mLanKey));
+            try {
+                mLan = new LanServer(mDeviceId, mLanKey, LanProtocol.PORT, new LanServer.Listener() {
+                    @Override
+                    public void onCommand(FirebaseData command) {
+                        applyCommand(command);
+                    }
+                });
+                mLan.start("lan");
+            } catch (IOException e) {
+                Log.e(TAG, "LAN control unavailable", e);
+            }
+        }
+    };
+
+    /**
+     * Control stage
+     *
+     * Description:
+     *  Runs on the sampling thread right after the sensors are read.
+     *  Converts the temperature, steps the fan PID every tenth sample
+     *  and drives the hardware using the latest database values.
+     *  Writes to following: DAC1, PWM3, PWM4, PWM5, PWM6. Until the
+     *  first command arrives, or is restored from disk, only the fan
+     *  runs, holding the default setpoint. Automation rules that fire
+     *  override the outputs they drive.
+     *
+     *  Reads an immutable snapshot of the database values, so no
+     *  locking is needed with the Firebase listener.
+     *
+     */
+    private final SamplingEngine.Controller mController = new SamplingEngine.Controller() {
+        @Override
+        public void control(Sample sample) throws IOException {
+            mStartup.mark(StartupTrace.FIRST_SAMPLE, System.nanoTime());
+            ControlState controls = mControls.get();
+
+            sample.temp = Tmp36.toCelsius(sample.ada5);
+            mFan.setSetpoint(controls.setpoint > 0 ? controls.setpoint : FanControl.DEFAULT_SETPOINT);
+            if (++mFanDivider >= SAMPLE_RATE_HZ / FAN_CONTROL_HZ) {
+                mFanDivider = 0;
+                mFan.update(Tmp36.toDeciCelsius(sample.ada5));     // Fixed control rate.
+            }
+            sample.pwm3 = mFan.getOutput();     // Setting duty cycle to hold the setpoint.
+            boolean commanded = controls != ControlState.EMPTY;
+            if (commanded) {
+                sample.pwm4 = controls.pwm4;
+                sample.pwm5 = controls.pwm5;
+                sample.pwm6 = controls.pwm6;
+                sample.dac1 = controls.dac1;
+            }
+            int driven = mRules.evaluate(sample, sample.time);     // Rules override the outputs they fire on, online or not.
+
+            mBus.write(BusManager.MAIN, PicRegisters.PWM3_ADDRESS, sample.pwm3);  // Update motor PWM output. Only queued if changed.
+            mStartup.mark(StartupTrace.FIRST_OUTPUT, System.nanoTime());   // Goes on the bus at the end of this cycle.
+            if (!commanded && driven == 0) {
+                return;     // Nothing from the database, the disk or the rules yet.
+            }
+
+            mBus.write(BusManager.MAIN, PicRegisters.PWM4_ADDRESS, sample.pwm4);  // Update RGB PWM channel.
+            mBus.write(BusManager.MAIN, PicRegisters.PWM5_ADDRESS, sample.pwm5);  // Update RGB PWM channel.
 /*
     Had to comment out this portion of the code, because a failure was being given when writing to
     the registers. It's odd that this occurs, because the remaining peripherals work.
 
 
-                try {
-                    short to_write = (short) (dataCpy.PWM6 & 0x0000FFFF);
-                    raspPi.writeRegWordI2C(PWM6_ADDRESS, to_write);     // Update RGB PWM channel.
-                } catch (IOException e) {
-                    Log.d(TAG, "LOG: PWM6 Write failed. ");
+            mBus.write(BusManager.MAIN, PicRegisters.PWM6_ADDRESS, sample.pwm6);  // Update RGB PWM channel.
+
+            mBus.write(BusManager.MAIN, PicRegisters.DAC1_ADDRESS, sample.dac1);  // Write to DAC for amplifying PWM output.
+            */
+            mAppliedSeq = controls.seq;     // Acknowledged by the upload stage.
+            LanServer lan = mLan;
+            if (lan != null) {
+                lan.sendAck(controls.seq);      // And right away to a phone on the LAN.
+            }
+            if (controls.version != mTracedVersion && controls.receivedMs != 0) {
+                mTracedVersion = controls.version;     // First cycle with this command on the bus.
+                long now = mTracer.serverNow();
+                mTracer.record(LatencyTracer.PI_TO_BUS, now - controls.receivedMs);
+                if (controls.traceMs != 0) {
+                    mTracer.record(LatencyTracer.UI_TO_BUS, now - controls.traceMs);
                 }
+            }
+        }
+    };
+
+    /**
+     * UI Runnable
+     *
+     * Description:
+     *  Shows the newest sample on the text views. Runs on the main
+     *  thread every UI_PERIOD_MS and never touches the I2C bus.
+     *
+     */
+    private final Runnable mUiRunnable = new Runnable() {
+        @Override
+        public void run() {
+            handler.postDelayed(mUiRunnable, UI_PERIOD_MS);
+            if (!mUiQueue.pollLatest(mUiSample)) {
+                return;     // Nothing new since the last refresh.
+            }
+            LanServer lan = mLan;
+            if (lan != null) {
+                lan.sendTelemetry(mUiSample);     // A phone on the LAN sees what the screen shows.
+            }
+            mTempTxtVw.setText(String.format(Integer.toString(mUiSample.temp)));
+            mADC3TxtVw.setText(String.format(Integer.toString(mUiSample.adc3)));
+            mADC4TxtVw.setText(String.format(Integer.toString(mUiSample.adc4)));
+            mADC5TxtVw.setText(String.format(Integer.toString(mUiSample.adc5)));
+            mDAC1TxtVw.setText(String.format(Integer.toString(mUiSample.dac1)));
+            mPWM3TxtVw.setText(String.format(Integer.toString(mUiSample.pwm3)));
+            mPWM4TxtVw.setText(String.format(Integer.toString(mUiSample.pwm4)));
+            mPWM5TxtVw.setText(String.format(Integer.toString(mUiSample.pwm5)));
+            mPWM6TxtVw.setText(String.format(Integer.toString(mUiSample.pwm6)));
+        }
+    };
 
-                try {
-                    byte[] to_write = intToByteArray((dataCpy.DAC1OUT & 0x0000001F));
-                    raspPi.writeOneByteI2C(DAC1_ADDRESS, to_write[0]);  // Write to DAC for amplifying PWM output.
-                } catch (IOException e) {
-                    Log.d(TAG, "LOG: DAC Write failed. ");
+    /**
+     * Upload Runnable
+     *
+     * Description:
+     *  Sends the fields of the newest sample that changed to Firebase.
+     *  Checked every UPLOAD_PERIOD_MS. While the database is offline
+     *  the sample is also logged to disk, and once it is back the log
+     *  is replayed a batch at a time. New commands are saved for the
+     *  next startup.
+     *
+     */
+    private final Runnable mUploadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            handler.postDelayed(mUploadRunnable, UPLOAD_PERIOD_MS);
+            saveCommands();
+            try {
+                if (mOnline && mReplayer != null) {
+                    mReplayer.pump(SystemClock.uptimeMillis());
                 }
-                */
-
-                Log.d(TAG, dataCpy.DAC1OUT + " " + dataCpy.PWM3 + " " + dataCpy.PWM4 + " " + dataCpy.PWM5 + " " + dataCpy.PWM6);
-                updateFirebase();   // Update Firebase
-
-                mTempTxtVw.setText(String.format(Integer.toString(dataCpy.ADA5IN)));
-                mADC3TxtVw.setText(String.format(Integer.toString(dataCpy.ADC3IN)));
-                mADC4TxtVw.setText(String.format(Integer.toString(dataCpy.ADC4IN)));
-                mADC5TxtVw.setText(String.format(Integer.toString(dataCpy.ADC5IN)));
-                mDAC1TxtVw.setText(String.format(Integer.toString(dataCpy.DAC1OUT)));
-                mPWM3TxtVw.setText(String.format(Integer.toString(dataCpy.PWM3)));
-                mPWM4TxtVw.setText(String.format(Integer.toString(dataCpy.PWM4)));
-                mPWM5TxtVw.setText(String.format(Integer.toString(dataCpy.PWM5)));
-                mPWM6TxtVw.setText(String.format(Integer.toString(dataCpy.PWM6)));
+                if (!mUploadQueue.pollLatest(mUploadSample)) {
+                    return;
+                }
+                if (!mOnline && mLog != null) {
+                    mLog.append(mUploadSample);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Telemetry log failed", e);
             }
+            updateFirebase();   // Update Firebase
+        }
+    };
 
+    /**
+     *  Description:
+     *      Stores the commands on the hardware if they changed since
+     *      the last call, so a restart picks up where it left off.
+     */
+    private void saveCommands() {
+        ControlState controls = mControls.get();
+        if (controls == ControlState.EMPTY || controls.version == mSavedVersion) {
+            return;
+        }
+        try {
+            mCommandStore.save(controls);
+            mSavedVersion = controls.version;
+        } catch (IOException e) {
+            Log.e(TAG, "Saving commands failed", e);
         }
+    }
 
+    /**
+     *  Description:
+     *      Marks the first telemetry the database accepted and logs
+     *      the startup trace once.
+     */
+    private final DatabaseReference.CompletionListener mUploadDone = new DatabaseReference.CompletionListener() {
+        @Override
+        public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+            if (databaseError == null && mStartup.mark(StartupTrace.FIRST_UPLOAD, System.nanoTime())) {
+                Log.i(TAG, mStartup.summary(new StringBuilder()).toString());
+            }
+        }
     };
 
+    /**
+     *  Description:
+     *      Writes a batch of logged telemetry under history/{seq} in
+     *      one update, so a batch is stored completely or not at all.
+     *      Rollup records carry the number of samples averaged.
+     */
+    private final LogReplayer.Sink mHistorySink = new LogReplayer.Sink() {
+        @Override
+        public void send(Sample[] batch, int[] counts, int size, final LogReplayer.Callback done) {
+            Map<String, Object> values = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                Sample record = batch[i];
+                String key = record.seq + "/";
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.ADA5IN], record.temp);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.ADC3IN], record.adc3);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.ADC4IN], record.adc4);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.ADC5IN], record.adc5);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.DAC1OUT], record.dac1);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.PWM3], record.pwm3);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.PWM4], record.pwm4);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.PWM5], record.pwm5);
+                values.put(key + TelemetryDelta.FIELDS[TelemetryDelta.PWM6], record.pwm6);
+                values.put(key + TelemetryCodec.TIMESTAMP, record.time);
+                values.put(key + "COUNT", counts[i]);
+            }
+            mHistoryRef.updateChildren(values, new DatabaseReference.CompletionListener() {
+                @Override
+                public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+                    done.complete(databaseError == null);
+                }
+            });
+        }
+    };
+
+    /**
+     * Diagnostics Runnable
+     *
+     * Description:
+     *  Logs the latency and I2C health summary and uploads it next to the telemetry
+     *  so it can be read without adb. Runs every DIAGNOSTICS_PERIOD_MS.
+     *
+     */
+    private final Runnable mDiagnosticsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            handler.postDelayed(mDiagnosticsRunnable, DIAGNOSTICS_PERIOD_MS);
+            mDiagnostics.setLength(0);
+            mStartup.summary(mDiagnostics);
+            PiEvents.RECORDER.summary(mDiagnostics);
+            mRules.summary(mDiagnostics);
+            mTracer.dump(mDiagnostics);
+            String summary = mBus.health(mDiagnostics).toString();     // Latency and bus health.
+            Log.i(TAG, "Diagnostics:\n" + summary);
+            mDatabase.child(DevicePaths.diagnostics(mDeviceId)).setValue(summary);
+        }
+    };
+
+    /**
+     * Rollup Runnable
+     *
+     * Description:
+     *  Publishes the minute, quarter hour and hour buckets closed since the
+     *  last run, so phones chart history without downloading raw samples.
+     *  Runs every ROLLUP_PERIOD_MS; the database queues them while offline.
+     *  The first run after a start also sweeps buckets that expired while
+     *  the Pi was off.
+     *
+     */
+    private final Runnable mRollupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            handler.postDelayed(mRollupRunnable, ROLLUP_PERIOD_MS);
+            mRollupValues.clear();
+            if (mRollups.collect(mRollupValues) > 0) {
+                mDatabase.updateChildren(mRollupValues);
+            }
+            for (int r = 0; r < RollupPublisher.RESOLUTIONS.length; r++) {
+                String expired = mRollups.takeExpired(r);
+                if (expired != null) {
+                    sweepRollups(r, expired);
+                }
+            }
+        }
+    };
+
+    /**
+     *  Description:
+     *      Deletes the buckets of every channel at a resolution up to and
+     *      including a key. Asks for the keys once, then removes them in
+     *      one update per channel.
+     *
+     * @param resolution    MINUTE, QUARTER or HOUR of RollupPublisher.
+     * @param expired       Newest key to delete, from takeExpired.
+     */
+    private void sweepRollups(int resolution, String expired) {
+        for (String field : RollupPublisher.FIELDS) {
+            final String path = DevicePaths.rollups(mDeviceId, RollupPublisher.RESOLUTIONS[resolution], field);
+            mDatabase.child(path).orderByKey().endAt(expired)
+                    .addListenerForSingleValueEvent(new ValueEventListener() {
+                        @Override
+                        public void onDataChange(DataSnapshot dataSnapshot) {
+                            Map<String, Object> deletes = new HashMap<>();
+                            for (DataSnapshot bucket : dataSnapshot.getChildren()) {
+                                deletes.put(path + "/" + bucket.getKey(), null);
+                            }
+                            if (!deletes.isEmpty()) {
+                                Log.i(TAG, "Deleting " + deletes.size() + " expired buckets of " + path);
+                                mDatabase.updateChildren(deletes);
+                            }
+                        }
+
+                        @Override
+                        public void onCancelled(DatabaseError databaseError) {
+                        }
+                    });
+        }
+    }
+
     /**
      *  Description:
      *      This function returns a byte array with 2 elements at maximum.
@@ -287,19 +743,57 @@ public class HomeActivity extends AppCompatActivity {
 
     /**
      *  Description:
-     *  Method to update Firebase.
+     *      Hands new commands to the sampling thread. Called by the
+     *      Firebase listener on the main thread and by the LAN server
+     *      on its receive thread; older or repeated SEQs are dropped.
+     *
+     * @param data  Commands received.
+     */
+    private void applyCommand(FirebaseData data) {
+        mStartup.mark(StartupTrace.FIRST_COMMAND, System.nanoTime());
+        long received = mTracer.serverNow();
+        ControlState published = mControls.publishIfNewer(ControlState.from(data, received));  // Stale commands are dropped. Sampling thread picks it up next cycle.
+        if (published != null && published.traceMs != 0) {
+            mTracer.record(LatencyTracer.UI_TO_PI, received - published.traceMs);
+        }
+    }
+
+    /**
+     *  Description:
+     *  Method to update Firebase with the fields of the newest
+     *  sample that moved past their deadband, and to acknowledge
+     *  the newest command written to the hardware.
      *
      *
      */
     private void updateFirebase() {
 
-        if(dataCpy != null) {
-            // Get current time: https://stackoverflow.com/questions/36301543/get-todays-date-and-time-as-string#36301666
-            data.TIMESTAMP = DateFormat.getDateTimeInstance().format(new Date());
-            Map<String, Object> dbaseValues = data.toMap();  // Create map object.
-            // Update Firebase.
-            mDatabase.updateChildren(dbaseValues);
+        long applied = mAppliedSeq;
+        if (applied != mAckedSeq) {
+            mAck.setValue(applied);     // Tell the phone its command reached the hardware.
+            mAckedSeq = applied;
+        }
+
+        mUpload.ADA5IN = mUploadSample.temp;
+        mUpload.ADC3IN = mUploadSample.adc3;
+        mUpload.ADC4IN = mUploadSample.adc4;
+        mUpload.ADC5IN = mUploadSample.adc5;
+        mUpload.DAC1OUT = mUploadSample.dac1;
+        mUpload.PWM3 = mUploadSample.pwm3;
+        mUpload.PWM4 = mUploadSample.pwm4;
+        mUpload.PWM5 = mUploadSample.pwm5;
+        mUpload.PWM6 = mUploadSample.pwm6;
+        int age = (int) Math.min(Math.max(System.currentTimeMillis() - mUploadSample.time, 0), 4095);
+        mDelta.setTrace((int) (mUploadSample.seq & LatencyTracer.TRACE_MASK), age);
+        Map<String, Object> dbaseValues = mDelta.changes(mUpload, mUploadSample.time);   // Create map object.
+        if (dbaseValues == null) {
+            return;     // Nothing moved enough to be worth sending.
         }
+        mTracer.record(LatencyTracer.READ_TO_UPLOAD, age);
+        PiEvents.RECORDER.record(PiEvents.UPLOAD, mUploadSample.temp, mUploadSample.dac1,
+                mUploadSample.pwm3, mUploadSample.pwm4, mUploadSample.pwm5, mUploadSample.pwm6);
+        // Update this board's telemetry.
+        mTelemetry.updateChildren(dbaseValues, mUploadDone);
     }
 
     /**
@@ -309,7 +803,31 @@ public class HomeActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
 
-        raspPi.cleanupI2C();   // Close I2C.
+        handler.removeCallbacks(mUiRunnable);
+        handler.removeCallbacks(mUploadRunnable);
+        handler.removeCallbacks(mDiagnosticsRunnable);
+        handler.removeCallbacks(mRollupRunnable);
+        handler.removeCallbacks(mCloudStartup);
+        try {
+            mHardwareThread.join();     // The bus may still be opening.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        handler.removeCallbacks(mStorageStartup);
+        mRuleWorker.shutdown();     // A compile already queued still finishes.
+        mEngine.stop();         // Wait for the last cycle before closing the bus.
+        if (mLan != null) {
+            mLan.stop();
+        }
+        mBus.close();           // Close I2C.
+        mEvents.stop();         // Exports what the last cycles recorded.
+        if (mOpenedLog != null) {
+            try {
+                mOpenedLog.close();     // Flush the offline log, even if it was never handed over.
+            } catch (IOException e) {
+                Log.e(TAG, "Telemetry log close failed", e);
+            }
+        }
     }
 
 }
@@ -0,0 +1,57 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the event recorder of the Pi app and
+ *  the events recorded on its sampling and bus threads. Lines reach
+ *  logcat through the exporter started by HomeActivity, under the
+ *  "Events" tag.
+ *
+ */
+
+package pdx.raspberry.pi_app;
+
+import android.util.Log;
+
+import pdx.raspberry.core.EventExporter;
+import pdx.raspberry.core.EventRecorder;
+
+public final class PiEvents {
+
+    private static final String TAG = "Events";
+
+    public static final EventRecorder RECORDER = new EventRecorder(4096);   // About 40 s of events at 100 Hz.
+
+    public static final int READ_FAILED = RECORDER.define(EventRecorder.WARN, "read_failed", "errors");
+    public static final int CONTROL_FAILED = RECORDER.define(EventRecorder.WARN, "control_failed", "errors");
+    public static final int WRITE_FAILED = RECORDER.define(EventRecorder.WARN, "write_failed", "board", "reg", "value");
+    public static final int BURST_FAILED = RECORDER.define(EventRecorder.WARN, "burst_failed", "reg", "length");
+    public static final int BUS_REOPEN = RECORDER.define(EventRecorder.WARN, "bus_reopen", "failures", "ok");
+    public static final int UPLOAD = RECORDER.define(EventRecorder.DEBUG, "upload", "temp", "dac1", "pwm3", "pwm4", "pwm5", "pwm6");
+
+    /**
+     *  Description:
+     *      Writes exported lines to logcat at the level they were recorded.
+     */
+    public static final EventExporter.Sink LOGCAT = new EventExporter.Sink() {
+        @Override
+        public void write(int level, String line) {
+            switch (level) {
+                case EventRecorder.DEBUG:
+                    Log.d(TAG, line);
+                    break;
+                case EventRecorder.INFO:
+                    Log.i(TAG, line);
+                    break;
+                case EventRecorder.WARN:
+                    Log.w(TAG, line);
+                    break;
+                default:
+                    Log.e(TAG, line);
+                    break;
+            }
+        }
+    };
+
+    private PiEvents() {
+    }
+}
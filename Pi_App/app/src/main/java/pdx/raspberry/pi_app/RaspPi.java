@@ -4,7 +4,18 @@
  *
  * Description: This file contains the methods needed to communicate
  *  with the I2C peripheral. Class serves as an abstraction to I2C for
- *  Android App running on Pi.
+ *  Android App running on Pi. Transactions go through an I2cBus, which
+ *  is the Pi's I2C peripheral or the PIC16 simulator off device.
+ *  The register map is in PicRegisters.
+ *
+ *  Every transaction is timed and counted per register. Failed ones
+ *  are retried a few times with a growing pause, and after several
+ *  operations in a row fail the bus is closed and opened again.
+ *
+ *  Sensor registers are read through a cache. Each one has its own
+ *  freshness budget, so a slow channel such as the temperature is
+ *  only read again once its cached value is older than that, while
+ *  the ADCs with no budget are read every time.
  *
  */
 
@@ -15,15 +26,66 @@ import android.util.Log;
 import com.google.android.things.pio.I2cDevice;
 import com.google.android.things.pio.PeripheralManager;
 
+import pdx.raspberry.core.I2cBus;
+import pdx.raspberry.core.I2cMetrics;
+import pdx.raspberry.core.PicRegisters;
+import pdx.raspberry.core.Sample;
+
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
-public class RaspPi {
+public class RaspPi implements I2cBus {
 
     private static final String TAG = "RaspberryPi";
 
+    public static final int DEFAULT_ATTEMPTS = 3;               // Tries per operation.
+    public static final long DEFAULT_BACKOFF_NANOS = 100000;    // Pause before the first retry, doubled each time.
+    public static final int DEFAULT_STUCK_FAILURES = 5;         // Failed operations in a row before reopening.
+    public static final long DEFAULT_REOPEN_INTERVAL_MS = 1000; // Least time between reopens.
+
+    private static final int OP_READ_BYTE = 0;      // Transaction types for transact().
+    private static final int OP_READ_WORD = 1;
+    private static final int OP_READ_BUFFER = 2;
+    private static final int OP_WRITE_BYTE = 3;
+    private static final int OP_WRITE_WORD = 4;
+
+    /**
+     *  Description:
+     *      Opens the bus again after it got stuck.
+     */
+    public interface BusOpener {
+        I2cBus open() throws IOException;
+    }
+
     private PeripheralManager manager;      // Pi peripheral manager declaration.
-    private I2cDevice I2C1;                 // I2C Interface declaration.
+    private I2cBus I2C1;                    // I2C Interface declaration.
+
+    private final byte[] mSensorBlock = new byte[PicRegisters.SENSOR_BLOCK_LENGTH];  // Reused buffer for burst reads.
+    private boolean mBurstRead = true;      // Set false if the PIC firmware can't auto increment.
+
+    private final int[] mSensor = new int[PicRegisters.SENSOR_COUNT];                // Last value read from each sensor.
+    private final long[] mSensorTime = new long[PicRegisters.SENSOR_COUNT];          // When it was read, System.nanoTime().
+    private final boolean[] mSensorValid = new boolean[PicRegisters.SENSOR_COUNT];   // False until read, or after a reopen.
+    private final long[] mMaxAgeNanos = new long[PicRegisters.SENSOR_COUNT];         // Freshness budget, 0 to always read.
+    private long mSensorHits = 0;           // Sensor reads answered from the cache.
+    private long mSensorMisses = 0;         // Sensor reads that went on the bus.
+
+    private final int[] mShadow = new int[PicRegisters.ACTUATOR_COUNT];              // Last value written to each actuator.
+    private final boolean[] mShadowValid = new boolean[PicRegisters.ACTUATOR_COUNT]; // False until written, or after a failure.
+    private final long[] mLastWrite = new long[PicRegisters.ACTUATOR_COUNT];         // Time of last bus write in milliseconds.
+    private long mRefreshMs = 0;            // Rewrite unchanged values this often, 0 to never.
+    private long mWritesIssued = 0;         // Actuator writes that went on the bus.
+    private long mWritesSkipped = 0;        // Actuator writes matching the shadow copy.
+
+    private final I2cMetrics mMetrics = new I2cMetrics();  // Per register counters.
+    private int mAttempts = DEFAULT_ATTEMPTS;
+    private long mBackoffNanos = DEFAULT_BACKOFF_NANOS;
+    private int mStuckFailures = DEFAULT_STUCK_FAILURES;
+    private long mReopenIntervalMs = DEFAULT_REOPEN_INTERVAL_MS;
+    private BusOpener mOpener;              // Null if the bus can't be reopened.
+    private int mConsecutiveFailures = 0;   // Operations failed since the last success.
+    private long mLastReopenMs = Long.MIN_VALUE / 2;
 
     // constructor
     public RaspPi()
@@ -32,6 +94,30 @@ public class RaspPi {
         //Log.d(TAG, "Available GPIO: " + manager.getGpioList());
     }
 
+    /**
+     *  Description:
+     *      Constructor for an already opened bus, such as the
+     *      PIC16 simulator when running off device.
+     *
+     * @param bus   Opened I2C bus.
+     */
+    public RaspPi(I2cBus bus)
+    {
+        I2C1 = bus;
+    }
+
+    /**
+     *  Description:
+     *      Constructor for an already opened device. Used by
+     *      unit tests to run against a fake I2C device.
+     *
+     * @param device    Opened I2C device.
+     */
+    RaspPi(I2cDevice device)
+    {
+        this(new ThingsI2cBus(device));
+    }
+
     /**
      * Lists various I2C slaves on the bus.
      *
@@ -54,15 +140,59 @@ public class RaspPi {
      * @param name  Name of I2C device as String.
      * @param address   Address of device as integer.
      */
-    public void setupI2C(String name, int address)
+    public void setupI2C(final String name, final int address)
     {
+        mOpener = new BusOpener() {
+            @Override
+            public I2cBus open() throws IOException {
+                return new ThingsI2cBus(manager.openI2cDevice(name, address));
+            }
+        };
         try {
-            I2C1 = this.manager.openI2cDevice(name, address);
+            I2C1 = mOpener.open();
         } catch (IOException e) {
-            Log.w(TAG, "Can't access I2C", e);
+            Log.w(TAG, "Can't access I2C", e);     // Opened again once operations start failing.
         }
     }
 
+    /**
+     *  Description:
+     *      Sets how a stuck bus is opened again. setupI2C sets
+     *      one for the Pi's peripheral.
+     *
+     * @param opener    Opens a new bus, null to never reopen.
+     */
+    public void setBusOpener(BusOpener opener) {
+        mOpener = opener;
+    }
+
+    /**
+     *  Description:
+     *      Sets the retries of failed transactions.
+     *
+     * @param attempts      Tries per operation, 1 for no retry.
+     * @param backoffNanos  Pause before the first retry, doubled for each next one.
+     */
+    public void setRetryPolicy(int attempts, long backoffNanos) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+        mAttempts = attempts;
+        mBackoffNanos = backoffNanos;
+    }
+
+    /**
+     *  Description:
+     *      Sets when the bus is considered stuck and reopened.
+     *
+     * @param failures      Failed operations in a row, after retries.
+     * @param intervalMs    Least time between two reopens.
+     */
+    public void setStuckPolicy(int failures, long intervalMs) {
+        mStuckFailures = failures;
+        mReopenIntervalMs = intervalMs;
+    }
+
     /**
      * Description:
      *      Function to deallocate all I2C resources.
@@ -90,7 +220,7 @@ public class RaspPi {
      */
     public int readI2Cbyte(int address)  {
         try {
-            byte value = this.I2C1.readRegByte(address);
+            byte value = readRegByteI2C(address);
             int data = value & 0xFF;
             Log.i(TAG, "Byte Read: " + data);
             return data;
@@ -108,8 +238,9 @@ public class RaspPi {
      * @param data  Data for register
      * @throws IOException I2C exception
      */
+    @Override
     public void writeRegWordI2C(int reg, short data) throws IOException {
-        this.I2C1.writeRegWord(reg, data);
+        transact(OP_WRITE_WORD, reg, null, data, mAttempts);
     }
 
     /**
@@ -120,8 +251,399 @@ public class RaspPi {
      * @return  Returns a 16 bit word.
      * @throws IOException I2C exception.
      */
+    @Override
     public int readRegWordI2C(int address) throws IOException {
-        return this.I2C1.readRegWord(address);
+        return transact(OP_READ_WORD, address, null, 0, mAttempts);
+    }
+
+    /**
+     *  Description:
+     *      Reads a byte.
+     *
+     * @param reg   Address to read from.
+     * @return  Byte in the register.
+     * @throws IOException I2C exception.
+     */
+    @Override
+    public byte readRegByteI2C(int reg) throws IOException {
+        return (byte) transact(OP_READ_BYTE, reg, null, 0, mAttempts);
+    }
+
+    /**
+     *  Description:
+     *      Reads a range of consecutive registers in a single
+     *      I2C transaction.
+     *
+     * @param start     First register to read.
+     * @param buffer    Buffer to hold the register bytes.
+     * @param length    Number of bytes to read.
+     * @throws IOException I2C exception.
+     */
+    @Override
+    public void readRegBufferI2C(int start, byte[] buffer, int length) throws IOException {
+        transact(OP_READ_BUFFER, start, buffer, length, mAttempts);
+    }
+
+    /**
+     *  Description:
+     *      Enables or disables burst reads of the sensor block.
+     *      When disabled every sensor register is read on its own.
+     *
+     * @param enabled   True to read all sensors in one transaction.
+     */
+    public void setBurstRead(boolean enabled) {
+        mBurstRead = enabled;
+    }
+
+    /**
+     *  Description:
+     *      Sets how old the cached value of a sensor register may be
+     *      before it is read from the PIC again.
+     *
+     * @param reg       PicRegisters.ADA5_ADDRESS to PicRegisters.ADC5_ADDRESS.
+     * @param maxAgeMs  Freshness budget in milliseconds, 0 to read every time.
+     */
+    public void setSensorMaxAge(int reg, long maxAgeMs) {
+        mMaxAgeNanos[PicRegisters.sensorIndex(reg)] = Math.max(maxAgeMs, 0) * 1000000L;
+    }
+
+    /**
+     *  Description:
+     *      Forgets the cached sensor values so every sensor is read
+     *      on the next call.
+     */
+    public void invalidateSensors() {
+        for (int i = 0; i < PicRegisters.SENSOR_COUNT; i++) {
+            mSensorValid[i] = false;
+        }
+    }
+
+    /**
+     *  Description:
+     *      Reads one sensor register through the cache.
+     *
+     * @param reg   PicRegisters.ADA5_ADDRESS to PicRegisters.ADC5_ADDRESS.
+     * @return  Channel value, cached if fresh enough.
+     * @throws IOException I2C exception.
+     */
+    public int readSensor(int reg) throws IOException {
+        int i = PicRegisters.sensorIndex(reg);
+        long now = System.nanoTime();
+        if (isStale(i, now)) {
+            storeSensor(i, readRegWordI2C(reg), now);
+        } else {
+            mSensorHits++;
+        }
+        return mSensor[i];
+    }
+
+    /**
+     *  Description:
+     *      Reads ADA5, ADC3, ADC4 and ADC5 into the given sample.
+     *      Only the registers whose cached value is stale go on the
+     *      bus. The span from the first to the last stale register is
+     *      pulled in one transaction. If the burst read fails the
+     *      stale registers are read one at a time instead, without
+     *      retrying the burst.
+     *
+     * @param sample    Sample to fill with the decoded channel values,
+     *                  fresh set to the registers that went on the bus.
+     * @throws IOException I2C exception from the per register reads.
+     */
+    public void readSensors(Sample sample) throws IOException {
+        long now = System.nanoTime();
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < PicRegisters.SENSOR_COUNT; i++) {
+            if (isStale(i, now)) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        if (first >= 0) {
+            mSensorHits += first + PicRegisters.SENSOR_COUNT - 1 - last;     // Fresh ones outside the span.
+            readStale(first, last, now);
+        } else {
+            mSensorHits += PicRegisters.SENSOR_COUNT;
+        }
+        int fresh = 0;
+        for (int i = 0; i < PicRegisters.SENSOR_COUNT; i++) {
+            if (mSensorValid[i] && mSensorTime[i] == now) {
+                fresh |= 1 << i;        // Read on the bus just now. Sensor order is the SampleFilter order.
+            }
+        }
+        sample.fresh = fresh;
+        sample.ada5 = mSensor[PicRegisters.sensorIndex(PicRegisters.ADA5_ADDRESS)];
+        sample.adc3 = mSensor[PicRegisters.sensorIndex(PicRegisters.ADC3_ADDRESS)];
+        sample.adc4 = mSensor[PicRegisters.sensorIndex(PicRegisters.ADC4_ADDRESS)];
+        sample.adc5 = mSensor[PicRegisters.sensorIndex(PicRegisters.ADC5_ADDRESS)];
+    }
+
+    /** Reads the sensors first to last, fresh ones in between come along in a burst and count as reads. */
+    private void readStale(int first, int last, long now) throws IOException {
+        if (mBurstRead && last > first) {
+            int length = 2 * (last - first + 1);
+            try {
+                transact(OP_READ_BUFFER, PicRegisters.sensorRegister(first), mSensorBlock, length, 1);
+                for (int i = first; i <= last; i++) {
+                    storeSensor(i, PicRegisters.wordAt(mSensorBlock, 2 * (i - first)), now);
+                }
+                return;
+            } catch (IOException e) {
+                PiEvents.RECORDER.record(PiEvents.BURST_FAILED, PicRegisters.sensorRegister(first), length);   // Reading registers one at a time.
+            }
+        }
+        for (int i = first; i <= last; i++) {
+            if (isStale(i, now)) {
+                storeSensor(i, readRegWordI2C(PicRegisters.sensorRegister(i)), now);
+            } else {
+                mSensorHits++;
+            }
+        }
+    }
+
+    private boolean isStale(int i, long now) {
+        return !mSensorValid[i] || mMaxAgeNanos[i] == 0 || now - mSensorTime[i] >= mMaxAgeNanos[i];
+    }
+
+    private void storeSensor(int i, int word, long now) {
+        mSensor[i] = PicRegisters.sensorValue(PicRegisters.sensorRegister(i), word);
+        mSensorTime[i] = now;
+        mSensorValid[i] = true;
+        mSensorMisses++;
+    }
+
+    /**
+     *  Description:
+     *      Writes a byte to the register designated.
+     *
+     * @param reg   Address of register
+     * @param data  Data for register
+     * @throws IOException I2C exception
+     */
+    @Override
+    public void writeRegByteI2C(int reg, byte data) throws IOException {
+        transact(OP_WRITE_BYTE, reg, null, data, mAttempts);
+    }
+
+    /**
+     *  Description:
+     *      Runs one operation on the bus with timing, retries and
+     *      stuck bus detection.
+     *
+     * @param op        OP_ constant.
+     * @param reg       Register, or the first one for buffers.
+     * @param buffer    Buffer for OP_READ_BUFFER, otherwise null.
+     * @param value     Data to write, or the length for OP_READ_BUFFER.
+     * @param attempts  Tries before giving up.
+     * @return  Value read, 0 for writes and buffers.
+     * @throws IOException Error of the last attempt.
+     */
+    private int transact(int op, int reg, byte[] buffer, int value, int attempts) throws IOException {
+        IOException failure = null;
+        long backoff = mBackoffNanos;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            I2cBus bus = I2C1;
+            if (bus == null) {
+                failure = new IOException("I2C bus is not open");
+                break;
+            }
+            if (attempt > 0) {
+                mMetrics.retried(reg);
+                if (backoff > 0) {
+                    LockSupport.parkNanos(backoff);     // Give a busy PIC time to let go of the bus.
+                }
+                backoff *= 2;
+            }
+            long start = System.nanoTime();
+            try {
+                int result = 0;
+                switch (op) {
+                    case OP_READ_BYTE:
+                        result = bus.readRegByteI2C(reg);
+                        break;
+                    case OP_READ_WORD:
+                        result = bus.readRegWordI2C(reg);
+                        break;
+                    case OP_READ_BUFFER:
+                        bus.readRegBufferI2C(reg, buffer, value);
+                        break;
+                    case OP_WRITE_BYTE:
+                        bus.writeRegByteI2C(reg, (byte) value);
+                        break;
+                    default:
+                        bus.writeRegWordI2C(reg, (short) value);
+                        break;
+                }
+                mMetrics.record(reg, System.nanoTime() - start, true);
+                mConsecutiveFailures = 0;
+                return result;
+            } catch (IOException e) {
+                mMetrics.record(reg, System.nanoTime() - start, false);
+                failure = e;
+            }
+        }
+        if (++mConsecutiveFailures >= mStuckFailures) {
+            reopen();
+        }
+        throw failure;
+    }
+
+    /**
+     *  Description:
+     *      Closes and opens the bus again, at most once per reopen
+     *      interval. Actuators are rewritten on their next update in
+     *      case the PIC was reset too.
+     */
+    private void reopen() {
+        long now = System.nanoTime() / 1000000;
+        if (mOpener == null || now - mLastReopenMs < mReopenIntervalMs) {
+            return;
+        }
+        mLastReopenMs = now;
+        int failures = mConsecutiveFailures;
+        cleanupI2C();
+        try {
+            I2C1 = mOpener.open();
+            mConsecutiveFailures = 0;
+            mMetrics.reopened();
+            invalidateActuators();
+            invalidateSensors();
+            PiEvents.RECORDER.record(PiEvents.BUS_REOPEN, failures, 1);
+        } catch (IOException e) {
+            PiEvents.RECORDER.record(PiEvents.BUS_REOPEN, failures, 0);    // Tried again after the reopen interval.
+        }
+    }
+
+    public I2cMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     *  Description:
+     *      Health summary of the bus: counters per register plus
+     *      the current run of failures.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public StringBuilder health(StringBuilder out) {
+        mMetrics.summary(out);
+        out.append("  open=").append(I2C1 != null)
+                .append(" failing=").append(mConsecutiveFailures)
+                .append(" writes=").append(mWritesIssued)
+                .append(" skipped=").append(mWritesSkipped)
+                .append(" sensorReads=").append(mSensorMisses)
+                .append(" cached=").append(mSensorHits)
+                .append('\n');
+        return out;
+    }
+
+    /**
+     *  Description:
+     *      Same as cleanupI2C, for use through I2cBus.
+     */
+    @Override
+    public void close() {
+        cleanupI2C();
+    }
+
+    /**
+     *  Description:
+     *      Sets how often unchanged actuator values are written again,
+     *      in case the PIC was reset or missed a write.
+     *
+     * @param refreshMs Refresh period in milliseconds, 0 to only write on change.
+     */
+    public void setActuatorRefresh(long refreshMs) {
+        mRefreshMs = refreshMs;
+    }
+
+    /**
+     *  Description:
+     *      Writes an actuator register (PWM3-6 or DAC1) only if the value
+     *      differs from the shadow copy of what was last written, or the
+     *      refresh period has passed. DAC1 is written as a single byte.
+     *
+     * @param reg   PicRegisters.PWM3_ADDRESS to PicRegisters.DAC1_ADDRESS.
+     * @param value Value for the register.
+     * @return  True if the value went on the bus.
+     * @throws IOException I2C exception. The shadow is cleared so the next call retries.
+     */
+    public boolean writeActuator(int reg, int value) throws IOException {
+        if (skipIfUnchanged(reg, value)) {
+            return false;
+        }
+        value = maskActuator(reg, value);
+        long now = System.nanoTime() / 1000000;
+
+        mShadowValid[reg] = false;
+        if (reg == PicRegisters.DAC1_ADDRESS) {
+            writeRegByteI2C(reg, (byte) value);
+        } else {
+            writeRegWordI2C(reg, (short) value);
+        }
+        mShadow[reg] = value;
+        mShadowValid[reg] = true;
+        mLastWrite[reg] = now;
+        mWritesIssued++;
+        return true;
+    }
+
+    /**
+     *  Description:
+     *      Checks a value against the shadow copy without touching
+     *      the bus, so the bus manager only queues real writes. A
+     *      value that doesn't need writing is counted as skipped.
+     *
+     * @param reg   PicRegisters.PWM3_ADDRESS to PicRegisters.DAC1_ADDRESS.
+     * @param value Value for the register.
+     * @return  False if writeActuator would put the value on the bus.
+     */
+    public boolean skipIfUnchanged(int reg, int value) {
+        if (reg < 0 || reg >= PicRegisters.ACTUATOR_COUNT) {
+            throw new IllegalArgumentException("Not an actuator register: " + reg);
+        }
+        value = maskActuator(reg, value);
+        long now = System.nanoTime() / 1000000;
+        if (mShadowValid[reg] && mShadow[reg] == value
+                && (mRefreshMs <= 0 || now - mLastWrite[reg] < mRefreshMs)) {
+            mWritesSkipped++;
+            return true;
+        }
+        return false;
+    }
+
+    private static int maskActuator(int reg, int value) {
+        return (reg == PicRegisters.DAC1_ADDRESS) ? (value & PicRegisters.DAC_MASK) : (value & 0x0000FFFF);
+    }
+
+    /**
+     *  Description:
+     *      Forgets the shadow copies so every actuator is written on its next update.
+     */
+    public void invalidateActuators() {
+        for (int i = 0; i < PicRegisters.ACTUATOR_COUNT; i++) {
+            mShadowValid[i] = false;
+        }
+    }
+
+    public long getWritesIssued() {
+        return mWritesIssued;
+    }
+
+    public long getWritesSkipped() {
+        return mWritesSkipped;
+    }
+
+    public long getSensorHits() {
+        return mSensorHits;
+    }
+
+    public long getSensorMisses() {
+        return mSensorMisses;
     }
 
 }
@@ -0,0 +1,223 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the sampling engine. It owns a
+ *  high priority thread that reads the PIC16 sensors at a fixed rate,
+ *  filters them, runs the control stage, records every sample in the history store
+ *  and publishes it to the queues of its consumers. Nothing on this
+ *  thread touches the UI or Firebase. It is also the bus thread of the
+ *  BusManager: each cycle runs the bus work that is due, then the
+ *  control stage, then puts the writes it queued on the bus.
+ *
+ */
+
+package pdx.raspberry.pi_app;
+
+import android.os.Process;
+
+import pdx.raspberry.core.Sample;
+import pdx.raspberry.core.SampleFilter;
+import pdx.raspberry.core.SampleQueue;
+import pdx.raspberry.core.TimeSeriesStore;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+public class SamplingEngine implements Runnable {
+
+    private static final String TAG = "SamplingEngine";
+
+    /**
+     *  Description:
+     *      Control logic run on the sampling thread after each read.
+     *      Fills the output fields of the sample.
+     */
+    public interface Controller {
+        void control(Sample sample) throws IOException;
+    }
+
+    private final BusManager mBus;
+    private final Controller mController;
+    private final long mPeriodNanos;    // Time between sample deadlines.
+    private volatile SampleQueue[] mConsumers = new SampleQueue[0];   // Copied on change, read without locking.
+    private final Sample mSample = new Sample();
+    private volatile TimeSeriesStore mStore = null;     // History of every sample, optional.
+    private volatile SampleFilter mFilter = null;       // Filter stage after the read, optional.
+
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+
+    private volatile long mOverruns = 0;    // Deadlines missed because a cycle ran long.
+    private volatile long mErrors = 0;      // Cycles with a failed sensor read.
+
+    /**
+     * @param raspPi        I2C interface to the PIC.
+     * @param rateHz        Samples per second.
+     * @param controller    Control stage run after every read, may be null.
+     */
+    public SamplingEngine(RaspPi raspPi, int rateHz, Controller controller) {
+        this(BusManager.single(raspPi), rateHz, controller);
+    }
+
+    /**
+     * @param bus           Boards on the I2C bus, MAIN is the one sampled.
+     * @param rateHz        Samples per second.
+     * @param controller    Control stage run after every read, may be null.
+     */
+    public SamplingEngine(BusManager bus, int rateHz, Controller controller) {
+        if (rateHz < 1) {
+            throw new IllegalArgumentException("rateHz < 1");
+        }
+        mBus = bus;
+        mController = controller;
+        mPeriodNanos = 1000000000L / rateHz;
+    }
+
+    /**
+     *  Description:
+     *      Registers a queue to receive a copy of every sample.
+     *
+     * @param queue Consumer queue.
+     */
+    public synchronized void addConsumer(SampleQueue queue) {
+        SampleQueue[] consumers = Arrays.copyOf(mConsumers, mConsumers.length + 1);
+        consumers[consumers.length - 1] = queue;
+        mConsumers = consumers;
+    }
+
+    /**
+     *  Description:
+     *      Sets the filters applied to every successful read, before
+     *      the control stage. Only used on the sampling thread once set.
+     *
+     * @param filter    Filter stage, null for raw values.
+     */
+    public void setFilter(SampleFilter filter) {
+        mFilter = filter;
+    }
+
+    /**
+     *  Description:
+     *      Sets the store every sample is recorded into on the sampling thread.
+     *
+     * @param store History store, or null to stop recording.
+     */
+    public void setStore(TimeSeriesStore store) {
+        mStore = store;
+    }
+
+    public synchronized void removeConsumer(SampleQueue queue) {
+        SampleQueue[] consumers = new SampleQueue[mConsumers.length];
+        int count = 0;
+        for (SampleQueue q : mConsumers) {
+            if (q != queue) {
+                consumers[count++] = q;
+            }
+        }
+        mConsumers = Arrays.copyOf(consumers, count);
+    }
+
+    /**
+     *  Description:
+     *      Starts the sampling thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     *  Description:
+     *      Stops the sampling thread and waits for the current
+     *      cycle to finish so the I2C device can be closed safely.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     *  Description:
+     *      Sampling loop. Deadlines are kept on a fixed grid from the
+     *      start time so the time spent in a cycle doesn't add drift.
+     *      If a cycle overruns, the missed deadlines are skipped instead
+     *      of running a burst of late samples.
+     */
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        long next = System.nanoTime();
+        while (mRunning) {
+            sampleOnce();
+
+            next += mPeriodNanos;
+            long now = System.nanoTime();
+            if (now - next > 0) {
+                long missed = (now - next) / mPeriodNanos + 1;
+                mOverruns += missed;
+                next += missed * mPeriodNanos;
+            }
+            long wait;
+            while (mRunning && (wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    /**
+     *  Description:
+     *      Runs one read, control and publish cycle.
+     */
+    void sampleOnce() {
+        mSample.seq++;
+        mSample.time = System.currentTimeMillis();
+        if (mBus.poll(System.nanoTime(), mSample)) {
+            SampleFilter filter = mFilter;
+            if (filter != null) {
+                filter.apply(mSample);      // Failed reads keep the last filtered values.
+            }
+        } else {
+            mErrors++;
+            PiEvents.RECORDER.record(PiEvents.READ_FAILED, (int) mErrors);
+        }
+        if (mController != null) {
+            try {
+                mController.control(mSample);
+            } catch (IOException e) {
+                mErrors++;
+                PiEvents.RECORDER.record(PiEvents.CONTROL_FAILED, (int) mErrors);
+            }
+        }
+        mBus.flushWrites(System.nanoTime());    // Outputs go out in the cycle that computed them.
+        TimeSeriesStore store = mStore;
+        if (store != null) {
+            store.append(mSample);
+        }
+        for (SampleQueue queue : mConsumers) {
+            queue.offer(mSample);
+        }
+    }
+
+    public long getOverruns() {
+        return mOverruns;
+    }
+
+    public long getErrors() {
+        return mErrors;
+    }
+}
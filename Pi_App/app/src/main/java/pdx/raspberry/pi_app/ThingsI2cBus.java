@@ -0,0 +1,58 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the I2C bus backed by an Android
+ *  Things I2cDevice. This is the only class touching the Pi's I2C
+ *  peripheral directly.
+ *
+ */
+
+package pdx.raspberry.pi_app;
+
+import com.google.android.things.pio.I2cDevice;
+
+import pdx.raspberry.core.I2cBus;
+
+import java.io.IOException;
+
+public class ThingsI2cBus implements I2cBus {
+
+    private final I2cDevice mDevice;
+
+    /**
+     * @param device    Opened I2C device.
+     */
+    public ThingsI2cBus(I2cDevice device) {
+        mDevice = device;
+    }
+
+    @Override
+    public byte readRegByteI2C(int reg) throws IOException {
+        return mDevice.readRegByte(reg);
+    }
+
+    @Override
+    public int readRegWordI2C(int reg) throws IOException {
+        return mDevice.readRegWord(reg);
+    }
+
+    @Override
+    public void readRegBufferI2C(int start, byte[] buffer, int length) throws IOException {
+        mDevice.readRegBuffer(start, buffer, length);
+    }
+
+    @Override
+    public void writeRegByteI2C(int reg, byte data) throws IOException {
+        mDevice.writeRegByte(reg, data);
+    }
+
+    @Override
+    public void writeRegWordI2C(int reg, short data) throws IOException {
+        mDevice.writeRegWord(reg, data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDevice.close();
+    }
+}
@@ -0,0 +1,85 @@
+package pdx.raspberry.pi_app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pdx.raspberry.core.BusScheduler;
+import pdx.raspberry.core.Pic16Simulator;
+import pdx.raspberry.core.PicRegisters;
+import pdx.raspberry.core.Sample;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs two simulated PIC16 boards sharing the bus through BusManager.
+ */
+public class BusManagerTest {
+
+    private static final long MS = 1000000L;
+
+    private Pic16Simulator mainPic;
+    private Pic16Simulator auxPic;
+    private BusManager bus;
+    private int aux;
+    private Sample sample;
+
+    @Before
+    public void setUp() {
+        mainPic = new Pic16Simulator(1);
+        mainPic.setRealTime(false);
+        auxPic = new Pic16Simulator(2);
+        auxPic.setRealTime(false);
+        bus = new BusManager();
+        bus.addBoard("pic0", new RaspPi(mainPic), 0, 0, 0);
+        aux = bus.addBoard("pic1", new RaspPi(auxPic), 10, 20, 1);  // Slow board on its own budget.
+        sample = new Sample();
+    }
+
+    @Test
+    public void poll_readsMainEveryCycleAndAuxAtItsRate() {
+        int auxReads = 0;
+        for (long t = 0; t < 1000 * MS; t += 20 * MS) {     // 50 Hz for one second.
+            assertTrue(bus.poll(t, sample));
+            if (bus.takeSensors(aux, new Sample())) {
+                auxReads++;
+            }
+        }
+        assertEquals(50, mainPic.getTransactions());
+        assertEquals(10, auxReads);
+        assertEquals(10, auxPic.getTransactions());
+    }
+
+    @Test
+    public void write_mergesUpdatesAndSkipsNoOps() {
+        bus.write(BusManager.MAIN, PicRegisters.PWM4_ADDRESS, 100);
+        bus.write(BusManager.MAIN, PicRegisters.PWM4_ADDRESS, 200);
+        bus.write(BusManager.MAIN, PicRegisters.PWM4_ADDRESS, 300);
+        bus.flushWrites(0);
+
+        assertEquals(1, mainPic.getTransactions());
+        assertEquals(300, mainPic.getOutput(PicRegisters.PWM4_ADDRESS));
+
+        bus.write(BusManager.MAIN, PicRegisters.PWM4_ADDRESS, 300);     // Already on the PIC.
+        assertEquals(0, bus.getScheduler().getWaiting(BusScheduler.ACTUATOR));
+        bus.flushWrites(MS);
+        assertEquals(1, mainPic.getTransactions());
+    }
+
+    @Test
+    public void writes_goOutBeforePolls() {
+        bus.write(aux, PicRegisters.PWM3_ADDRESS, 500);
+        bus.poll(0, sample);
+
+        assertEquals(500, auxPic.getOutput(PicRegisters.PWM3_ADDRESS));
+        assertEquals(1, auxPic.getTransactions());      // Write took the only credit, the poll waits.
+        assertFalse(bus.takeSensors(aux, sample));
+    }
+
+    @Test
+    public void failedPoll_reportedAsNoData() {
+        mainPic.setStuck(true);
+        assertFalse(bus.poll(0, sample));
+        assertEquals(1, bus.getScheduler().getFailed(BusManager.MAIN));
+        assertTrue(bus.health(new StringBuilder()).toString().contains("pic1:"));
+    }
+}
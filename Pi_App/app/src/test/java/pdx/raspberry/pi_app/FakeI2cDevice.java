@@ -0,0 +1,79 @@
+package pdx.raspberry.pi_app;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * I2C device backed by a register array. Counts every bus transaction
+ * so tests can check how much bus time a call costs.
+ */
+public class FakeI2cDevice implements I2cDevice {
+
+    final byte[] registers = new byte[32];
+    int transactions = 0;
+    boolean failBufferReads = false;
+
+    void setWord(int reg, int value) {
+        registers[reg] = (byte) value;
+        registers[reg + 1] = (byte) (value >> 8);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return "FAKE";
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) {
+        transactions++;
+    }
+
+    @Override
+    public byte readRegByte(int reg) {
+        transactions++;
+        return registers[reg];
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        transactions++;
+        if (failBufferReads) {
+            throw new IOException("NACK");
+        }
+        System.arraycopy(registers, reg, buffer, 0, length);
+    }
+
+    @Override
+    public short readRegWord(int reg) {
+        transactions++;
+        return (short) ((registers[reg] & 0xFF) | ((registers[reg + 1] & 0xFF) << 8));
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) {
+        transactions++;
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) {
+        transactions++;
+        System.arraycopy(buffer, 0, registers, reg, length);
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) {
+        transactions++;
+        registers[reg] = data;
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) {
+        transactions++;
+        setWord(reg, data);
+    }
+}
@@ -0,0 +1,164 @@
+package pdx.raspberry.pi_app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pdx.raspberry.core.AdcFilter;
+import pdx.raspberry.core.FirebaseData;
+import pdx.raspberry.core.Pic16Simulator;
+import pdx.raspberry.core.PicRegisters;
+import pdx.raspberry.core.Sample;
+import pdx.raspberry.core.SampleFilter;
+import pdx.raspberry.core.SampleQueue;
+import pdx.raspberry.core.TelemetryDelta;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs RaspPi and the sampling loop against the simulated PIC16.
+ */
+public class Pic16SimulatorTest {
+
+    private Pic16Simulator pic;
+    private RaspPi raspPi;
+    private Sample sample;
+
+    @Before
+    public void setUp() {
+        pic = new Pic16Simulator(1);
+        pic.setRealTime(false);
+        pic.setTemperature(21.0);
+        raspPi = new RaspPi(pic);
+        sample = new Sample();
+    }
+
+    @Test
+    public void readSensors_seesPlantAndPwmOutputs() throws Exception {
+        raspPi.writeActuator(PicRegisters.PWM4_ADDRESS, 300);
+        raspPi.writeActuator(PicRegisters.PWM6_ADDRESS, 2000);    // ADC saturates at 10 bits.
+
+        raspPi.readSensors(sample);
+
+        assertEquals(710, sample.ada5);
+        assertEquals(300, sample.adc3);
+        assertEquals(0, sample.adc4);
+        assertEquals(PicRegisters.ADC_MASK, sample.adc5);
+    }
+
+    @Test
+    public void fanCoolsPlant() throws Exception {
+        pic.setPlant(24, 0.05, 0.1, 120);
+        raspPi.writeActuator(PicRegisters.PWM3_ADDRESS, Pic16Simulator.PWM_MAX);
+
+        pic.advance(3600);
+
+        assertEquals(18.0, pic.getTemperature(), 0.1);
+    }
+
+    @Test
+    public void burstUnsupported_fallsBack() throws Exception {
+        pic.setBurstSupported(false);
+
+        raspPi.readSensors(sample);
+
+        assertEquals(1 + 4, pic.getTransactions());
+        assertEquals(710, sample.ada5);
+    }
+
+    @Test(expected = IOException.class)
+    public void stuckBus_failsTransactions() throws Exception {
+        pic.setStuck(true);
+
+        raspPi.readSensors(sample);
+    }
+
+    @Test
+    public void samplingLoad_fitsA100HzCycleAtRealisticBusTiming() throws Exception {
+        pic.setBusTiming(100000, 90000);    // 100 kHz bus, counted in simulated time.
+        pic.setNoise(2);
+        SampleQueue queue = new SampleQueue(1000);
+        SamplingEngine engine = new SamplingEngine(raspPi, 100, new SamplingEngine.Controller() {
+            @Override
+            public void control(Sample s) throws IOException {
+                raspPi.writeActuator(PicRegisters.PWM3_ADDRESS, 511);
+            }
+        });
+        engine.addConsumer(queue);
+
+        for (int i = 0; i < 100; i++) {
+            engine.sampleOnce();
+        }
+
+        long burst = 100000 + 90000 * PicRegisters.SENSOR_BLOCK_LENGTH;
+        long write = 100000 + 90000 * 2;
+        assertEquals(100 * burst + write, pic.getBusNanos());    // One burst per cycle and the first write.
+        assertTrue(pic.getBusNanos() / 100 < 1000000000L / 100 / 10);   // Under a tenth of the 10 ms cycle.
+        assertEquals(100, queue.size());
+        assertEquals(0, engine.getErrors());
+        assertEquals(1, raspPi.getWritesIssued());
+        assertEquals(511, pic.getOutput(PicRegisters.PWM3_ADDRESS));
+    }
+
+    @Test
+    public void filterStage_seesOnlyFreshReadings() throws Exception {
+        pic.setNoise(3);
+        final int[] fed = new int[1];
+        SampleFilter filter = new SampleFilter();
+        filter.setFilter(SampleFilter.ADA5, new AdcFilter(3, 1, 0) {
+            @Override
+            public int filter(int raw) {
+                fed[0]++;
+                return super.filter(raw);
+            }
+        });
+        raspPi.setSensorMaxAge(PicRegisters.ADA5_ADDRESS, 60000);
+        SamplingEngine engine = new SamplingEngine(raspPi, 100, null);
+        engine.setFilter(filter);
+
+        for (int i = 0; i < 50; i++) {
+            engine.sampleOnce();
+        }
+        assertEquals(1, fed[0]);        // 49 cached copies held the output.
+
+        raspPi.invalidateSensors();
+        engine.sampleOnce();
+        assertEquals(2, fed[0]);
+    }
+
+    /**
+     * Runs the engine by hand on a noisy ADC and counts the ADC3 uploads
+     * that get past a deadband of 2 counts.
+     */
+    private long adcUploads(SampleFilter filter) throws IOException {
+        pic.setNoise(3);
+        pic.writeRegWordI2C(PicRegisters.PWM4_ADDRESS, (short) 400);   // Read back on ADC3.
+        SampleQueue queue = new SampleQueue(1);
+        SamplingEngine engine = new SamplingEngine(raspPi, 50, null);
+        engine.setFilter(filter);
+        engine.addConsumer(queue);
+        TelemetryDelta delta = new TelemetryDelta(Long.MAX_VALUE);
+        delta.setDeadband(TelemetryDelta.ADC3IN, 2);
+        FirebaseData upload = new FirebaseData();
+        Sample out = new Sample();
+
+        for (int i = 0; i < 1000; i++) {
+            engine.sampleOnce();
+            queue.poll(out);
+            upload.ADC3IN = out.adc3;
+            delta.changes(upload, i);
+        }
+        return delta.getFieldsSent();
+    }
+
+    @Test
+    public void filterStage_letsDeadbandSuppressNoise() throws Exception {
+        long raw = adcUploads(null);
+        SampleFilter filter = new SampleFilter();
+        filter.setFilter(SampleFilter.ADC3, new AdcFilter(3, 1, 2));
+        long filtered = adcUploads(filter);
+
+        assertTrue("raw " + raw + " filtered " + filtered, filtered * 10 < raw);
+    }
+}
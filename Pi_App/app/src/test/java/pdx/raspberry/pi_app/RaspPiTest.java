@@ -0,0 +1,262 @@
+package pdx.raspberry.pi_app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pdx.raspberry.core.I2cBus;
+import pdx.raspberry.core.Pic16Simulator;
+import pdx.raspberry.core.PicRegisters;
+import pdx.raspberry.core.Sample;
+import pdx.raspberry.core.SampleFilter;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for RaspPi against a fake I2C device.
+ */
+public class RaspPiTest {
+
+    private FakeI2cDevice device;
+    private RaspPi raspPi;
+    private Sample sample;
+
+    @Before
+    public void setUp() {
+        device = new FakeI2cDevice();
+        device.setWord(PicRegisters.ADA5_ADDRESS, 720);
+        device.setWord(PicRegisters.ADC3_ADDRESS, 0x0123);
+        device.setWord(PicRegisters.ADC4_ADDRESS, 0xFFFF);    // Upper bits must be masked off.
+        device.setWord(PicRegisters.ADC5_ADDRESS, 0x03FF);
+        raspPi = new RaspPi(device);
+        sample = new Sample();
+    }
+
+    @Test
+    public void readSensors_usesOneTransaction() throws Exception {
+        raspPi.readSensors(sample);
+
+        assertEquals(1, device.transactions);
+        assertEquals(720, sample.ada5);
+        assertEquals(0x0123, sample.adc3);
+        assertEquals(0x03FF, sample.adc4);
+        assertEquals(0x03FF, sample.adc5);
+    }
+
+    @Test
+    public void readSensors_fallsBackToRegisterReads() throws Exception {
+        device.failBufferReads = true;
+
+        raspPi.readSensors(sample);
+
+        assertEquals(1 + 4, device.transactions);
+        assertEquals(720, sample.ada5);
+        assertEquals(0x0123, sample.adc3);
+        assertEquals(0x03FF, sample.adc4);
+        assertEquals(0x03FF, sample.adc5);
+    }
+
+    @Test
+    public void readSensors_burstDisabled() throws Exception {
+        raspPi.setBurstRead(false);
+
+        raspPi.readSensors(sample);
+
+        assertEquals(4, device.transactions);
+        assertEquals(720, sample.ada5);
+    }
+
+    @Test
+    public void sensorCache_readsOnlyStaleRegisters() throws Exception {
+        raspPi.setSensorMaxAge(PicRegisters.ADA5_ADDRESS, 60000);
+        raspPi.readSensors(sample);
+        device.setWord(PicRegisters.ADA5_ADDRESS, 730);
+        device.setWord(PicRegisters.ADC3_ADDRESS, 0x0200);
+
+        raspPi.readSensors(sample);
+
+        assertEquals(2, device.transactions);
+        assertEquals(720, sample.ada5);         // Still fresh, not read.
+        assertEquals(0x0200, sample.adc3);
+        assertEquals(1, raspPi.getMetrics().getTransactions(PicRegisters.ADC3_ADDRESS));   // ADC3 to ADC5 in one burst.
+        assertEquals(1, raspPi.getSensorHits());
+        assertEquals(Sample.ALL_FRESH & ~(1 << SampleFilter.ADA5), sample.fresh);
+    }
+
+    @Test
+    public void sensorCache_staleRegistersReadOneAtATime() throws Exception {
+        raspPi.setBurstRead(false);
+        raspPi.setSensorMaxAge(PicRegisters.ADA5_ADDRESS, 60000);
+        raspPi.setSensorMaxAge(PicRegisters.ADC4_ADDRESS, 60000);
+        raspPi.readSensors(sample);
+
+        raspPi.readSensors(sample);
+
+        assertEquals(4 + 2, device.transactions);
+        assertEquals(0x03FF, sample.adc4);
+    }
+
+    @Test
+    public void sensorCache_countsEachRegisterOnce() throws Exception {
+        raspPi.setSensorMaxAge(PicRegisters.ADA5_ADDRESS, 60000);
+        raspPi.setSensorMaxAge(PicRegisters.ADC4_ADDRESS, 60000);
+        raspPi.readSensors(sample);
+        assertEquals(0, raspPi.getSensorHits());
+        assertEquals(4, raspPi.getSensorMisses());
+
+        raspPi.readSensors(sample);     // ADC4 is fresh but inside the ADC3 to ADC5 burst.
+
+        assertEquals(1, raspPi.getSensorHits());
+        assertEquals(4 + 3, raspPi.getSensorMisses());
+
+        raspPi.setBurstRead(false);
+        raspPi.invalidateSensors();
+        raspPi.readSensors(sample);
+        raspPi.readSensors(sample);     // One at a time, ADC4 stays cached.
+
+        assertEquals(1 + 2, raspPi.getSensorHits());
+        assertEquals(4 + 3 + 4 + 2, raspPi.getSensorMisses());
+    }
+
+    @Test
+    public void readSensor_readsThroughTheCache() throws Exception {
+        raspPi.setSensorMaxAge(PicRegisters.ADA5_ADDRESS, 1);
+        assertEquals(720, raspPi.readSensor(PicRegisters.ADA5_ADDRESS));
+        device.setWord(PicRegisters.ADA5_ADDRESS, 730);
+        Thread.sleep(5);
+
+        assertEquals(730, raspPi.readSensor(PicRegisters.ADA5_ADDRESS));
+        assertEquals(0x03FF, raspPi.readSensor(PicRegisters.ADC4_ADDRESS));
+        assertEquals(3, device.transactions);
+    }
+
+    @Test
+    public void invalidateSensors_forcesRead() throws Exception {
+        raspPi.setSensorMaxAge(PicRegisters.ADA5_ADDRESS, 60000);
+        raspPi.readSensors(sample);
+        raspPi.invalidateSensors();
+        device.setWord(PicRegisters.ADA5_ADDRESS, 730);
+
+        raspPi.readSensors(sample);
+
+        assertEquals(730, sample.ada5);
+        assertEquals(2, raspPi.getMetrics().getTransactions(PicRegisters.SENSOR_BLOCK_START));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setSensorMaxAge_rejectsActuators() {
+        raspPi.setSensorMaxAge(PicRegisters.PWM3_ADDRESS, 100);
+    }
+
+    @Test
+    public void writeActuator_skipsUnchangedValues() throws Exception {
+        assertTrue(raspPi.writeActuator(PicRegisters.PWM4_ADDRESS, 300));
+        assertFalse(raspPi.writeActuator(PicRegisters.PWM4_ADDRESS, 300));
+        assertTrue(raspPi.writeActuator(PicRegisters.PWM4_ADDRESS, 301));
+
+        assertEquals(2, device.transactions);
+        assertEquals(2, raspPi.getWritesIssued());
+        assertEquals(1, raspPi.getWritesSkipped());
+        assertEquals(301, device.readRegWord(PicRegisters.PWM4_ADDRESS));
+    }
+
+    @Test
+    public void writeActuator_dacIsOneByte() throws Exception {
+        raspPi.writeActuator(PicRegisters.DAC1_ADDRESS, 0x3F);
+
+        assertEquals(0x1F, device.registers[PicRegisters.DAC1_ADDRESS]);
+        assertEquals((byte) 720, device.registers[PicRegisters.ADA5_ADDRESS]);     // ADA5 low byte left alone.
+    }
+
+    @Test
+    public void writeActuator_refreshRewritesUnchangedValue() throws Exception {
+        raspPi.setActuatorRefresh(1);
+        raspPi.writeActuator(PicRegisters.PWM3_ADDRESS, 100);
+        Thread.sleep(5);
+
+        assertTrue(raspPi.writeActuator(PicRegisters.PWM3_ADDRESS, 100));
+    }
+
+    @Test
+    public void invalidateActuators_forcesWrite() throws Exception {
+        raspPi.writeActuator(PicRegisters.PWM5_ADDRESS, 7);
+        raspPi.invalidateActuators();
+
+        assertTrue(raspPi.writeActuator(PicRegisters.PWM5_ADDRESS, 7));
+    }
+
+    @Test
+    public void metrics_countTransactionsPerRegister() throws Exception {
+        raspPi.readSensors(sample);
+        raspPi.writeActuator(PicRegisters.PWM4_ADDRESS, 300);
+
+        assertEquals(1, raspPi.getMetrics().getTransactions(PicRegisters.SENSOR_BLOCK_START));
+        assertEquals(1, raspPi.getMetrics().getTransactions(PicRegisters.PWM4_ADDRESS));
+        assertEquals(0, raspPi.getMetrics().getErrors());
+        assertTrue(raspPi.health(new StringBuilder()).toString().contains("reg 0x1 n=1"));
+    }
+
+    @Test
+    public void burstFailure_isNotRetried() throws Exception {
+        device.failBufferReads = true;
+
+        raspPi.readSensors(sample);
+
+        assertEquals(0, raspPi.getMetrics().getRetries());
+        assertEquals(1, raspPi.getMetrics().getErrors(PicRegisters.SENSOR_BLOCK_START));
+    }
+
+    @Test
+    public void retry_hidesTransientFailures() throws Exception {
+        Pic16Simulator pic = new Pic16Simulator(7);
+        pic.setFailureRate(0.2);
+        RaspPi flaky = new RaspPi(pic);
+        flaky.setRetryPolicy(4, 0);
+
+        int failed = 0;
+        for (int i = 0; i < 500; i++) {
+            try {
+                flaky.writeRegWordI2C(PicRegisters.PWM5_ADDRESS, (short) i);
+            } catch (IOException e) {
+                failed++;
+            }
+        }
+
+        assertTrue("failed " + failed, failed < 5);     // 0.2^4 per operation.
+        assertTrue(flaky.getMetrics().getRetries() > 50);
+        assertEquals(pic.getFailures(), flaky.getMetrics().getErrors());
+    }
+
+    @Test
+    public void stuckBus_isReopened() throws Exception {
+        final Pic16Simulator stuck = new Pic16Simulator();
+        final Pic16Simulator fresh = new Pic16Simulator();
+        RaspPi pi = new RaspPi(stuck);
+        pi.setRetryPolicy(2, 0);
+        pi.setStuckPolicy(3, 0);
+        pi.setBusOpener(new RaspPi.BusOpener() {
+            @Override
+            public I2cBus open() {
+                return fresh;
+            }
+        });
+        pi.writeActuator(PicRegisters.PWM4_ADDRESS, 200);      // Lands on the old bus before it gets stuck.
+        stuck.setStuck(true);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                pi.readRegWordI2C(PicRegisters.ADC3_ADDRESS);
+                fail("Stuck bus read succeeded");
+            } catch (IOException expected) {
+                // Counted towards the reopen.
+            }
+        }
+
+        assertEquals(1, pi.getMetrics().getReopens());
+        assertEquals(6, stuck.getFailures());
+        pi.readRegWordI2C(PicRegisters.ADC3_ADDRESS);
+        assertTrue(pi.writeActuator(PicRegisters.PWM4_ADDRESS, 200));  // Shadow was dropped with the old bus.
+        assertEquals(200, fresh.getOutput(PicRegisters.PWM4_ADDRESS));
+    }
+}
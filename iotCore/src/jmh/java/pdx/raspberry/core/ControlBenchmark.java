@@ -0,0 +1,34 @@
+package pdx.raspberry.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one control evaluation: temperature conversion and a fan PID step.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ControlBenchmark {
+
+    private int raw = 600;
+    private final FanControl fan = new FanControl(10);
+
+    @Benchmark
+    public int fanPid() {
+        raw = raw >= 800 ? 600 : raw + 1;       // Sweeps 10 to 30 Celsius.
+        return fan.update(Tmp36.toDeciCelsius(raw));
+    }
+}
@@ -0,0 +1,51 @@
+package pdx.raspberry.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing control states from the Firebase listener to the
+ * sampling thread, alone and with a writer publishing continuously.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ControlExchangeBenchmark {
+
+    private final ControlExchange exchange = new ControlExchange();
+    private final ControlState state = new ControlState(0, 300, 400, 500, 10);
+
+    @Benchmark
+    @Group("uncontended")
+    public ControlState get() {
+        return exchange.get();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public ControlState publisher() {
+        return exchange.publish(state);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public ControlState reader() {
+        return exchange.get();
+    }
+}
@@ -0,0 +1,67 @@
+package pdx.raspberry.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording an event on the sampling thread, recorded and gated
+ * off by level, next to the string the Log.d calls used to build.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventRecorderBenchmark {
+
+    private final EventRecorder recorder = new EventRecorder(4096);
+    private final EventRecorder gated = new EventRecorder(4096);
+    private final StringBuilder drained = new StringBuilder();
+    private int upload;
+    private int gatedUpload;
+    private int value = 0;
+
+    @Setup
+    public void setUp() {
+        upload = recorder.define(EventRecorder.DEBUG, "upload", "temp", "dac1", "pwm3", "pwm4", "pwm5", "pwm6");
+        gatedUpload = gated.define(EventRecorder.DEBUG, "upload", "temp", "dac1", "pwm3", "pwm4", "pwm5", "pwm6");
+        gated.setLevel(EventRecorder.INFO);
+    }
+
+    @Benchmark
+    public void record() {
+        value++;
+        recorder.record(upload, 24, value, 300, 400, 500, 600);
+    }
+
+    @Benchmark
+    public void gatedOff() {
+        value++;
+        gated.record(gatedUpload, 24, value, 300, 400, 500, 600);
+    }
+
+    @Benchmark
+    public String concatenate() {
+        value++;
+        return 24 + " " + value + " " + 300 + " " + 400 + " " + 500 + " " + 600;
+    }
+
+    @Benchmark
+    public int recordAndDrain() {
+        value++;
+        recorder.record(upload, 24, value, 300, 400, 500, 600);
+        drained.setLength(0);
+        return recorder.drain(drained, 1);
+    }
+}
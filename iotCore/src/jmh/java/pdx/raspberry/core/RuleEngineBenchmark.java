@@ -0,0 +1,78 @@
+package pdx.raspberry.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of evaluating the automation rules on one sample, with the
+ * inputs moving every sample, and of compiling them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleEngineBenchmark {
+
+    @Param({"10", "300", "1000"})
+    public int rules;
+
+    private final Sample sample = new Sample();
+    private final RuleEngine engine = new RuleEngine(TimeZone.getTimeZone("UTC"));
+    private final List<RuleSpec> specs = new ArrayList<>();
+    private long wallMs = 1561982400000L;
+    private int step = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        String[] inputs = {"ADA5IN", "ADC3IN", "ADC4IN", "ADC5IN", ""};
+        String[] outputs = {"DAC1OUT", "PWM3", "PWM4", "PWM5", "PWM6"};
+        for (int i = 0; i < rules; i++) {
+            String input = inputs[random.nextInt(inputs.length)];
+            int threshold = input.equals("ADA5IN") ? 15 + random.nextInt(25) : random.nextInt(1024);
+            RuleSpec rule = new RuleSpec(input, random.nextBoolean() ? ">" : "<", threshold, random.nextInt(10),
+                    outputs[random.nextInt(outputs.length)], random.nextInt(1024));
+            rule.priority = random.nextInt(100);
+            if (random.nextInt(4) == 0) {
+                rule.fromMinute = random.nextInt(1440);
+                rule.toMinute = random.nextInt(1440);
+            }
+            specs.add(rule);
+        }
+        engine.setProgram(RuleProgram.compile(specs));
+    }
+
+    @Benchmark
+    public Sample evaluate() {
+        step++;
+        wallMs += 10;           // 100 Hz, the schedules change every 6000 samples.
+        sample.temp = 20 + (step & 15);
+        sample.adc3 = (step * 7) & 1023;
+        sample.adc4 = (step * 13) & 1023;
+        sample.adc5 = 1023 - (step & 1023);
+        engine.evaluate(sample, wallMs);
+        return sample;
+    }
+
+    @Benchmark
+    public RuleProgram compile() {
+        return RuleProgram.compile(specs);
+    }
+}
@@ -0,0 +1,70 @@
+package pdx.raspberry.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the Firebase update for one sample. Run with
+ * -Pbench='Telemetry.* -prof gc' to see bytes allocated per update.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TelemetryBenchmark {
+
+    private FirebaseData data;
+    private TelemetryDelta delta;
+    private long now;
+    private int toggle;
+
+    @Setup
+    public void setUp() {
+        data = new FirebaseData(21, 300, 400, 500, 10, 511, 300, 400, 500, 0);
+        delta = new TelemetryDelta(60000);
+        delta.setDeadband(TelemetryDelta.ADC3IN, 2);
+        delta.setDeadband(TelemetryDelta.ADC4IN, 2);
+        delta.setDeadband(TelemetryDelta.ADC5IN, 2);
+        delta.changes(data, 0);
+    }
+
+    @Benchmark
+    public Map<String, Object> toMap() {
+        return data.toMap();
+    }
+
+    @Benchmark
+    public String formatTimestamp() {
+        return DateFormat.getDateTimeInstance().format(new Date());
+    }
+
+    @Benchmark
+    public Map<String, Object> deltaUnchanged() {
+        return delta.changes(data, ++now % 60000);     // Stays inside the heartbeat.
+    }
+
+    @Benchmark
+    public int deltaChanged() {
+        data.ADC3IN = (++toggle & 1) == 0 ? 300 : 900;
+        int size = 0;
+        for (Map.Entry<String, Object> entry : delta.changes(data, ++now % 60000).entrySet()) {
+            size += entry.getKey().length();      // Walk the update like updateChildren() does.
+        }
+        return size;
+    }
+}
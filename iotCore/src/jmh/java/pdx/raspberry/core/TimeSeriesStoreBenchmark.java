@@ -0,0 +1,70 @@
+package pdx.raspberry.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert and range query cost of the history store, filled with a day at 100 Hz.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeSeriesStoreBenchmark {
+
+    private static final int DAY = 24 * 3600 * 100;
+
+    private final int[] values = new int[TimeSeriesStore.CHANNELS];
+    private final long[] times = new long[1440];
+    private final int[] mins = new int[1440];
+    private final int[] maxs = new int[1440];
+    private final int[] avgs = new int[1440];
+    private final int[] raw = new int[6000];        // A minute of raw samples.
+    private TimeSeriesStore store;
+    private long time;
+
+    @Setup
+    public void setUp() {
+        store = TimeSeriesStore.forRate(100);
+        for (int i = 0; i < DAY; i++) {
+            append();
+        }
+    }
+
+    private void append() {
+        for (int c = 0; c < values.length; c++) {
+            values[c] = (int) (time & 0x3FF);
+        }
+        store.append(time, values);
+        time += 10;
+    }
+
+    @Benchmark
+    public void insert() {
+        append();
+    }
+
+    @Benchmark
+    public int queryDayOfMinutes() {
+        return store.query(TimeSeriesStore.MINUTE, TimeSeriesStore.ADC3, time - 24 * 3600 * 1000L, time,
+                times, mins, maxs, avgs);
+    }
+
+    @Benchmark
+    public int queryMinuteOfRaw() {
+        return store.query(TimeSeriesStore.RAW, TimeSeriesStore.ADC3, time - 60000, time,
+                null, null, null, raw);
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the filter of one ADC channel.
+ *  Three optional stages run in order:
+ *
+ *      median of N     Drops single sample spikes.
+ *      decimate by N   Averages blocks of N samples, the output only
+ *                      changes once per block.
+ *      EMA             y += (x - y) / 2^shift, in Q8 fixed point.
+ *
+ *  All state is in primitive arrays made in the constructor, so
+ *  filtering a sample doesn't allocate.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class AdcFilter {
+
+    private static final int EMA_Q = 8;         // Fraction bits of the EMA state.
+
+    private final int[] mWindow;        // Last inputs for the median, oldest overwritten.
+    private final int[] mSorted;        // Scratch copy for the median.
+    private int mWindowCount = 0;
+    private int mWindowNext = 0;
+
+    private final int mDecimate;        // Block length, 1 for off.
+    private int mBlockSum = 0;
+    private int mBlockCount = 0;
+    private boolean mHaveBlock = false; // False until the first block is full.
+
+    private final int mEmaShift;        // 0 for off.
+    private int mEma;                   // Q8.
+    private boolean mHaveEma = false;
+
+    private int mOutput;
+    private boolean mHaveOutput = false;
+
+    /**
+     * @param median    Median window, 1 for off. Odd sizes give a true median.
+     * @param decimate  Samples averaged per output, 1 for off.
+     * @param emaShift  EMA weight of 1/2^shift, 0 for off.
+     */
+    public AdcFilter(int median, int decimate, int emaShift) {
+        if (median < 1 || decimate < 1 || emaShift < 0 || emaShift > 15) {
+            throw new IllegalArgumentException("Bad filter settings");
+        }
+        mWindow = new int[median];
+        mSorted = new int[median];
+        mDecimate = decimate;
+        mEmaShift = emaShift;
+    }
+
+    /**
+     *  Description:
+     *      Adds one raw reading.
+     *
+     * @param raw   ADC value.
+     * @return  Filtered value.
+     */
+    public int filter(int raw) {
+        mHaveOutput = true;
+        int value = median(raw);
+
+        if (mDecimate > 1) {
+            mBlockSum += value;
+            if (++mBlockCount < mDecimate) {
+                return mHaveBlock ? mOutput : (mOutput = value);   // Held between blocks.
+            }
+            value = (mBlockSum + mDecimate / 2) / mDecimate;
+            mHaveBlock = true;
+            mBlockSum = 0;
+            mBlockCount = 0;
+        }
+        return mOutput = ema(value);
+    }
+
+    private int median(int raw) {
+        int size = mWindow.length;
+        if (size == 1) {
+            return raw;
+        }
+        mWindow[mWindowNext] = raw;
+        mWindowNext = (mWindowNext + 1) % size;
+        if (mWindowCount < size) {
+            mWindowCount++;
+        }
+        for (int i = 0; i < mWindowCount; i++) {    // Insertion sort, the window is a handful of values.
+            int v = mWindow[i];
+            int j = i - 1;
+            while (j >= 0 && mSorted[j] > v) {
+                mSorted[j + 1] = mSorted[j];
+                j--;
+            }
+            mSorted[j + 1] = v;
+        }
+        return mSorted[mWindowCount / 2];
+    }
+
+    private int ema(int value) {
+        if (mEmaShift == 0) {
+            return value;
+        }
+        if (!mHaveEma) {
+            mEma = value << EMA_Q;      // Start at the first value instead of ramping up from 0.
+            mHaveEma = true;
+        } else {
+            mEma += ((value << EMA_Q) - mEma) >> mEmaShift;
+        }
+        return (mEma + (1 << (EMA_Q - 1))) >> EMA_Q;
+    }
+
+    public int getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * @return  False until the first reading since the start or a reset.
+     */
+    public boolean hasOutput() {
+        return mHaveOutput;
+    }
+
+    /**
+     *  Description:
+     *      Forgets every past input.
+     */
+    public void reset() {
+        mWindowCount = 0;
+        mWindowNext = 0;
+        mBlockSum = 0;
+        mBlockCount = 0;
+        mHaveBlock = false;
+        mHaveEma = false;
+        mOutput = 0;
+        mHaveOutput = false;
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the scheduler that serializes the
+ *  transactions of several slave devices sharing one I2C bus. Work is
+ *  queued as jobs in priority classes and run on the bus thread,
+ *  highest class first and in order within a class:
+ *
+ *      ACTUATOR    Output writes. Never held back by a budget.
+ *      POLL        Sensor reads.
+ *      BACKGROUND  Diagnostics and anything else that can wait.
+ *
+ *  Every device has a budget of transactions per second kept as a
+ *  token bucket. A POLL or BACKGROUND job of a device out of budget is
+ *  deferred to the next run without holding up the other devices.
+ *  ACTUATOR jobs always run and overdraw the budget, so the polls of
+ *  that device yield until it is paid back.
+ *
+ *  A queued job isn't queued twice. Jobs that hold the newest value to
+ *  write, one per register, merge every update made before the bus
+ *  gets to them into a single transaction.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.IOException;
+
+public class BusScheduler {
+
+    public static final int ACTUATOR = 0;       // Priority classes, highest first.
+    public static final int POLL = 1;
+    public static final int BACKGROUND = 2;
+    public static final int CLASSES = 3;
+
+    public static final int MAX_DEVICES = 16;
+    private static final String[] CLASS_NAMES = {"actuator", "poll", "background"};
+
+    /**
+     *  Description:
+     *      One transaction, or a few that belong together such as a
+     *      burst read and its fallback. Jobs are created once and
+     *      submitted again every time there is work.
+     */
+    public abstract static class Job {
+        private final int mDevice;
+        private final int mPriority;
+        private boolean mQueued = false;    // Guarded by the scheduler.
+        private long mQueuedNanos = 0;
+
+        /**
+         * @param device    Id from addDevice.
+         * @param priority  ACTUATOR, POLL or BACKGROUND.
+         */
+        protected Job(int device, int priority) {
+            if (priority < 0 || priority >= CLASSES) {
+                throw new IllegalArgumentException("Unknown priority " + priority);
+            }
+            mDevice = device;
+            mPriority = priority;
+        }
+
+        public int getDevice() {
+            return mDevice;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         *  Description:
+         *      Runs the job on the bus thread.
+         *
+         * @throws IOException I2C exception, passed to failed.
+         */
+        protected abstract void run() throws IOException;
+
+        /**
+         *  Description:
+         *      Called on the bus thread when run throws.
+         *
+         * @param e     Error of the run.
+         */
+        protected void failed(IOException e) {
+        }
+    }
+
+    private final Job[][] mQueues = new Job[CLASSES][];     // Ring per class.
+    private final int[] mHead = new int[CLASSES];
+    private final int[] mSize = new int[CLASSES];
+    private final long[] mMaxWaitNanos = new long[CLASSES];
+
+    private final String[] mNames = new String[MAX_DEVICES];
+    private final long[] mCostNanos = new long[MAX_DEVICES];    // Credit used by one transaction, 0 for no budget.
+    private final long[] mBurstNanos = new long[MAX_DEVICES];   // Most credit kept.
+    private final long[] mCredit = new long[MAX_DEVICES];
+    private final long[] mRun = new long[MAX_DEVICES];
+    private final long[] mDeferred = new long[MAX_DEVICES];
+    private final long[] mFailed = new long[MAX_DEVICES];
+    private int mDevices = 0;
+    private long mLastRefill = 0;
+    private boolean mRefilled = false;
+    private long mDropped = 0;      // Jobs refused because a queue was full.
+
+    /**
+     * @param capacity  Jobs that can wait in each priority class.
+     */
+    public BusScheduler(int capacity) {
+        for (int i = 0; i < CLASSES; i++) {
+            mQueues[i] = new Job[capacity];
+        }
+    }
+
+    /**
+     *  Description:
+     *      Registers a slave device.
+     *
+     * @param name          Name used in the summary.
+     * @param perSecond     Transactions per second, 0 for no budget.
+     * @param burst         Transactions that can run back to back.
+     * @return  Device id for the jobs of this device.
+     */
+    public synchronized int addDevice(String name, int perSecond, int burst) {
+        if (mDevices == MAX_DEVICES) {
+            throw new IllegalStateException("Too many devices on the bus");
+        }
+        int device = mDevices++;
+        mNames[device] = name;
+        mCostNanos[device] = perSecond > 0 ? 1000000000L / perSecond : 0;
+        mBurstNanos[device] = mCostNanos[device] * Math.max(burst, 1);
+        mCredit[device] = mBurstNanos[device];
+        return device;
+    }
+
+    /**
+     *  Description:
+     *      Queues a job. Safe from any thread.
+     *
+     * @param job   Job to run.
+     * @return  False if the job was already waiting, which merges
+     *          the two, or if its queue is full.
+     */
+    public synchronized boolean submit(Job job) {
+        if (job.mQueued) {
+            return false;
+        }
+        if (job.mDevice < 0 || job.mDevice >= mDevices) {
+            throw new IllegalArgumentException("Unknown device " + job.mDevice);
+        }
+        int p = job.mPriority;
+        Job[] queue = mQueues[p];
+        if (mSize[p] == queue.length) {
+            mDropped++;
+            return false;
+        }
+        queue[(mHead[p] + mSize[p]) % queue.length] = job;
+        mSize[p]++;
+        job.mQueued = true;
+        job.mQueuedNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     *  Description:
+     *      Runs waiting jobs on the bus thread, highest priority
+     *      first. Jobs of a device out of budget are put back for
+     *      the next call.
+     *
+     * @param nowNanos          Current System.nanoTime().
+     * @param lowestPriority    Lowest class to run, ACTUATOR to only flush writes.
+     * @param maxJobs           Most jobs to run, bounds the time on the bus.
+     * @return  Number of jobs run.
+     */
+    public int runPending(long nowNanos, int lowestPriority, int maxJobs) {
+        synchronized (this) {
+            refill(nowNanos);
+        }
+        int done = 0;
+        for (int p = 0; p <= lowestPriority && p < CLASSES; p++) {
+            int waiting;
+            synchronized (this) {
+                waiting = mSize[p];
+            }
+            for (int i = 0; i < waiting && done < maxJobs; i++) {
+                Job job;
+                synchronized (this) {
+                    job = take(p);
+                    if (!admit(job.mDevice, p)) {
+                        mDeferred[job.mDevice]++;
+                        submitBack(job);
+                        continue;
+                    }
+                    long wait = nowNanos - job.mQueuedNanos;
+                    if (wait > mMaxWaitNanos[p]) {
+                        mMaxWaitNanos[p] = wait;
+                    }
+                }
+                try {
+                    job.run();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        mFailed[job.mDevice]++;
+                    }
+                    job.failed(e);
+                }
+                synchronized (this) {
+                    mRun[job.mDevice]++;
+                }
+                done++;
+            }
+        }
+        return done;
+    }
+
+    public synchronized int getWaiting(int priority) {
+        return mSize[priority];
+    }
+
+    public synchronized long getRun(int device) {
+        return mRun[device];
+    }
+
+    public synchronized long getDeferred(int device) {
+        return mDeferred[device];
+    }
+
+    public synchronized long getFailed(int device) {
+        return mFailed[device];
+    }
+
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     *  Description:
+     *      Writes one line per device and the longest wait of each
+     *      priority class.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public synchronized StringBuilder summary(StringBuilder out) {
+        for (int d = 0; d < mDevices; d++) {
+            out.append(mNames[d])
+                    .append(" run=").append(mRun[d])
+                    .append(" deferred=").append(mDeferred[d])
+                    .append(" failed=").append(mFailed[d])
+                    .append('\n');
+        }
+        out.append("  wait");
+        for (int p = 0; p < CLASSES; p++) {
+            out.append(' ').append(CLASS_NAMES[p]).append('=').append(mMaxWaitNanos[p] / 1000).append("us");
+        }
+        out.append(" dropped=").append(mDropped).append('\n');
+        return out;
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = mRefilled ? nowNanos - mLastRefill : 0;
+        mLastRefill = nowNanos;
+        mRefilled = true;
+        if (elapsed <= 0) {
+            return;
+        }
+        for (int d = 0; d < mDevices; d++) {
+            mCredit[d] = Math.min(mCredit[d] + elapsed, mBurstNanos[d]);
+        }
+    }
+
+    /** Takes a transaction out of the budget of a device, if it has one. */
+    private boolean admit(int device, int priority) {
+        long cost = mCostNanos[device];
+        if (cost == 0) {
+            return true;
+        }
+        if (priority != ACTUATOR && mCredit[device] < cost) {
+            return false;
+        }
+        mCredit[device] = Math.max(mCredit[device] - cost, -mBurstNanos[device]);   // Writes overdraw, bounded.
+        return true;
+    }
+
+    private Job take(int p) {
+        Job[] queue = mQueues[p];
+        Job job = queue[mHead[p]];
+        queue[mHead[p]] = null;
+        mHead[p] = (mHead[p] + 1) % queue.length;
+        mSize[p]--;
+        job.mQueued = false;
+        return job;
+    }
+
+    /** Puts a deferred job back at the end, keeping when it was first queued. */
+    private void submitBack(Job job) {
+        int p = job.mPriority;
+        Job[] queue = mQueues[p];
+        queue[(mHead[p] + mSize[p]) % queue.length] = job;
+        mSize[p]++;
+        job.mQueued = true;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the phone side of the history
+ *  charts. It picks the rollup resolution that fits a chart, so no
+ *  more than MAX_POINTS buckets are ever downloaded for one chart,
+ *  and thins what was downloaded down to the chart width:
+ *
+ *      minMax  Keeps the lowest and highest value of each pixel
+ *              column, so short spikes stay visible.
+ *      lttb    Largest triangle three buckets, keeps the points that
+ *              best preserve the shape of a line.
+ *
+ *  Everything works on caller owned arrays and doesn't allocate.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public final class ChartDecimator {
+
+    public static final int MAX_POINTS = 1000;      // Most buckets downloaded for one chart, about 30 kB.
+
+    private ChartDecimator() {
+    }
+
+    /**
+     *  Description:
+     *      Picks the finest resolution whose buckets over a time
+     *      span fit the chart, or the coarsest if none does.
+     *
+     * @param spanMs    Time span shown.
+     * @param points    Points the chart can show, usually its width.
+     * @return  RollupPublisher.MINUTE, QUARTER or HOUR.
+     */
+    public static int pickResolution(long spanMs, int points) {
+        int budget = Math.min(points, MAX_POINTS);
+        for (int r = 0; r < RollupPublisher.BUCKET_MS.length; r++) {
+            if (spanMs / RollupPublisher.BUCKET_MS[r] <= budget) {
+                return r;
+            }
+        }
+        return RollupPublisher.HOUR;
+    }
+
+    /**
+     *  Description:
+     *      Reduces buckets to at most a number of columns, keeping the
+     *      lowest minimum and highest maximum of each. Fewer buckets
+     *      than columns are copied as they are.
+     *
+     * @param times     Bucket start times, oldest first.
+     * @param mins      Bucket minimums.
+     * @param maxs      Bucket maximums.
+     * @param n         Buckets in the arrays.
+     * @param columns   Columns wanted.
+     * @param outTimes  Receives the time of the first bucket of each column.
+     * @param outMins   Receives the minimum of each column.
+     * @param outMaxs   Receives the maximum of each column.
+     * @return  Number of columns written.
+     */
+    public static int minMax(long[] times, int[] mins, int[] maxs, int n, int columns,
+                             long[] outTimes, int[] outMins, int[] outMaxs) {
+        int count = Math.min(n, columns);
+        for (int c = 0; c < count; c++) {
+            int from = (int) ((long) c * n / count);
+            int to = (int) ((long) (c + 1) * n / count);
+            int min = mins[from];
+            int max = maxs[from];
+            for (int i = from + 1; i < to; i++) {
+                min = Math.min(min, mins[i]);
+                max = Math.max(max, maxs[i]);
+            }
+            outTimes[c] = times[from];
+            outMins[c] = min;
+            outMaxs[c] = max;
+        }
+        return count;
+    }
+
+    /**
+     *  Description:
+     *      Reduces a line to at most threshold points with the largest
+     *      triangle three buckets algorithm. The first and last points
+     *      are always kept.
+     *
+     * @param times     Point times, oldest first.
+     * @param values    Point values.
+     * @param n         Points in the arrays.
+     * @param threshold Points wanted, at least 3 to thin anything.
+     * @param outTimes  Receives the times of the kept points.
+     * @param outValues Receives the values of the kept points.
+     * @return  Number of points written.
+     */
+    public static int lttb(long[] times, int[] values, int n, int threshold, long[] outTimes, int[] outValues) {
+        if (threshold >= n || threshold < 3) {
+            System.arraycopy(times, 0, outTimes, 0, n);
+            System.arraycopy(values, 0, outValues, 0, n);
+            return n;
+        }
+        long origin = times[0];     // Keeps the areas small enough for doubles.
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        int count = 0;
+        outTimes[count] = times[0];
+        outValues[count++] = values[0];
+        for (int i = 0; i < threshold - 2; i++) {
+            int avgFrom = (int) ((i + 1) * every) + 1;      // Next bucket, averaged.
+            int avgTo = Math.min((int) ((i + 2) * every) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgFrom; j < avgTo; j++) {
+                avgX += times[j] - origin;
+                avgY += values[j];
+            }
+            avgX /= avgTo - avgFrom;
+            avgY /= avgTo - avgFrom;
+
+            int from = (int) (i * every) + 1;               // This bucket.
+            int to = (int) ((i + 1) * every) + 1;
+            double ax = times[a] - origin;
+            double ay = values[a];
+            double best = -1;
+            int pick = from;
+            for (int j = from; j < to; j++) {
+                double area = Math.abs((ax - avgX) * (values[j] - ay) - (ax - (times[j] - origin)) * (avgY - ay));
+                if (area > best) {
+                    best = area;
+                    pick = j;
+                }
+            }
+            outTimes[count] = times[pick];
+            outValues[count++] = values[pick];
+            a = pick;
+        }
+        outTimes[count] = times[n - 1];
+        outValues[count++] = values[n - 1];
+        return count;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the local copy of the last commands
+ *  applied to the hardware. After a restart the Pi drives its outputs
+ *  from this copy right away instead of waiting for the database.
+ *
+ *  The commands are written to a temporary file, synced and renamed
+ *  over the old copy, so a power cut leaves either the old or the new
+ *  commands on disk. A checksum catches anything else.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class CommandStore {
+
+    private static final int MAGIC = 0x434D4431;        // "CMD1"
+    private static final int PAYLOAD_BYTES = 4 + 8 + 5 * 4;
+
+    private final File mFile;
+    private final File mTemp;
+    private final ByteBuffer mPayload = ByteBuffer.allocate(PAYLOAD_BYTES);
+
+    /**
+     * @param file  Where the commands are kept.
+     */
+    public CommandStore(File file) {
+        mFile = file;
+        mTemp = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     *  Description:
+     *      Replaces the stored commands.
+     *
+     * @param state Commands on the hardware.
+     * @throws IOException File error. The old copy is left in place.
+     */
+    public synchronized void save(ControlState state) throws IOException {
+        mPayload.clear();
+        mPayload.putInt(MAGIC)
+                .putLong(state.seq)
+                .putInt(state.pwm4)
+                .putInt(state.pwm5)
+                .putInt(state.pwm6)
+                .putInt(state.dac1)
+                .putInt(state.setpoint);
+        FileOutputStream stream = new FileOutputStream(mTemp);
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.write(mPayload.array(), 0, PAYLOAD_BYTES);
+            out.writeLong(checksum(mPayload.array()));
+            out.flush();
+            stream.getFD().sync();      // On disk before it replaces the old copy.
+        } finally {
+            stream.close();
+        }
+        if (!mTemp.renameTo(mFile)) {
+            throw new IOException("Can't replace " + mFile);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Reads the stored commands.
+     *
+     * @return  Unversioned state without trace times, null if nothing
+     *          valid was stored.
+     * @throws IOException File error other than a missing file.
+     */
+    public synchronized ControlState load() throws IOException {
+        if (mFile.length() != PAYLOAD_BYTES + 8) {
+            return null;
+        }
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            mPayload.clear();
+            in.readFully(mPayload.array(), 0, PAYLOAD_BYTES);
+            if (in.readLong() != checksum(mPayload.array()) || mPayload.getInt() != MAGIC) {
+                return null;
+            }
+            long seq = mPayload.getLong();
+            int pwm4 = mPayload.getInt();
+            int pwm5 = mPayload.getInt();
+            int pwm6 = mPayload.getInt();
+            int dac1 = mPayload.getInt();
+            int setpoint = mPayload.getInt();
+            return new ControlState(0, seq, pwm4, pwm5, pwm6, dac1, setpoint, 0, 0);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, PAYLOAD_BYTES);
+        return crc.getValue();
+    }
+}
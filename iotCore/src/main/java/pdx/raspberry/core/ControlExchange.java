@@ -0,0 +1,71 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the hand off of control states
+ *  from the Firebase listener to the sampling thread. The latest
+ *  state is published through an atomic reference so readers never
+ *  block, never see a partial update and always get the newest state.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ControlExchange {
+
+    private final AtomicReference<ControlState> mLatest = new AtomicReference<>(ControlState.EMPTY);
+
+    /**
+     *  Description:
+     *      Publishes a new state, replacing the current one. Versions
+     *      are given out inside the swap so they stay in order even
+     *      with several writers.
+     *
+     * @param state Outputs to publish. Its version is ignored.
+     * @return  The published state with its version.
+     */
+    public ControlState publish(ControlState state) {
+        while (true) {
+            ControlState current = mLatest.get();
+            ControlState next = state.withVersion(current.version + 1);
+            if (mLatest.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     *  Description:
+     *      Publishes a command only if its sequence number is newer
+     *      than the current one, so a late or repeated delivery never
+     *      rolls the outputs back. Commands without a sequence number
+     *      are always published, keeping the current sequence number
+     *      so later deliveries are still checked against it.
+     *
+     * @param state Outputs to publish. Its version is ignored.
+     * @return  The published state, null if the command was stale.
+     */
+    public ControlState publishIfNewer(ControlState state) {
+        while (true) {
+            ControlState current = mLatest.get();
+            if (state.seq != 0 && state.seq <= current.seq) {
+                return null;
+            }
+            ControlState next = state.withVersion(current.version + 1, Math.max(current.seq, state.seq));
+            if (mLatest.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     *  Description:
+     *      Returns the latest published state without blocking.
+     *
+     * @return  Latest state, ControlState.EMPTY before the first publish.
+     */
+    public ControlState get() {
+        return mLatest.get();
+    }
+}
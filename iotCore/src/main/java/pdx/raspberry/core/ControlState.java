@@ -0,0 +1,93 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains an immutable snapshot of the
+ *  outputs requested from the database. A new snapshot is made
+ *  for every change so the sampling thread never sees a half
+ *  updated set of values.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public final class ControlState {
+
+    public static final ControlState EMPTY = new ControlState(0, 0, 0, 0, 0);   // Before any data arrives.
+
+    public final long version;  // Increases with every published state.
+    public final long seq;      // Sequence number given by the phone, 0 if it sent none.
+    public final int pwm4;      // RGB PWM channels.
+    public final int pwm5;
+    public final int pwm6;
+    public final int dac1;      // DAC output.
+    public final int setpoint;  // Fan temperature in tenths of a degree, 0 for the default.
+    public final long traceMs;      // Server time of the user input, 0 if not traced.
+    public final long receivedMs;   // Server time the Pi received it, 0 if not traced.
+
+    public ControlState(long version, int pwm4, int pwm5, int pwm6, int dac1) {
+        this(version, 0, pwm4, pwm5, pwm6, dac1);
+    }
+
+    public ControlState(long version, long seq, int pwm4, int pwm5, int pwm6, int dac1) {
+        this(version, seq, pwm4, pwm5, pwm6, dac1, 0, 0, 0);
+    }
+
+    public ControlState(long version, long seq, int pwm4, int pwm5, int pwm6, int dac1, int setpoint, long traceMs, long receivedMs) {
+        this.version = version;
+        this.seq = seq;
+        this.pwm4 = pwm4;
+        this.pwm5 = pwm5;
+        this.pwm6 = pwm6;
+        this.dac1 = dac1;
+        this.setpoint = setpoint;
+        this.traceMs = traceMs;
+        this.receivedMs = receivedMs;
+    }
+
+    /**
+     *  Description:
+     *      Copies this state with a new version number.
+     *
+     * @param version   Version of the copy.
+     * @return  New state holding the same outputs.
+     */
+    public ControlState withVersion(long version) {
+        return new ControlState(version, seq, pwm4, pwm5, pwm6, dac1, setpoint, traceMs, receivedMs);
+    }
+
+    /**
+     *  Description:
+     *      Copies this state with a new version and sequence number.
+     *
+     * @param version   Version of the copy.
+     * @param seq       Sequence number of the copy.
+     * @return  New state holding the same outputs.
+     */
+    public ControlState withVersion(long version, long seq) {
+        return new ControlState(version, seq, pwm4, pwm5, pwm6, dac1, setpoint, traceMs, receivedMs);
+    }
+
+    /**
+     *  Description:
+     *      Takes the requested outputs and their sequence number
+     *      out of the database values.
+     *
+     * @param data  Values read from Firebase.
+     * @return  Unversioned state, versioned when published.
+     */
+    public static ControlState from(FirebaseData data) {
+        return from(data, 0);
+    }
+
+    /**
+     *  Description:
+     *      Same as from(data), keeping the trace times of the command.
+     *
+     * @param data          Values read from Firebase.
+     * @param receivedMs    Server time the command was received.
+     * @return  Unversioned state, versioned when published.
+     */
+    public static ControlState from(FirebaseData data, long receivedMs) {
+        return new ControlState(0, data.SEQ, data.PWM4, data.PWM5, data.PWM6, data.DAC1OUT, data.SETPOINT, data.UI_MS, receivedMs);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the layout of the database. Every
+ *  Pi has its own shard, so clients only download the boards they
+ *  show and several Pis can share one account:
+ *
+ *      deviceIndex/{id}            true, one small entry per Pi.
+ *      devices/{id}/telemetry      Written by the Pi.
+ *      devices/{id}/commands       Written by the phone.
+ *      devices/{id}/ack            Sequence number of the last
+ *                                  command the Pi applied.
+ *      devices/{id}/diagnostics    Latency summary of the Pi.
+ *      devices/{id}/history/{seq}  Telemetry logged while the Pi was
+ *                                  offline, replayed when it returns.
+ *      devices/{id}/rules/{key}    Automation rules run on the Pi,
+ *                                  see RuleSpec.
+ *      devices/{id}/rollups/{resolution}/{channel}/{start}
+ *                                  Min, max and average of a channel
+ *                                  per bucket, see RollupPublisher.
+ *      devices/{id}/lanKey         Key of the LAN path in hex, see
+ *                                  LanProtocol.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public final class DevicePaths {
+
+    public static final String INDEX = "deviceIndex";
+    public static final String DEVICES = "devices";
+    public static final String TELEMETRY = "telemetry";
+    public static final String COMMANDS = "commands";
+    public static final String ACK = "ack";
+    public static final String DIAGNOSTICS = "diagnostics";
+    public static final String HISTORY = "history";
+    public static final String RULES = "rules";
+    public static final String ROLLUPS = "rollups";
+    public static final String LAN_KEY = "lanKey";
+    public static final String SERVER_OFFSET = ".info/serverTimeOffset";   // Local clock to server clock.
+    public static final String CONNECTED = ".info/connected";              // True while the socket is up.
+
+    private DevicePaths() {
+    }
+
+    /**
+     *  Description:
+     *      Checks a device id can be used as a database key.
+     *
+     * @param deviceId  Id of the Pi.
+     * @return  The id.
+     */
+    public static String checkId(String deviceId) {
+        if (deviceId == null || deviceId.isEmpty()) {
+            throw new IllegalArgumentException("Empty device id");
+        }
+        for (int i = 0; i < deviceId.length(); i++) {
+            char c = deviceId.charAt(i);
+            if (c == '.' || c == '$' || c == '#' || c == '[' || c == ']' || c == '/' || c < 0x20 || c == 0x7F) {
+                throw new IllegalArgumentException("Invalid character in device id: " + deviceId);
+            }
+        }
+        return deviceId;
+    }
+
+    public static String index(String deviceId) {
+        return INDEX + "/" + checkId(deviceId);
+    }
+
+    public static String device(String deviceId) {
+        return DEVICES + "/" + checkId(deviceId);
+    }
+
+    public static String telemetry(String deviceId) {
+        return device(deviceId) + "/" + TELEMETRY;
+    }
+
+    public static String commands(String deviceId) {
+        return device(deviceId) + "/" + COMMANDS;
+    }
+
+    public static String ack(String deviceId) {
+        return device(deviceId) + "/" + ACK;
+    }
+
+    public static String diagnostics(String deviceId) {
+        return device(deviceId) + "/" + DIAGNOSTICS;
+    }
+
+    public static String history(String deviceId) {
+        return device(deviceId) + "/" + HISTORY;
+    }
+
+    public static String rules(String deviceId) {
+        return device(deviceId) + "/" + RULES;
+    }
+
+    public static String rollups(String deviceId, String resolution, String channel) {
+        return device(deviceId) + "/" + ROLLUPS + "/" + resolution + "/" + channel;
+    }
+
+    public static String lanKey(String deviceId) {
+        return device(deviceId) + "/" + LAN_KEY;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the exporter of recorded events. A
+ *  low priority thread wakes every period, drains the recorder and
+ *  hands each line to a sink, such as the Android log. Formatting and
+ *  the sink's own cost stay off the sampling and bus threads.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class EventExporter implements Runnable {
+
+    /**
+     *  Description:
+     *      Where exported lines go. Called on the exporter thread.
+     */
+    public interface Sink {
+        void write(int level, String line);
+    }
+
+    private final EventRecorder mRecorder;
+    private final Sink mSink;
+    private final long mPeriodMs;
+    private final Object mDrainLock = new Object();     // Only one thread drains at a time.
+    private final StringBuilder mLine = new StringBuilder(128);    // Guarded by mDrainLock.
+
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+    private long mExported = 0;             // Guarded by mDrainLock.
+
+    /**
+     * @param recorder  Events to export.
+     * @param sink      Where the lines go.
+     * @param periodMs  Time between drains.
+     */
+    public EventExporter(EventRecorder recorder, Sink sink, long periodMs) {
+        mRecorder = recorder;
+        mSink = sink;
+        mPeriodMs = periodMs;
+    }
+
+    /**
+     *  Description:
+     *      Starts the exporter thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "events");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     *  Description:
+     *      Stops the thread after one last drain, so nothing recorded
+     *      before the call is left behind.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            try {
+                Thread.sleep(mPeriodMs);
+            } catch (InterruptedException e) {
+                break;      // Stopping.
+            }
+            flush();
+        }
+        flush();
+    }
+
+    /**
+     *  Description:
+     *      Drains everything recorded so far to the sink. Called on
+     *      the exporter thread, or directly when it isn't running.
+     *
+     * @return  Number of lines written.
+     */
+    public int flush() {
+        synchronized (mDrainLock) {
+            int count = 0;
+            while (true) {
+                mLine.setLength(0);
+                int level = mRecorder.drainOne(mLine);
+                if (level < 0) {
+                    break;
+                }
+                mLine.setLength(mLine.length() - 1);    // Sinks add their own line ends.
+                mSink.write(level, mLine.toString());
+                count++;
+            }
+            mExported += count;
+            return count;
+        }
+    }
+
+    public long getExported() {
+        synchronized (mDrainLock) {
+            return mExported;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the event recorder used in place of
+ *  Log calls on the sampling and bus threads. An event is a defined
+ *  type and up to six int arguments, written as a fixed size binary
+ *  record into a preallocated ring. Recording never allocates or
+ *  formats; events below the current level cost one compare.
+ *
+ *  The ring is drained into readable lines off the hot threads, see
+ *  EventExporter. If writers lap the reader, the overwritten records
+ *  are skipped and counted as lost instead of blocking the writers.
+ *  Each slot is guarded by the sequence it holds, a seqlock: the reader
+ *  checks it before and after copying the record. The record words
+ *  live in an AtomicLongArray as well, so every access on both sides
+ *  is volatile and a copy that raced a writer is always noticed.
+ *
+ *  Record layout, RECORD_WORDS longs per slot:
+ *      0   System.nanoTime() of the event
+ *      1   level << 56 | type << 32 | a
+ *      2   b << 32 | c
+ *      3   d << 32 | e
+ *      4   f
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class EventRecorder {
+
+    public static final int DEBUG = 0;      // Levels, lowest first.
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    public static final int MAX_TYPES = 256;
+    public static final int MAX_ARGS = 6;
+    private static final int RECORD_WORDS = 5;
+    private static final char[] LEVEL_CHARS = {'D', 'I', 'W', 'E'};
+
+    private final int mMask;
+    private final AtomicLongArray mData;
+    private final AtomicLongArray mPublished;   // Sequence held by each slot, -1 while being written.
+    private final AtomicLong mClaimed = new AtomicLong(0);
+    private volatile int mLevel = DEBUG;
+
+    private final String[] mNames = new String[MAX_TYPES];
+    private final String[][] mArgNames = new String[MAX_TYPES][];
+    private final int[] mTypeLevels = new int[MAX_TYPES];
+    private int mTypes = 0;
+
+    private final long mStartNanos = System.nanoTime();     // Lines carry wall clock time.
+    private final long mStartMs = System.currentTimeMillis();
+
+    private long mRead = 0;         // Next sequence to drain, reader only.
+    private volatile long mLost = 0;    // Records overwritten before they were drained, written by the reader.
+
+    /**
+     * @param capacity  Records kept, rounded up to a power of two.
+     */
+    public EventRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mData = new AtomicLongArray(size * RECORD_WORDS);
+        mPublished = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mPublished.set(i, -1);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Defines an event type. Done once at startup, usually into
+     *      a static final field.
+     *
+     * @param level     Level the type is recorded at.
+     * @param name      Name shown in the exported line.
+     * @param args      Names of the arguments, at most MAX_ARGS.
+     * @return  Type to pass to record.
+     */
+    public synchronized int define(int level, String name, String... args) {
+        if (mTypes == MAX_TYPES || args.length > MAX_ARGS) {
+            throw new IllegalArgumentException("Can't define event " + name);
+        }
+        mNames[mTypes] = name;
+        mArgNames[mTypes] = args.clone();
+        mTypeLevels[mTypes] = level;
+        return mTypes++;
+    }
+
+    public void setLevel(int level) {
+        mLevel = level;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @param type  Event type.
+     * @return  True if events of this type are recorded at the current level.
+     */
+    public boolean isEnabled(int type) {
+        return mTypeLevels[type] >= mLevel;
+    }
+
+    public void record(int type) {
+        record(type, 0, 0, 0, 0, 0, 0);
+    }
+
+    public void record(int type, int a) {
+        record(type, a, 0, 0, 0, 0, 0);
+    }
+
+    public void record(int type, int a, int b) {
+        record(type, a, b, 0, 0, 0, 0);
+    }
+
+    public void record(int type, int a, int b, int c) {
+        record(type, a, b, c, 0, 0, 0);
+    }
+
+    /**
+     *  Description:
+     *      Records an event. Safe from any thread, never blocks or
+     *      allocates. Arguments the type doesn't name are ignored.
+     *
+     * @param type  Type from define.
+     */
+    public void record(int type, int a, int b, int c, int d, int e, int f) {
+        int level = mTypeLevels[type];
+        if (level < mLevel) {
+            return;
+        }
+        long seq = mClaimed.getAndIncrement();
+        int slot = (int) seq & mMask;
+        int base = slot * RECORD_WORDS;
+        mPublished.set(slot, -1);       // Readers skip the slot until it is complete.
+        mData.set(base, System.nanoTime());
+        mData.set(base + 1, ((long) level << 56) | ((long) type << 32) | (a & 0xFFFFFFFFL));
+        mData.set(base + 2, ((long) b << 32) | (c & 0xFFFFFFFFL));
+        mData.set(base + 3, ((long) d << 32) | (e & 0xFFFFFFFFL));
+        mData.set(base + 4, f);
+        mPublished.lazySet(slot, seq);
+    }
+
+    /**
+     *  Description:
+     *      Formats recorded events, oldest first, as one line each:
+     *      wall clock milliseconds, level, name and named arguments.
+     *      Only one thread may drain.
+     *
+     * @param out       Lines are appended here, each ending in '\n'.
+     * @param maxEvents Most events to drain.
+     * @return  Number of events drained.
+     */
+    public int drain(StringBuilder out, int maxEvents) {
+        int drained = 0;
+        while (drained < maxEvents && drainOne(out) >= 0) {
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     *  Description:
+     *      Formats the oldest recorded event as one line, the way
+     *      drain does.
+     *
+     * @param out   The line is appended here, ending in '\n'.
+     * @return  Level of the event, -1 if there was none.
+     */
+    public int drainOne(StringBuilder out) {
+        long claimed = mClaimed.get();
+        if (claimed - mRead > mMask + 1) {
+            mLost += claimed - (mMask + 1) - mRead;     // Lapped, the oldest are gone.
+            mRead = claimed - (mMask + 1);
+        }
+        while (mRead < claimed) {
+            int slot = (int) mRead & mMask;
+            int base = slot * RECORD_WORDS;
+            long seq = mPublished.get(slot);
+            if (seq < mRead) {
+                return -1;      // Still being written, read next time.
+            }
+            long time = mData.get(base);
+            long w1 = mData.get(base + 1);
+            long w2 = mData.get(base + 2);
+            long w3 = mData.get(base + 3);
+            long w4 = mData.get(base + 4);
+            mRead++;
+            if (seq != mRead - 1 || mPublished.get(slot) != seq) {
+                mLost++;        // Overwritten under us.
+                continue;
+            }
+            int level = (int) (w1 >>> 56);
+            int type = (int) (w1 >>> 32) & 0xFF;
+            out.append(mStartMs + (time - mStartNanos) / 1000000)
+                    .append(' ').append(LEVEL_CHARS[level])
+                    .append(' ').append(mNames[type]);
+            String[] args = mArgNames[type];
+            for (int i = 0; i < args.length; i++) {
+                int value;
+                switch (i) {
+                    case 0:
+                        value = (int) w1;
+                        break;
+                    case 1:
+                        value = (int) (w2 >> 32);
+                        break;
+                    case 2:
+                        value = (int) w2;
+                        break;
+                    case 3:
+                        value = (int) (w3 >> 32);
+                        break;
+                    case 4:
+                        value = (int) w3;
+                        break;
+                    default:
+                        value = (int) w4;
+                        break;
+                }
+                out.append(' ').append(args[i]).append('=').append(value);
+            }
+            out.append('\n');
+            return level;
+        }
+        return -1;
+    }
+
+    public long getRecorded() {
+        return mClaimed.get();
+    }
+
+    public long getLost() {
+        return mLost;
+    }
+
+    /**
+     *  Description:
+     *      One line with the counters of the recorder.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public StringBuilder summary(StringBuilder out) {
+        int level = mLevel;
+        return out.append("events recorded=").append(getRecorded())
+                .append(" lost=").append(mLost)
+                .append(" level=").append(level < OFF ? LEVEL_CHARS[level] : '-')
+                .append('\n');
+    }
+}
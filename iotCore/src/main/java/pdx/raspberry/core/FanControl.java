@@ -0,0 +1,146 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the fan controller (PWM3). A PID
+ *  loop holds the temperature at a setpoint from the phone. It runs
+ *  at a fixed control rate on the sampling thread with fixed point
+ *  math: gains are Q16 PWM counts per tenth of a degree, the integral
+ *  is a Q16 long, and nothing is allocated.
+ *
+ *  The integral stops growing while the output is pinned at a limit
+ *  (anti-windup) and the output moves at most a few counts per step
+ *  (slew limit), so the fan and the bus don't see sudden jumps.
+ *  Changes smaller than a hold band are skipped, so ADC noise doesn't
+ *  turn into a PWM3 write every step.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class FanControl {
+
+    public static final int PWM_MAX = 1023;     // 100% duty cycle.
+    public static final int Q = 16;             // Fraction bits of the gains.
+    public static final int DEFAULT_SETPOINT = 250;     // Tenths of a degree Celsius.
+    public static final int DEFAULT_KP = 4 << Q;        // Counts per tenth of a degree. Tuned on Pic16Simulator.
+    public static final int DEFAULT_KI = (1 << Q) / 10; // Counts per tenth of a degree per second.
+    public static final int DEFAULT_KD = 0;             // Counts per tenth of a degree per second of change.
+    public static final int DEFAULT_SLEW = 10;          // Counts per step.
+    public static final int DEFAULT_HOLD = 16;          // Output changes smaller than this are skipped.
+
+    private final int mControlHz;       // Steps per second.
+    private int mKp = DEFAULT_KP;
+    private int mKi = DEFAULT_KI;
+    private int mKd = DEFAULT_KD;
+    private int mSlew = DEFAULT_SLEW;
+    private int mHold = DEFAULT_HOLD;
+    private int mSetpoint = DEFAULT_SETPOINT;
+
+    private long mIntegral = 0;         // Q16 counts.
+    private int mLastMeasured;          // For the derivative, taken on the measurement.
+    private boolean mHaveLast = false;
+    private int mOutput = 0;            // Duty cycle of the last step.
+    private long mChanges = 0;          // Steps that changed the duty cycle.
+
+    /**
+     * @param controlHz Times per second update() is called.
+     */
+    public FanControl(int controlHz) {
+        if (controlHz <= 0) {
+            throw new IllegalArgumentException("Control rate must be positive");
+        }
+        mControlHz = controlHz;
+    }
+
+    /**
+     *  Description:
+     *      Sets the PID gains, Q16 fixed point.
+     *
+     * @param kp    Counts per tenth of a degree of error.
+     * @param ki    Counts per tenth of a degree of error per second.
+     * @param kd    Counts per tenth of a degree per second of change.
+     */
+    public void setGains(int kp, int ki, int kd) {
+        mKp = kp;
+        mKi = ki;
+        mKd = kd;
+    }
+
+    /**
+     * @param counts    Most the duty cycle may move in one step.
+     */
+    public void setSlew(int counts) {
+        mSlew = counts;
+    }
+
+    /**
+     * @param counts    Output changes up to this size are not made,
+     *                  so sensor noise doesn't cause a bus write every step.
+     */
+    public void setHold(int counts) {
+        mHold = counts;
+    }
+
+    /**
+     * @param tenths    Temperature to hold in tenths of a degree Celsius.
+     */
+    public void setSetpoint(int tenths) {
+        mSetpoint = tenths;
+    }
+
+    public int getSetpoint() {
+        return mSetpoint;
+    }
+
+    public int getOutput() {
+        return mOutput;
+    }
+
+    public long getChanges() {
+        return mChanges;
+    }
+
+    /**
+     *  Description:
+     *      Runs one control step. Warmer than the setpoint gives
+     *      more fan.
+     *
+     * @param measured  Temperature in tenths of a degree Celsius.
+     * @return  PWM3 duty cycle, 0 to PWM_MAX.
+     */
+    public int update(int measured) {
+        int error = measured - mSetpoint;
+        long derivative = mHaveLast ? (long) mKd * (measured - mLastMeasured) * mControlHz : 0;
+        mLastMeasured = measured;
+        mHaveLast = true;
+
+        long integral = mIntegral + (long) mKi * error / mControlHz;
+        long wanted = ((long) mKp * error + integral + derivative) >> Q;
+
+        long target = Math.max(0, Math.min(wanted, PWM_MAX));
+        long output = mOutput;
+        if (Math.abs(target - mOutput) >= mHold || target == 0 || target == PWM_MAX) {
+            output = Math.max(mOutput - mSlew, Math.min(target, mOutput + mSlew));
+            if ((output < wanted && error > 0) || (output > wanted && error < 0)) {
+                integral = mIntegral;   // Limited, integrating would only wind up.
+            }
+        }   // Otherwise too small to be worth a write, the integral moves it later.
+        mIntegral = Math.max(0, Math.min(integral, (long) PWM_MAX << Q));
+
+        if (output != mOutput) {
+            mChanges++;
+        }
+        mOutput = (int) output;
+        return mOutput;
+    }
+
+    /**
+     *  Description:
+     *      Forgets the integral and the last measurement.
+     */
+    public void reset() {
+        mIntegral = 0;
+        mHaveLast = false;
+        mOutput = 0;
+    }
+}
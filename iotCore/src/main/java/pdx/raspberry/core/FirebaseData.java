@@ -9,15 +9,13 @@
  *      member created in firebase is in this class.
  *      The class can initialize and set the members
  *      it contains. Google resources for reading/writing
- *      firebase were used for the class.
+ *      firebase were used for the class. Shared by the
+ *      Pi and phone apps.
  *
  *
  */
 
-package pdx.raspberry.pi_app;
-
-import com.google.firebase.database.Exclude;
-import com.google.firebase.database.IgnoreExtraProperties;
+package pdx.raspberry.core;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -31,7 +29,6 @@ import java.util.Map;
  *      keeping the most up to date results.
  *
  */
-@IgnoreExtraProperties
 public class FirebaseData {
 
     public int ADA5IN;
@@ -43,14 +40,17 @@ public class FirebaseData {
     public int PWM4;
     public int PWM5;
     public int PWM6;
-    public String TIMESTAMP;
+    public int SETPOINT;        // Fan temperature in tenths of a degree, 0 for the Pi's default.
+    public long TIMESTAMP;      // Epoch milliseconds, set by the server.
+    public long SEQ;            // Sequence number of a command, newer commands are larger.
+    public long UI_MS;          // Server time of the user input behind a command, for tracing.
     public Map<String, Boolean> temp = new HashMap<>();
 
     public FirebaseData() {
         // Default constructor required for calls to DataSnapshot.getValue(FirebaseData.class)
     }
 
-    public FirebaseData(int ADA5IN, int ADC3IN , int ADC4IN, int ADC5IN, int DAC1OUT, int PWM3, int PWM4, int PWM5, int PWM6, String TIMESTAMP) {
+    public FirebaseData(int ADA5IN, int ADC3IN , int ADC4IN, int ADC5IN, int DAC1OUT, int PWM3, int PWM4, int PWM5, int PWM6, long TIMESTAMP) {
         this.ADA5IN = ADA5IN;
         this.ADC3IN = ADC3IN;
         this.ADC4IN = ADC4IN;
@@ -63,7 +63,6 @@ public class FirebaseData {
         this.TIMESTAMP = TIMESTAMP;
     }
 
-    @Exclude
     public Map<String, Object> toMap() {    // Creates appropriate object for updating Firebase.
         HashMap<String, Object> result = new HashMap<>();
         result.put("ADA5IN", ADA5IN);
@@ -75,7 +74,21 @@ public class FirebaseData {
         result.put("PWM4", PWM4);
         result.put("PWM5", PWM5);
         result.put("PWM6", PWM6);
-        result.put("TIMESTAMP", TIMESTAMP);
+        result.put(TelemetryCodec.TIMESTAMP, TelemetryCodec.SERVER_TIMESTAMP);  // Server writes the time.
+
+        return result;
+    }
+
+    public Map<String, Object> toCommandMap() {    // Only the outputs the phone controls, for the commands node.
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("DAC1OUT", DAC1OUT);
+        result.put("PWM4", PWM4);
+        result.put("PWM5", PWM5);
+        result.put("PWM6", PWM6);
+        result.put("SETPOINT", SETPOINT);
+        result.put("SEQ", SEQ);
+        result.put("UI_MS", UI_MS);
+        result.put(TelemetryCodec.TIMESTAMP, TelemetryCodec.SERVER_TIMESTAMP);  // Server writes the time.
 
         return result;
     }
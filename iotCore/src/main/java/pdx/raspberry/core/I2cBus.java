@@ -0,0 +1,63 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the interface to a slave on the I2C
+ *  bus. RaspPi implements it, and is built on top of either the Android
+ *  Things device or the PIC16 simulator, so the sampling and control
+ *  code can run on a plain JVM.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.IOException;
+
+public interface I2cBus {
+
+    /**
+     * @param reg   Register address.
+     * @return  Byte in the register.
+     * @throws IOException I2C exception.
+     */
+    byte readRegByteI2C(int reg) throws IOException;
+
+    /**
+     * @param reg   Register address.
+     * @return  16 bit word, low byte first on the bus.
+     * @throws IOException I2C exception.
+     */
+    int readRegWordI2C(int reg) throws IOException;
+
+    /**
+     *  Description:
+     *      Reads consecutive registers in one transaction.
+     *
+     * @param start     First register.
+     * @param buffer    Buffer for the register bytes.
+     * @param length    Number of bytes to read.
+     * @throws IOException I2C exception.
+     */
+    void readRegBufferI2C(int start, byte[] buffer, int length) throws IOException;
+
+    /**
+     * @param reg   Register address.
+     * @param data  Byte for the register.
+     * @throws IOException I2C exception.
+     */
+    void writeRegByteI2C(int reg, byte data) throws IOException;
+
+    /**
+     * @param reg   Register address.
+     * @param data  Word for the register.
+     * @throws IOException I2C exception.
+     */
+    void writeRegWordI2C(int reg, short data) throws IOException;
+
+    /**
+     *  Description:
+     *      Releases the bus.
+     *
+     * @throws IOException I2C exception.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,140 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains per register counters for I2C
+ *  transactions: count, errors, retries and time on the bus. Slow
+ *  transactions without errors point at the PIC, errors at normal
+ *  speed point at the wiring. Recording doesn't allocate.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class I2cMetrics {
+
+    public static final int REGISTERS = 32;     // Register addresses tracked, larger ones share the last slot.
+
+    private final long[] mCount = new long[REGISTERS];
+    private final long[] mErrors = new long[REGISTERS];
+    private final long[] mRetries = new long[REGISTERS];
+    private final long[] mTotalNanos = new long[REGISTERS];
+    private final long[] mMaxNanos = new long[REGISTERS];
+    private long mReopens = 0;
+
+    private static int slot(int reg) {
+        return (reg < 0 || reg >= REGISTERS) ? REGISTERS - 1 : reg;
+    }
+
+    /**
+     *  Description:
+     *      Counts one transaction attempt.
+     *
+     * @param reg   Register addressed, or the first one of a burst.
+     * @param nanos Time spent in the transaction.
+     * @param ok    False if it failed.
+     */
+    public synchronized void record(int reg, long nanos, boolean ok) {
+        int slot = slot(reg);
+        mCount[slot]++;
+        mTotalNanos[slot] += nanos;
+        if (nanos > mMaxNanos[slot]) {
+            mMaxNanos[slot] = nanos;
+        }
+        if (!ok) {
+            mErrors[slot]++;
+        }
+    }
+
+    public synchronized void retried(int reg) {
+        mRetries[slot(reg)]++;
+    }
+
+    public synchronized void reopened() {
+        mReopens++;
+    }
+
+    public synchronized long getTransactions(int reg) {
+        return mCount[slot(reg)];
+    }
+
+    public synchronized long getErrors(int reg) {
+        return mErrors[slot(reg)];
+    }
+
+    public synchronized long getRetries(int reg) {
+        return mRetries[slot(reg)];
+    }
+
+    public synchronized long getMeanNanos(int reg) {
+        int slot = slot(reg);
+        return mCount[slot] == 0 ? 0 : mTotalNanos[slot] / mCount[slot];
+    }
+
+    public synchronized long getMaxNanos(int reg) {
+        return mMaxNanos[slot(reg)];
+    }
+
+    public synchronized long getTransactions() {
+        return sum(mCount);
+    }
+
+    public synchronized long getErrors() {
+        return sum(mErrors);
+    }
+
+    public synchronized long getRetries() {
+        return sum(mRetries);
+    }
+
+    public synchronized long getReopens() {
+        return mReopens;
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    /**
+     *  Description:
+     *      Writes a totals line, then one line per register used:
+     *      reg count errors retries mean and max in microseconds.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public synchronized StringBuilder summary(StringBuilder out) {
+        out.append("i2c n=").append(sum(mCount))
+                .append(" err=").append(sum(mErrors))
+                .append(" retry=").append(sum(mRetries))
+                .append(" reopen=").append(mReopens)
+                .append('\n');
+        for (int reg = 0; reg < REGISTERS; reg++) {
+            if (mCount[reg] == 0) {
+                continue;
+            }
+            out.append("  reg 0x").append(Integer.toHexString(reg))
+                    .append(" n=").append(mCount[reg])
+                    .append(" err=").append(mErrors[reg])
+                    .append(" retry=").append(mRetries[reg])
+                    .append(" mean=").append(mTotalNanos[reg] / mCount[reg] / 1000).append("us")
+                    .append(" max=").append(mMaxNanos[reg] / 1000).append("us")
+                    .append('\n');
+        }
+        return out;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < REGISTERS; i++) {
+            mCount[i] = 0;
+            mErrors[i] = 0;
+            mRetries[i] = 0;
+            mTotalNanos[i] = 0;
+            mMaxNanos[i] = 0;
+        }
+        mReopens = 0;
+    }
+}
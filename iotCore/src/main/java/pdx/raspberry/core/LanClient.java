@@ -0,0 +1,249 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the phone end of the LAN control
+ *  path. It sends a DISCOVER for one Pi every DISCOVER_MS, broadcast
+ *  until the Pi answers and to the Pi afterwards, which also keeps the
+ *  Pi sending. The link counts as up while packets keep arriving;
+ *  otherwise the cloud path is the only one used. Packets are signed
+ *  and checked with the device key read from the database, and only
+ *  an ANNOUNCE echoing the newest DISCOVER clock is taken, so a
+ *  recorded one can't point the client at another host.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Mac;
+
+public class LanClient extends LanEndpoint {
+
+    /**
+     *  Description:
+     *      Told that telemetry or an acknowledgement arrived, on the
+     *      receive thread. Values are read with pollTelemetry and
+     *      getAck.
+     */
+    public interface Listener {
+        void onReceive();
+    }
+
+    public static final int DISCOVER_MS = 1000;
+    public static final int LINK_TIMEOUT_MS = 3000;     // Link is down after this long without a packet.
+
+    private final byte[] mId;
+    private final int mLinkTimeoutMs;
+    private final InetAddress mTarget;      // Broadcast address, or the Pi when known.
+    private final int mPort;
+    private final ByteBuffer mOut = ByteBuffer.allocate(LanProtocol.MAX_PACKET);    // Send thread only.
+    private final FirebaseData mOutCommand = new FirebaseData();
+    private final Mac mTxMac;
+    private final byte[] mTxTag = new byte[LanProtocol.MAC_BYTES];
+    private final Mac mRxMac;               // Receive thread only.
+    private final byte[] mRxTag = new byte[LanProtocol.MAC_BYTES];
+    private volatile Listener mListener = null;
+
+    private InetAddress mServer = null;     // Guarded by this.
+    private int mServerPort = 0;
+    private long mHeardMs = 0;
+    private long mDiscoverClock = 0;        // Clock of the newest DISCOVER sent.
+    private final FirebaseData mPending = new FirebaseData();   // Newest command not yet sent.
+    private boolean mCommandPending = false;
+    private final int[] mChannels = new int[TelemetryDelta.FIELDS.length];  // Newest telemetry.
+    private long mTime = 0;
+    private int mTrace = 0;
+    private int mAge = 0;
+    private boolean mFresh = false;
+    private long mAck = 0;
+
+    /**
+     *  Description:
+     *      Creates the client. Call start to begin discovery.
+     *
+     * @param deviceId  Id of the Pi to control.
+     * @param key       Device key from the database.
+     * @param target    Where DISCOVER is sent, usually 255.255.255.255.
+     * @param port      Port of the Pi, usually LanProtocol.PORT.
+     */
+    public LanClient(String deviceId, byte[] key, InetAddress target, int port) throws SocketException {
+        this(deviceId, key, target, port, DISCOVER_MS, LINK_TIMEOUT_MS);
+    }
+
+    /**
+     * @param discoverMs    Time between DISCOVER packets.
+     * @param linkTimeoutMs Link is down after this long without a packet,
+     *                      longer than discoverMs.
+     */
+    public LanClient(String deviceId, byte[] key, InetAddress target, int port, int discoverMs, int linkTimeoutMs)
+            throws SocketException {
+        super(broadcastSocket(), discoverMs);
+        mId = LanProtocol.encodeId(deviceId);
+        mLinkTimeoutMs = linkTimeoutMs;
+        mTxMac = LanProtocol.newMac(key);
+        mRxMac = LanProtocol.newMac(key);
+        mTarget = target;
+        mPort = port;
+    }
+
+    private static DatagramSocket broadcastSocket() throws SocketException {
+        DatagramSocket socket = new DatagramSocket();
+        socket.setBroadcast(true);
+        return socket;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized boolean isConnected() {
+        return mServer != null && nowMs() - mHeardMs < mLinkTimeoutMs;
+    }
+
+    /**
+     *  Description:
+     *      Queues the newest commands for the Pi. Never blocks; a
+     *      command not sent yet is replaced by a newer one.
+     *
+     * @param data  Commands to send, copied.
+     * @return  True if the link is up and the command will be sent.
+     */
+    public boolean sendCommand(FirebaseData data) {
+        synchronized (this) {
+            if (!isConnected()) {
+                return false;
+            }
+            mPending.SEQ = data.SEQ;
+            mPending.UI_MS = data.UI_MS;
+            mPending.DAC1OUT = data.DAC1OUT;
+            mPending.PWM4 = data.PWM4;
+            mPending.PWM5 = data.PWM5;
+            mPending.PWM6 = data.PWM6;
+            mPending.SETPOINT = data.SETPOINT;
+            mCommandPending = true;
+        }
+        wake();
+        return true;
+    }
+
+    /**
+     *  Description:
+     *      Copies the newest telemetry, in TelemetryDelta order.
+     *
+     * @param channels  Values to fill.
+     * @return  False if nothing arrived since the last call.
+     */
+    public synchronized boolean pollTelemetry(int[] channels) {
+        if (!mFresh) {
+            return false;
+        }
+        System.arraycopy(mChannels, 0, channels, 0, mChannels.length);
+        mFresh = false;
+        return true;
+    }
+
+    public synchronized long getAck() {
+        return mAck;
+    }
+
+    public synchronized long getTelemetryTime() {
+        return mTime;
+    }
+
+    public synchronized int getTrace() {
+        return mTrace;
+    }
+
+    public synchronized int getAge() {
+        return mAge;
+    }
+
+    @Override
+    protected void onPacket(ByteBuffer in, InetAddress address, int port) {
+        if (!LanProtocol.verify(in, mRxMac, mRxTag)) {
+            return;     // Not from the Pi.
+        }
+        int type = LanProtocol.type(in);
+        synchronized (this) {
+            if (type == LanProtocol.ANNOUNCE) {
+                if (!LanProtocol.matchesId(in, mId) || in.remaining() < 8) {
+                    return;     // Another board.
+                }
+                if (in.getLong() != mDiscoverClock) {
+                    return;     // Not the answer to the newest DISCOVER, played back.
+                }
+                mServer = address;
+                mServerPort = port;
+            } else if (mServer == null || !address.equals(mServer) || port != mServerPort) {
+                return;
+            } else if (type == LanProtocol.ACK && in.remaining() >= 8) {
+                mAck = Math.max(mAck, in.getLong());
+            } else if (type == LanProtocol.TELEMETRY && in.remaining() >= LanProtocol.telemetryBytes()) {
+                mTime = in.getLong();
+                mAck = Math.max(mAck, in.getLong());
+                mTrace = in.getInt();
+                mAge = in.getInt();
+                for (int i = 0; i < mChannels.length; i++) {
+                    mChannels[i] = in.getInt();
+                }
+                mFresh = true;
+            } else {
+                return;
+            }
+            mHeardMs = nowMs();
+        }
+        Listener listener = mListener;
+        if (listener != null && type != LanProtocol.ANNOUNCE) {
+            listener.onReceive();
+        }
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        InetAddress server;
+        int port;
+        synchronized (this) {
+            if (!mCommandPending) {
+                return;
+            }
+            mCommandPending = false;
+            server = mServer;
+            port = mServerPort;
+            mOutCommand.SEQ = mPending.SEQ;
+            mOutCommand.UI_MS = mPending.UI_MS;
+            mOutCommand.DAC1OUT = mPending.DAC1OUT;
+            mOutCommand.PWM4 = mPending.PWM4;
+            mOutCommand.PWM5 = mPending.PWM5;
+            mOutCommand.PWM6 = mPending.PWM6;
+            mOutCommand.SETPOINT = mPending.SETPOINT;
+        }
+        LanProtocol.begin(mOut, LanProtocol.COMMAND);
+        LanProtocol.putCommand(mOut, mOutCommand);
+        LanProtocol.sign(mOut, mTxMac, mTxTag);
+        send(mOut, server, port);
+    }
+
+    @Override
+    protected void onTick(long nowMs) throws IOException {
+        InetAddress to;
+        int port;
+        long clock;
+        synchronized (this) {
+            boolean linked = isConnected();
+            to = linked ? mServer : mTarget;    // Broadcast again if the Pi went quiet.
+            port = linked ? mServerPort : mPort;
+            clock = Math.max(mDiscoverClock + 1, System.currentTimeMillis());  // Increasing even if the clock steps back.
+            mDiscoverClock = clock;
+        }
+        LanProtocol.begin(mOut, LanProtocol.DISCOVER);
+        LanProtocol.putId(mOut, mId);
+        mOut.putLong(clock);
+        LanProtocol.sign(mOut, mTxMac, mTxTag);
+        send(mOut, to, port);
+    }
+}
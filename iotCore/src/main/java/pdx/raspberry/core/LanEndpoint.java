@@ -0,0 +1,200 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the UDP socket and threads shared by
+ *  both ends of the LAN control path. A receive thread hands packets to
+ *  the subclass, and a send thread flushes whatever the subclass has
+ *  pending when woken. Callers on the main or sampling thread only
+ *  store values and wake the sender, so they never block on the
+ *  network, which Android also forbids on the main thread.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public abstract class LanEndpoint {
+
+    private final DatagramSocket mSocket;
+    private final int mTickMs;
+    private final byte[] mInBytes = new byte[LanProtocol.MAX_PACKET];
+    private final ByteBuffer mIn = ByteBuffer.wrap(mInBytes);
+    private final DatagramPacket mInPacket = new DatagramPacket(mInBytes, mInBytes.length);
+    private final DatagramPacket mOutPacket = new DatagramPacket(new byte[0], 0);
+
+    private volatile boolean mRunning = false;
+    private Thread mReceiver = null;
+    private volatile Thread mSender = null;     // Read by wake() on any thread.
+
+    /**
+     * @param socket    Bound socket, closed by stop().
+     * @param tickMs    Time between onTick calls.
+     */
+    protected LanEndpoint(DatagramSocket socket, int tickMs) throws SocketException {
+        mSocket = socket;
+        mTickMs = tickMs;
+        mSocket.setSoTimeout(tickMs);
+    }
+
+    /**
+     *  Description:
+     *      Starts the receive and send threads.
+     *
+     * @param name  Prefix of the thread names.
+     */
+    public synchronized void start(String name) {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mReceiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        }, name + "-rx");
+        mSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, name + "-tx");
+        mReceiver.setDaemon(true);
+        mSender.setDaemon(true);
+        mReceiver.start();
+        mSender.start();
+    }
+
+    /**
+     *  Description:
+     *      Stops both threads and closes the socket.
+     */
+    public void stop() {
+        Thread receiver;
+        Thread sender;
+        synchronized (this) {
+            mRunning = false;
+            receiver = mReceiver;
+            sender = mSender;
+            mReceiver = null;
+            mSender = null;
+        }
+        mSocket.close();    // Unblocks the receive.
+        if (sender != null) {
+            LockSupport.unpark(sender);
+        }
+        try {
+            if (receiver != null) {
+                receiver.join();
+            }
+            if (sender != null) {
+                sender.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getLocalPort() {
+        return mSocket.getLocalPort();
+    }
+
+    /**
+     *  Description:
+     *      Wakes the send thread to flush what is pending.
+     */
+    protected void wake() {
+        Thread sender = mSender;
+        if (sender != null) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Sends an encoded packet. Only called from flush or onTick.
+     *
+     * @param out       Packet, from position 0 to the current position.
+     * @param address   Destination.
+     * @param port      Destination port.
+     */
+    protected void send(ByteBuffer out, InetAddress address, int port) throws IOException {
+        mOutPacket.setData(out.array(), 0, out.position());
+        mOutPacket.setAddress(address);
+        mOutPacket.setPort(port);
+        mSocket.send(mOutPacket);
+    }
+
+    /**
+     *  Description:
+     *      Handles a packet on the receive thread.
+     *
+     * @param in        Packet, positioned at the start.
+     * @param address   Sender.
+     * @param port      Sender's port.
+     */
+    protected abstract void onPacket(ByteBuffer in, InetAddress address, int port) throws IOException;
+
+    /**
+     *  Description:
+     *      Sends whatever is pending, on the send thread.
+     */
+    protected abstract void flush() throws IOException;
+
+    /**
+     *  Description:
+     *      Periodic work, on the send thread every tickMs.
+     *
+     * @param nowMs     Monotonic time in milliseconds.
+     */
+    protected void onTick(long nowMs) throws IOException {
+    }
+
+    protected static long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void receiveLoop() {
+        while (mRunning) {
+            try {
+                mInPacket.setLength(mInBytes.length);
+                mSocket.receive(mInPacket);
+                mIn.clear();
+                mIn.limit(mInPacket.getLength());
+                onPacket(mIn, mInPacket.getAddress(), mInPacket.getPort());
+            } catch (SocketTimeoutException e) {
+                // Nothing received, loop to check mRunning.
+            } catch (IOException e) {
+                if (!mRunning) {
+                    return;     // Socket closed by stop().
+                }
+            }
+        }
+    }
+
+    private void sendLoop() {
+        long nextTick = 0;
+        while (mRunning) {
+            try {
+                flush();
+                long now = nowMs();
+                if (now >= nextTick) {
+                    onTick(now);
+                    nextTick = now + mTickMs;
+                }
+            } catch (IOException e) {
+                // Dropped like any datagram, the cloud path still has it.
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, nextTick - nowMs())));   // Until woken or the next tick.
+        }
+    }
+}
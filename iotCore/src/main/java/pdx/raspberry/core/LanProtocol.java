@@ -0,0 +1,334 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the packets of the LAN control path.
+ *  The phone and the Pi exchange the same commands, acknowledgements
+ *  and telemetry they write to Firebase, as small UDP datagrams. Every
+ *  packet starts with a magic number, a version and a type:
+ *
+ *      DISCOVER    Phone, broadcast every second. Device id wanted
+ *                  and the phone's clock, which must keep increasing.
+ *      ANNOUNCE    Pi, reply to DISCOVER. Its device id and the
+ *                  clock of the DISCOVER answered.
+ *      COMMAND     Phone. SEQ, UI_MS, DAC1OUT, PWM4..6, SETPOINT.
+ *      ACK         Pi. SEQ of the command on the hardware.
+ *      TELEMETRY   Pi. Time, applied SEQ, trace, age and every
+ *                  channel in TelemetryDelta order.
+ *
+ *  Every packet ends with a TAG_BYTES HMAC-SHA256 tag over everything
+ *  before it, keyed with a per-device key. The Pi creates the key and
+ *  publishes it in its database shard, so only phones signed in to the
+ *  account can talk to it; a host that merely sees the broadcasts
+ *  can't forge or alter a packet. Replays are rejected by the SEQ of
+ *  commands and the clock of discoveries, which an ANNOUNCE echoes so
+ *  the phone only accepts the answer to its newest DISCOVER.
+ *
+ *  Packets are encoded into and decoded from reused buffers.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class LanProtocol {
+
+    public static final int PORT = 47800;           // UDP port of the Pi.
+    public static final int MAX_PACKET = 128;
+    public static final int KEY_BYTES = 32;
+    public static final int TAG_BYTES = 16;         // HMAC-SHA256 truncated to 128 bits.
+    public static final int MAC_BYTES = 32;         // Full HMAC-SHA256, size of the scratch arrays.
+
+    public static final int DISCOVER = 1;           // Packet types.
+    public static final int ANNOUNCE = 2;
+    public static final int COMMAND = 3;
+    public static final int ACK = 4;
+    public static final int TELEMETRY = 5;
+
+    private static final short MAGIC = 0x4C4E;      // "LN"
+    private static final byte VERSION = 2;          // 2 added the tags and clocks.
+    private static final int MAX_ID = 64;           // Longest device id in bytes.
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String HMAC = "HmacSHA256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private LanProtocol() {
+    }
+
+    /**
+     *  Description:
+     *      Encodes a device id once, so packets carrying it don't
+     *      allocate.
+     *
+     * @param deviceId  Id of the Pi.
+     * @return  UTF-8 bytes of the id.
+     */
+    public static byte[] encodeId(String deviceId) {
+        byte[] id = DevicePaths.checkId(deviceId).getBytes(UTF_8);
+        if (id.length > MAX_ID) {
+            throw new IllegalArgumentException("Device id too long: " + deviceId);
+        }
+        return id;
+    }
+
+    /**
+     *  Description:
+     *      Starts a packet.
+     *
+     * @param out   Buffer to write, cleared first.
+     * @param type  Packet type.
+     */
+    public static void begin(ByteBuffer out, int type) {
+        out.clear();
+        out.putShort(MAGIC).put(VERSION).put((byte) type);
+    }
+
+    /**
+     *  Description:
+     *      Checks the header of a received packet.
+     *
+     * @param in    Received packet, positioned at the start.
+     * @return  Packet type, or 0 if it isn't one of ours.
+     */
+    public static int type(ByteBuffer in) {
+        if (in.remaining() < 4 || in.getShort() != MAGIC || in.get() != VERSION) {
+            return 0;
+        }
+        return in.get();
+    }
+
+    /**
+     *  Description:
+     *      Creates the HMAC for one thread. A Mac isn't
+     *      thread safe, so each thread signing or checking needs its own.
+     *
+     * @param key   Device key, KEY_BYTES long.
+     * @return  Initialized HMAC-SHA256.
+     */
+    public static Mac newMac(byte[] key) {
+        if (key == null || key.length != KEY_BYTES) {
+            throw new IllegalArgumentException("LAN key must be " + KEY_BYTES + " bytes");
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC + " unavailable", e);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Ends a packet with the tag over everything written so far.
+     *
+     * @param out       Packet, from 0 to the current position.
+     * @param mac       HMAC of the sending thread.
+     * @param scratch   MAC_BYTES, reused.
+     */
+    public static void sign(ByteBuffer out, Mac mac, byte[] scratch) {
+        mac.update(out.array(), 0, out.position());
+        try {
+            mac.doFinal(scratch, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);     // Only if scratch is too short.
+        }
+        out.put(scratch, 0, TAG_BYTES);
+    }
+
+    /**
+     *  Description:
+     *      Checks the tag of a received packet and strips it, so only
+     *      the packet itself is left to decode.
+     *
+     * @param in        Packet, from 0 to its limit.
+     * @param mac       HMAC of the receiving thread.
+     * @param scratch   MAC_BYTES, reused.
+     * @return  False if the tag is missing or wrong.
+     */
+    public static boolean verify(ByteBuffer in, Mac mac, byte[] scratch) {
+        int length = in.limit() - TAG_BYTES;
+        if (length < 4) {
+            return false;
+        }
+        mac.update(in.array(), 0, length);
+        try {
+            mac.doFinal(scratch, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        int diff = 0;
+        for (int i = 0; i < TAG_BYTES; i++) {
+            diff |= scratch[i] ^ in.get(length + i);    // Same time whatever differs.
+        }
+        in.limit(length);
+        return diff == 0;
+    }
+
+    /**
+     *  Description:
+     *      Reads the device key from a file, creating a random one the
+     *      first time. The new key is written to a temporary file and
+     *      renamed, so a crash never leaves half a key.
+     *
+     * @param file  Where the key is kept.
+     * @return  Key, KEY_BYTES long.
+     */
+    public static byte[] loadOrCreateKey(File file) throws IOException {
+        byte[] key = new byte[KEY_BYTES];
+        if (file.length() == KEY_BYTES) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int n = 0;
+                while (n < KEY_BYTES) {
+                    int read = in.read(key, n, KEY_BYTES - n);
+                    if (read < 0) {
+                        throw new IOException("Short key file " + file);
+                    }
+                    n += read;
+                }
+            } finally {
+                in.close();
+            }
+            return key;
+        }
+        new SecureRandom().nextBytes(key);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(key);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can't replace " + file);
+        }
+        return key;
+    }
+
+    /**
+     *  Description:
+     *      Encodes a key the way it is stored in the database.
+     *
+     * @param key   Key bytes.
+     * @return  Lower case hex.
+     */
+    public static String keyToHex(byte[] key) {
+        char[] hex = new char[key.length * 2];
+        for (int i = 0; i < key.length; i++) {
+            hex[2 * i] = HEX[(key[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[key[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     *  Description:
+     *      Decodes a key read from the database.
+     *
+     * @param hex   Hex written by keyToHex.
+     * @return  Key bytes, null if the text isn't a key.
+     */
+    public static byte[] keyFromHex(String hex) {
+        if (hex == null || hex.length() != KEY_BYTES * 2) {
+            return null;
+        }
+        byte[] key = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            key[i] = (byte) (hi << 4 | lo);
+        }
+        return key;
+    }
+
+    /** DISCOVER and ANNOUNCE body. */
+    public static void putId(ByteBuffer out, byte[] id) {
+        out.put((byte) id.length).put(id);
+    }
+
+    /**
+     *  Description:
+     *      Compares the id in a DISCOVER or ANNOUNCE with ours.
+     *
+     * @param in    Packet positioned after the header.
+     * @param id    Encoded id to compare with.
+     * @return  True if they are the same.
+     */
+    public static boolean matchesId(ByteBuffer in, byte[] id) {
+        if (in.remaining() < 1 || in.get() != id.length || in.remaining() < id.length) {
+            return false;
+        }
+        for (byte b : id) {
+            if (in.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** COMMAND body. */
+    public static void putCommand(ByteBuffer out, FirebaseData data) {
+        out.putLong(data.SEQ).putLong(data.UI_MS)
+                .putInt(data.DAC1OUT).putInt(data.PWM4).putInt(data.PWM5).putInt(data.PWM6)
+                .putInt(data.SETPOINT);
+    }
+
+    /**
+     *  Description:
+     *      Reads a COMMAND body.
+     *
+     * @param in    Packet positioned after the header.
+     * @param data  Commands to fill.
+     * @return  False if the packet is too short.
+     */
+    public static boolean getCommand(ByteBuffer in, FirebaseData data) {
+        if (in.remaining() < 36) {
+            return false;
+        }
+        data.SEQ = in.getLong();
+        data.UI_MS = in.getLong();
+        data.DAC1OUT = in.getInt();
+        data.PWM4 = in.getInt();
+        data.PWM5 = in.getInt();
+        data.PWM6 = in.getInt();
+        data.SETPOINT = in.getInt();
+        return true;
+    }
+
+    /**
+     *  Description:
+     *      Writes a TELEMETRY body with the same values the upload
+     *      stage sends to Firebase.
+     *
+     * @param out       Buffer after the header.
+     * @param sample    Newest sample.
+     * @param applied   SEQ of the command on the hardware.
+     * @param trace     Trace id of the sample.
+     * @param ageMs     Age of the sample in milliseconds.
+     */
+    public static void putTelemetry(ByteBuffer out, Sample sample, long applied, int trace, int ageMs) {
+        out.putLong(sample.time).putLong(applied).putInt(trace).putInt(ageMs)
+                .putInt(sample.temp).putInt(sample.adc3).putInt(sample.adc4).putInt(sample.adc5)
+                .putInt(sample.dac1).putInt(sample.pwm3).putInt(sample.pwm4).putInt(sample.pwm5)
+                .putInt(sample.pwm6);
+    }
+
+    public static int telemetryBytes() {
+        return 24 + 4 * TelemetryDelta.FIELDS.length;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the Pi end of the LAN control path.
+ *  It answers DISCOVER packets naming this Pi, takes the phone that
+ *  sent it as its client and accepts COMMAND packets from that phone
+ *  only. Acknowledgements and telemetry are sent back to the client
+ *  until it stops discovering for CLIENT_TIMEOUT_MS; until then no
+ *  other phone can take its place.
+ *
+ *  Packets without a valid tag are dropped, see LanProtocol, so only
+ *  phones holding the device key from the database take part. A
+ *  command is only accepted with a SEQ above every SEQ seen before,
+ *  and a DISCOVER only with a clock above the last one, so recorded
+ *  packets can't be played back.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Mac;
+
+public class LanServer extends LanEndpoint {
+
+    /**
+     *  Description:
+     *      Receives commands, on the receive thread. The data object
+     *      is reused for the next packet.
+     */
+    public interface Listener {
+        void onCommand(FirebaseData command);
+    }
+
+    public static final int CLIENT_TIMEOUT_MS = 5000;   // Client dropped after this long without a DISCOVER.
+    public static final long DISCOVER_SLACK_MS = 300000;   // Phone clocks may lag the Pi's this much at start.
+    private static final int TICK_MS = 1000;
+
+    private final byte[] mId;
+    private final int mClientTimeoutMs;
+    private final Listener mListener;
+    private final FirebaseData mCommand = new FirebaseData();   // Receive thread only.
+    private final Mac mRxMac;
+    private final byte[] mRxTag = new byte[LanProtocol.MAC_BYTES];
+    private long mLastSeq = 0;              // Newest SEQ accepted.
+    private long mDiscoverClock;            // Newest DISCOVER clock accepted.
+    private final Mac mTxMac;               // Send thread only.
+    private final byte[] mTxTag = new byte[LanProtocol.MAC_BYTES];
+    private final ByteBuffer mOut = ByteBuffer.allocate(LanProtocol.MAX_PACKET);    // Send thread only.
+    private final SampleQueue mTelemetry = new SampleQueue(2);
+    private final Sample mTelemetrySample = new Sample();
+
+    private InetAddress mClient = null;     // Guarded by this.
+    private int mClientPort = 0;
+    private long mClientSeenMs = 0;
+    private boolean mAnnounce = false;      // A DISCOVER is waiting for its reply.
+    private long mAnnounceClock = 0;        // Clock of that DISCOVER, echoed.
+
+    private volatile long mAck = 0;         // SEQ of the command on the hardware.
+    private long mAckSent = 0;              // Send thread only.
+
+    /**
+     *  Description:
+     *      Binds the server. Call start to run it.
+     *
+     * @param deviceId  Id of this Pi.
+     * @param key       Device key, published for the phones.
+     * @param port      UDP port, LanProtocol.PORT or 0 for any.
+     * @param listener  Receives the commands.
+     */
+    public LanServer(String deviceId, byte[] key, int port, Listener listener) throws SocketException {
+        this(deviceId, key, port, CLIENT_TIMEOUT_MS, listener);
+    }
+
+    /**
+     * @param clientTimeoutMs   Client dropped after this long without a DISCOVER.
+     */
+    public LanServer(String deviceId, byte[] key, int port, int clientTimeoutMs, Listener listener)
+            throws SocketException {
+        super(new DatagramSocket(port), TICK_MS);
+        mId = LanProtocol.encodeId(deviceId);
+        mClientTimeoutMs = clientTimeoutMs;
+        mRxMac = LanProtocol.newMac(key);
+        mTxMac = LanProtocol.newMac(key);
+        mDiscoverClock = System.currentTimeMillis() - DISCOVER_SLACK_MS;
+        mListener = listener;
+    }
+
+    /**
+     *  Description:
+     *      Queues the newest sample for the client. Never blocks.
+     *
+     * @param sample    Sample to send, copied.
+     */
+    public void sendTelemetry(Sample sample) {
+        if (hasClient()) {
+            mTelemetry.offer(sample);
+            wake();
+        }
+    }
+
+    /**
+     *  Description:
+     *      Acknowledges a command as soon as it is on the hardware.
+     *      Safe from the sampling thread, never blocks.
+     *
+     * @param seq   SEQ of the command applied.
+     */
+    public void sendAck(long seq) {
+        if (seq != mAck) {
+            mAck = seq;
+            wake();
+        }
+    }
+
+    public synchronized boolean hasClient() {
+        return mClient != null && nowMs() - mClientSeenMs < mClientTimeoutMs;
+    }
+
+    @Override
+    protected void onPacket(ByteBuffer in, InetAddress address, int port) {
+        if (!LanProtocol.verify(in, mRxMac, mRxTag)) {
+            return;     // Not from a phone holding the key.
+        }
+        int type = LanProtocol.type(in);
+        if (type == LanProtocol.DISCOVER) {
+            if (!LanProtocol.matchesId(in, mId) || in.remaining() < 8) {
+                return;     // Looking for another board.
+            }
+            long clock = in.getLong();
+            if (clock <= mDiscoverClock) {
+                return;     // Played back.
+            }
+            synchronized (this) {
+                boolean current = address.equals(mClient) && port == mClientPort;
+                if (!current && hasClient()) {
+                    return;     // Another phone is connected.
+                }
+                mDiscoverClock = clock;
+                mClient = address;
+                mClientPort = port;
+                mClientSeenMs = nowMs();
+                mAnnounce = true;
+                mAnnounceClock = clock;
+            }
+            wake();
+        } else if (type == LanProtocol.COMMAND) {
+            synchronized (this) {
+                if (!address.equals(mClient) || port != mClientPort) {
+                    return;     // Only the phone that found us.
+                }
+            }
+            if (LanProtocol.getCommand(in, mCommand) && mCommand.SEQ > mLastSeq) {
+                mLastSeq = mCommand.SEQ;
+                mListener.onCommand(mCommand);
+            }
+        }
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        InetAddress client;
+        int port;
+        boolean announce;
+        long clock;
+        synchronized (this) {
+            client = hasClient() ? mClient : null;
+            port = mClientPort;
+            announce = mAnnounce;
+            mAnnounce = false;
+            clock = mAnnounceClock;
+        }
+        if (client == null) {
+            mTelemetry.pollLatest(mTelemetrySample);    // Nobody to send to.
+            return;
+        }
+        if (announce) {
+            LanProtocol.begin(mOut, LanProtocol.ANNOUNCE);
+            LanProtocol.putId(mOut, mId);
+            mOut.putLong(clock);
+            LanProtocol.sign(mOut, mTxMac, mTxTag);
+            send(mOut, client, port);
+        }
+        long ack = mAck;
+        if (ack != mAckSent) {
+            mAckSent = ack;
+            LanProtocol.begin(mOut, LanProtocol.ACK);
+            mOut.putLong(ack);
+            LanProtocol.sign(mOut, mTxMac, mTxTag);
+            send(mOut, client, port);
+        }
+        if (mTelemetry.pollLatest(mTelemetrySample)) {
+            int age = (int) Math.min(Math.max(System.currentTimeMillis() - mTelemetrySample.time, 0), 4095);
+            LanProtocol.begin(mOut, LanProtocol.TELEMETRY);
+            LanProtocol.putTelemetry(mOut, mTelemetrySample, ack,
+                    (int) (mTelemetrySample.seq & LatencyTracer.TRACE_MASK), age);
+            LanProtocol.sign(mOut, mTxMac, mTxTag);
+            send(mOut, client, port);
+        }
+    }
+}
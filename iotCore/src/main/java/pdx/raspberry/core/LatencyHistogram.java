@@ -0,0 +1,115 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains a latency histogram in milliseconds.
+ *  Values below 64 ms get their own bucket, larger values go in 32
+ *  buckets per power of two (about 3% error) up to about 17 minutes.
+ *  Recording is a few array operations and never allocates, so it can
+ *  run on the sampling thread.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class LatencyHistogram {
+
+    private static final int LINEAR = 64;           // Values with their own bucket.
+    private static final int SUB_BITS = 5;          // 32 buckets per power of two above LINEAR.
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 20 - 6;    // Powers of two from 64 ms to 2^20 ms.
+    private static final int BUCKETS = LINEAR + MAX_SHIFT * SUB + 1;    // Last bucket holds overflow.
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mMax = 0;
+    private long mSum = 0;
+
+    /**
+     *  Description:
+     *      Adds one latency. Negative values, from clock offsets
+     *      between devices, are counted as 0.
+     *
+     * @param ms    Latency in milliseconds.
+     */
+    public synchronized void record(long ms) {
+        if (ms < 0) {
+            ms = 0;
+        }
+        mCounts[bucketOf(ms)]++;
+        mCount++;
+        mSum += ms;
+        if (ms > mMax) {
+            mMax = ms;
+        }
+    }
+
+    /**
+     *  Description:
+     *      Finds the latency below which a fraction of the values fall.
+     *
+     * @param fraction  0.5 for the median, 0.99 for p99.
+     * @return  Upper edge of the bucket holding the percentile, 0 if empty.
+     */
+    public synchronized long percentile(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * mCount);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(upperOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    private static int bucketOf(long ms) {
+        if (ms < LINEAR) {
+            return (int) ms;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(ms) - 6;     // Powers of two above 64.
+        if (shift >= MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (ms >>> (shift + 6 - SUB_BITS)) - SUB;  // Next 5 bits below the top one.
+        return LINEAR + shift * SUB + sub;
+    }
+
+    private static long upperOf(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = (bucket - LINEAR) / SUB;
+        int sub = (bucket - LINEAR) % SUB;
+        return ((long) (SUB + sub + 1) << (shift + 6 - SUB_BITS)) - 1;
+    }
+}
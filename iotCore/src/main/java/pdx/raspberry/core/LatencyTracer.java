@@ -0,0 +1,102 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the latency histograms of the
+ *  command and telemetry paths. Commands are traced by their SEQ,
+ *  samples by TRACE (low bits of the sample number). Spans that
+ *  cross devices use Firebase's server clock: each app adds the
+ *  offset from .info/serverTimeOffset to its own clock.
+ *
+ *      UI event -> cloud write -> Pi receive -> bus write -> ack
+ *      ADC read -> upload -> phone render
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class LatencyTracer {
+
+    public static final int UI_TO_CLOUD = 0;        // Seekbar to write completed, phone.
+    public static final int UI_TO_PI = 1;           // Seekbar to Pi listener.
+    public static final int PI_TO_BUS = 2;          // Pi listener to I2C write.
+    public static final int UI_TO_BUS = 3;          // Seekbar to I2C write.
+    public static final int UI_TO_ACK = 4;          // Seekbar to ack seen on the phone.
+    public static final int READ_TO_UPLOAD = 5;     // ADC read to updateChildren() on the Pi.
+    public static final int UPLOAD_TO_RENDER = 6;   // Server write to phone frame.
+    public static final int READ_TO_RENDER = 7;     // ADC read to phone frame.
+
+    public static final String[] SPANS = {
+            "ui->cloud", "ui->pi", "pi->bus", "ui->bus", "ui->ack",
+            "read->upload", "upload->render", "read->render" };
+
+    public static final int TRACE_MASK = 0xFFF;     // Sample trace ids fit the boxed cache.
+
+    private final LatencyHistogram[] mSpans = new LatencyHistogram[SPANS.length];
+    private volatile long mServerOffset = 0;        // Server clock minus local clock.
+
+    public LatencyTracer() {
+        for (int i = 0; i < mSpans.length; i++) {
+            mSpans[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param offsetMs  Value of .info/serverTimeOffset.
+     */
+    public void setServerOffset(long offsetMs) {
+        mServerOffset = offsetMs;
+    }
+
+    /**
+     * @return  Current time on the server clock in milliseconds.
+     */
+    public long serverNow() {
+        return System.currentTimeMillis() + mServerOffset;
+    }
+
+    /**
+     * @param localMs   Time on this device's clock.
+     * @return  Same time on the server clock.
+     */
+    public long toServer(long localMs) {
+        return localMs + mServerOffset;
+    }
+
+    public void record(int span, long ms) {
+        mSpans[span].record(ms);
+    }
+
+    public LatencyHistogram histogram(int span) {
+        return mSpans[span];
+    }
+
+    /**
+     *  Description:
+     *      Writes one line per span that has values:
+     *      name count p50 p99 max in milliseconds.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public StringBuilder dump(StringBuilder out) {
+        for (int i = 0; i < mSpans.length; i++) {
+            LatencyHistogram span = mSpans[i];
+            if (span.getCount() == 0) {
+                continue;
+            }
+            out.append(SPANS[i])
+                    .append(" n=").append(span.getCount())
+                    .append(" p50=").append(span.percentile(0.50))
+                    .append(" p99=").append(span.percentile(0.99))
+                    .append(" max=").append(span.getMax())
+                    .append('\n');
+        }
+        return out;
+    }
+
+    public void reset() {
+        for (LatencyHistogram span : mSpans) {
+            span.reset();
+        }
+    }
+}
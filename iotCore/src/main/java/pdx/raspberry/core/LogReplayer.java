@@ -0,0 +1,144 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the class that sends the backlog of
+ *  a TelemetryLog to the cloud once the Pi is back online. Records go
+ *  out in batches with at most one batch in flight and a minimum gap
+ *  between batches, so the backlog never takes more than
+ *  batchSize / interval of the uplink and live telemetry keeps flowing.
+ *  Failed batches are retried with a doubling back off.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.IOException;
+
+public class LogReplayer {
+
+    /**
+     *  Description:
+     *      Destination of replayed records, the database on the Pi and
+     *      a local stand-in in tests.
+     */
+    public interface Sink {
+        /**
+         *  Description:
+         *      Sends a batch. The arrays are reused once done is called,
+         *      which may happen on any thread, or before send returns.
+         *
+         * @param batch     Records, seq holds the log sequence number.
+         * @param counts    Samples merged into each record.
+         * @param size      Number of records in the batch.
+         * @param done      Called once with the outcome.
+         */
+        void send(Sample[] batch, int[] counts, int size, Callback done);
+    }
+
+    public interface Callback {
+        void complete(boolean ok);
+    }
+
+    public static final long MAX_BACKOFF_MS = 60000;
+
+    private static final int PENDING = 0;       // Outcomes of the batch in flight.
+    private static final int OK = 1;
+    private static final int FAILED = 2;
+
+    private final TelemetryLog mLog;
+    private final Sink mSink;
+    private final Sample[] mBatch;
+    private final int[] mCounts;
+    private final long mIntervalMs;
+
+    private volatile int mResult = PENDING;
+    private boolean mInFlight = false;
+    private long mSentSeq = 0;          // Last sequence number of the batch in flight.
+    private int mSentSize = 0;
+    private long mNextMs = 0;           // Earliest time of the next batch.
+    private long mBackoffMs;
+    private long mReplayed = 0;
+    private long mFailures = 0;
+
+    private final Callback mDone = new Callback() {
+        @Override
+        public void complete(boolean ok) {
+            mResult = ok ? OK : FAILED;
+        }
+    };
+
+    /**
+     *  Description:
+     *      Creates a replayer for a log.
+     *
+     * @param log           Log holding the backlog.
+     * @param sink          Where records are sent.
+     * @param batchSize     Records per batch.
+     * @param intervalMs    Minimum time between batches.
+     */
+    public LogReplayer(TelemetryLog log, Sink sink, int batchSize, long intervalMs) {
+        mLog = log;
+        mSink = sink;
+        mBatch = new Sample[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            mBatch[i] = new Sample();
+        }
+        mCounts = new int[batchSize];
+        mIntervalMs = intervalMs;
+        mBackoffMs = intervalMs;
+    }
+
+    /**
+     *  Description:
+     *      Settles the batch in flight and sends the next one when the
+     *      throttle allows. Called periodically from one thread while
+     *      the cloud is reachable.
+     *
+     * @param nowMs     Current time in milliseconds.
+     * @return  Number of records sent by this call.
+     */
+    public synchronized int pump(long nowMs) throws IOException {
+        if (mInFlight) {
+            int result = mResult;
+            if (result == PENDING) {
+                return 0;
+            }
+            mInFlight = false;
+            mResult = PENDING;
+            if (result == OK) {
+                mLog.ack(mSentSeq);
+                mReplayed += mSentSize;
+                mBackoffMs = mIntervalMs;
+            } else {
+                mFailures++;
+                mBackoffMs = Math.min(mBackoffMs * 2, Math.max(MAX_BACKOFF_MS, mIntervalMs));
+                mNextMs = nowMs + mBackoffMs;
+            }
+        }
+        if (nowMs < mNextMs || !mLog.hasBacklog()) {
+            return 0;
+        }
+        int size = mLog.read(mLog.getAcked(), mBatch, mCounts);
+        if (size == 0) {
+            return 0;
+        }
+        mSentSeq = mBatch[size - 1].seq;
+        mSentSize = size;
+        mInFlight = true;
+        mNextMs = nowMs + mIntervalMs;      // Batches start at most once per interval.
+        mSink.send(mBatch, mCounts, size, mDone);
+        return size;
+    }
+
+    public synchronized boolean isInFlight() {
+        return mInFlight;
+    }
+
+    public synchronized long getReplayed() {
+        return mReplayed;
+    }
+
+    public synchronized long getFailures() {
+        return mFailures;
+    }
+}
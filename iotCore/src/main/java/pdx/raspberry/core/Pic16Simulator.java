@@ -0,0 +1,275 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains a simulated PIC16 with the same
+ *  register map as the board: PWM3-6 at 0x00-0x03, DAC1 at 0x04 and
+ *  the ADA5/ADC3/ADC4/ADC5 words at 0x05/0x07/0x09/0x0b. A simple
+ *  thermal model drives the temperature sensor from the fan PWM, and
+ *  the ADCs read back the RGB PWM outputs. Bus latency, noise and
+ *  faults can be configured so the sampling loop can be load tested
+ *  on a plain JVM.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.IOException;
+import java.util.Random;
+
+public class Pic16Simulator implements I2cBus {
+
+    public static final int PWM_MAX = 1023;         // Full duty cycle.
+    private static final int READ_AREA = PicRegisters.SENSOR_BLOCK_START + PicRegisters.SENSOR_BLOCK_LENGTH;
+    private static final double MAX_STEP_S = 0.1;   // Longest step of the thermal model.
+
+    private final int[] mOutputs = new int[PicRegisters.ACTUATOR_COUNT];   // PWM3-6 and DAC1.
+    private final byte[] mReadArea = new byte[READ_AREA];               // Readable registers.
+    private final Random mRandom;
+
+    private double mTemperature = 24.0;     // Plant state in Celsius.
+    private double mAmbient = 24.0;         // Room temperature the plant settles to with no load.
+    private double mHeatRate = 0.05;        // Heating from the load in Celsius per second.
+    private double mCoolingRate = 0.1;      // Cooling at full fan in Celsius per second.
+    private double mTimeConstant = 120.0;   // Seconds for the plant to settle to ambient.
+    private boolean mRealTime = true;       // Advance the plant with the wall clock on each read.
+    private long mLastNanos = System.nanoTime();
+
+    private long mTransactionNanos = 0;     // Fixed cost of a transaction (start, address, stop).
+    private long mByteNanos = 0;            // Cost of each data byte.
+    private int mNoise = 0;                 // ADC noise amplitude in counts.
+    private double mFailureRate = 0.0;      // Chance of a transaction failing.
+    private boolean mStuck = false;         // Every transaction fails, as with a held down SDA.
+    private boolean mBurstSupported = true; // False to NACK buffer reads like old firmware.
+
+    private long mTransactions = 0;
+    private long mFailures = 0;
+    private long mBusNanos = 0;             // Bus time of every transaction so far.
+
+    public Pic16Simulator() {
+        this(0);
+    }
+
+    /**
+     * @param seed  Seed for noise and fault injection, so runs repeat.
+     */
+    public Pic16Simulator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     *  Description:
+     *      Sets the time every transaction takes. 100 kHz I2C is
+     *      roughly 100 us of overhead and 90 us per byte. The time is
+     *      always added to getBusNanos, and only spent waiting in
+     *      real time mode.
+     *
+     * @param transactionNanos  Fixed cost of a transaction.
+     * @param byteNanos         Cost of each data byte.
+     */
+    public synchronized void setBusTiming(long transactionNanos, long byteNanos) {
+        mTransactionNanos = transactionNanos;
+        mByteNanos = byteNanos;
+    }
+
+    public synchronized void setNoise(int counts) {
+        mNoise = counts;
+    }
+
+    public synchronized void setFailureRate(double rate) {
+        mFailureRate = rate;
+    }
+
+    public synchronized void setStuck(boolean stuck) {
+        mStuck = stuck;
+    }
+
+    public synchronized void setBurstSupported(boolean supported) {
+        mBurstSupported = supported;
+    }
+
+    /**
+     *  Description:
+     *      Sets the thermal model. With the fan off the plant settles at
+     *      ambient + heatRate * timeConstant, at full fan it settles
+     *      coolingRate * timeConstant lower.
+     *
+     * @param ambient       Room temperature in Celsius.
+     * @param heatRate      Heating from the load in Celsius per second.
+     * @param coolingRate   Cooling at full fan in Celsius per second.
+     * @param timeConstant  Settling time constant in seconds.
+     */
+    public synchronized void setPlant(double ambient, double heatRate, double coolingRate, double timeConstant) {
+        mAmbient = ambient;
+        mHeatRate = heatRate;
+        mCoolingRate = coolingRate;
+        mTimeConstant = timeConstant;
+    }
+
+    public synchronized void setTemperature(double celsius) {
+        mTemperature = celsius;
+    }
+
+    public synchronized double getTemperature() {
+        return mTemperature;
+    }
+
+    /**
+     *  Description:
+     *      Turns wall clock time off, so the plant only moves with
+     *      advance() and bus time is only counted, not waited for.
+     *
+     * @param realTime  True to follow the wall clock.
+     */
+    public synchronized void setRealTime(boolean realTime) {
+        mRealTime = realTime;
+        mLastNanos = System.nanoTime();
+    }
+
+    /**
+     *  Description:
+     *      Moves the thermal model forward.
+     *
+     * @param seconds   Simulated time to advance.
+     */
+    public synchronized void advance(double seconds) {
+        while (seconds > 0) {
+            double dt = Math.min(seconds, MAX_STEP_S);
+            double duty = Math.min(mOutputs[PicRegisters.PWM3_ADDRESS], PWM_MAX) / (double) PWM_MAX;
+            mTemperature += dt * ((mAmbient - mTemperature) / mTimeConstant + mHeatRate - mCoolingRate * duty);
+            seconds -= dt;
+        }
+    }
+
+    /**
+     * @param reg   PWM3_ADDRESS to DAC1_ADDRESS.
+     * @return  Last value written to the actuator.
+     */
+    public synchronized int getOutput(int reg) {
+        return mOutputs[reg];
+    }
+
+    public synchronized long getTransactions() {
+        return mTransactions;
+    }
+
+    public synchronized long getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return  Bus time of every transaction so far, from the bus timing.
+     */
+    public synchronized long getBusNanos() {
+        return mBusNanos;
+    }
+
+    @Override
+    public synchronized byte readRegByteI2C(int reg) throws IOException {
+        transaction(1);
+        refresh();
+        checkRead(reg, 1);
+        return mReadArea[reg];
+    }
+
+    @Override
+    public synchronized int readRegWordI2C(int reg) throws IOException {
+        transaction(2);
+        refresh();
+        checkRead(reg, 2);
+        return (short) PicRegisters.wordAt(mReadArea, reg);   // Sign extended like the Android Things device.
+    }
+
+    @Override
+    public synchronized void readRegBufferI2C(int start, byte[] buffer, int length) throws IOException {
+        transaction(length);
+        if (!mBurstSupported) {
+            throw new IOException("Buffer read NACK");
+        }
+        refresh();
+        checkRead(start, length);
+        System.arraycopy(mReadArea, start, buffer, 0, length);
+    }
+
+    @Override
+    public synchronized void writeRegByteI2C(int reg, byte data) throws IOException {
+        transaction(1);
+        checkWrite(reg);
+        mOutputs[reg] = (reg == PicRegisters.DAC1_ADDRESS) ? (data & PicRegisters.DAC_MASK) : (data & 0xFF);
+    }
+
+    @Override
+    public synchronized void writeRegWordI2C(int reg, short data) throws IOException {
+        transaction(2);
+        checkWrite(reg);
+        mOutputs[reg] = data & 0x0000FFFF;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     *  Description:
+     *      Counts a transaction, spends its bus time and injects faults.
+     *
+     * @param bytes Data bytes moved.
+     * @throws IOException Injected failure.
+     */
+    private void transaction(int bytes) throws IOException {
+        mTransactions++;
+        long busy = mTransactionNanos + mByteNanos * bytes;
+        mBusNanos += busy;
+        if (busy > 0 && mRealTime) {
+            long end = System.nanoTime() + busy;
+            while (System.nanoTime() - end < 0) {
+                // Busy wait, like a blocking I2C transfer.
+            }
+        }
+        if (mStuck || (mFailureRate > 0 && mRandom.nextDouble() < mFailureRate)) {
+            mFailures++;
+            throw new IOException("I2C transaction failed");
+        }
+    }
+
+    /**
+     *  Description:
+     *      Updates the ADC registers from the plant and the PWM outputs.
+     *      ADA5 reads the TMP36 in millivolts (500 mV + 10 mV/C),
+     *      ADC3/4/5 read back PWM4/5/6.
+     */
+    private void refresh() {
+        if (mRealTime) {
+            long now = System.nanoTime();
+            advance((now - mLastNanos) / 1e9);
+            mLastNanos = now;
+        }
+        putWord(PicRegisters.ADA5_ADDRESS, noisy((int) Math.round(500 + 10 * mTemperature), 0xFFFF));
+        putWord(PicRegisters.ADC3_ADDRESS, noisy(mOutputs[PicRegisters.PWM4_ADDRESS], PicRegisters.ADC_MASK));
+        putWord(PicRegisters.ADC4_ADDRESS, noisy(mOutputs[PicRegisters.PWM5_ADDRESS], PicRegisters.ADC_MASK));
+        putWord(PicRegisters.ADC5_ADDRESS, noisy(mOutputs[PicRegisters.PWM6_ADDRESS], PicRegisters.ADC_MASK));
+    }
+
+    private int noisy(int value, int max) {
+        if (mNoise > 0) {
+            value += mRandom.nextInt(2 * mNoise + 1) - mNoise;
+        }
+        return Math.max(0, Math.min(value, max));
+    }
+
+    private void putWord(int reg, int value) {
+        mReadArea[reg] = (byte) value;
+        mReadArea[reg + 1] = (byte) (value >> 8);
+    }
+
+    private static void checkRead(int reg, int length) throws IOException {
+        if (reg < 0 || reg + length > READ_AREA) {
+            throw new IOException("Read NACK at register " + reg);
+        }
+    }
+
+    private void checkWrite(int reg) throws IOException {
+        if (reg < 0 || reg >= mOutputs.length) {
+            throw new IOException("Write NACK at register " + reg);
+        }
+    }
+}
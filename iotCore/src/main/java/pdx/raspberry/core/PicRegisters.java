@@ -0,0 +1,77 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the register map of the PIC16 and
+ *  the decoding of the sensor block read from it. Shared by RaspPi
+ *  on the Pi and the PIC16 simulator.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public final class PicRegisters {
+
+    public static final int PWM3_ADDRESS = 0x00;    // PIC16 register map.
+    public static final int PWM4_ADDRESS = 0x01;
+    public static final int PWM5_ADDRESS = 0x02;
+    public static final int PWM6_ADDRESS = 0x03;
+    public static final int DAC1_ADDRESS = 0x04;
+    public static final int ADA5_ADDRESS = 0x05;
+    public static final int ADC3_ADDRESS = 0x07;
+    public static final int ADC4_ADDRESS = 0x09;
+    public static final int ADC5_ADDRESS = 0x0b;
+
+    public static final int SENSOR_BLOCK_START = ADA5_ADDRESS;  // ADA5 through ADC5 are contiguous words.
+    public static final int SENSOR_BLOCK_LENGTH = 8;            // 4 registers, 2 bytes each.
+    public static final int SENSOR_COUNT = SENSOR_BLOCK_LENGTH / 2;  // Sensor n is the word at SENSOR_BLOCK_START + 2n.
+    public static final int ACTUATOR_COUNT = DAC1_ADDRESS + 1;  // PWM3-6 and DAC1 are registers 0 to 4.
+    public static final int ADC_MASK = 0x000003FF;              // ADCs are 10 bits.
+    public static final int DAC_MASK = 0x0000001F;              // DAC is 5 bits.
+
+    private PicRegisters() {
+    }
+
+    /**
+     *  Description:
+     *      Decodes a little endian word (SMBus order) from a register buffer.
+     *
+     * @param buffer    Register bytes.
+     * @param offset    Offset of the low byte.
+     * @return  Unsigned 16 bit value.
+     */
+    public static int wordAt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     *  Description:
+     *      Index of a sensor register within the sensor block.
+     *
+     * @param reg   ADA5_ADDRESS, ADC3_ADDRESS, ADC4_ADDRESS or ADC5_ADDRESS.
+     * @return  0 to SENSOR_COUNT - 1.
+     */
+    public static int sensorIndex(int reg) {
+        int offset = reg - SENSOR_BLOCK_START;
+        if (offset < 0 || offset >= SENSOR_BLOCK_LENGTH || (offset & 1) != 0) {
+            throw new IllegalArgumentException("Not a sensor register: " + reg);
+        }
+        return offset / 2;
+    }
+
+    public static int sensorRegister(int index) {
+        return SENSOR_BLOCK_START + 2 * index;
+    }
+
+    /**
+     *  Description:
+     *      Masks a word read from a sensor register. The ADCs are
+     *      10 bits, ADA5 keeps the whole word.
+     *
+     * @param reg   Sensor register.
+     * @param word  Word read from it.
+     * @return  Channel value.
+     */
+    public static int sensorValue(int reg, int word) {
+        return (reg == ADA5_ADDRESS) ? (word & 0x0000FFFF) : (word & ADC_MASK);
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the publisher of the history
+ *  rollups. Closed 1 minute buckets of the TimeSeriesStore are merged
+ *  into 1 minute, 15 minute and 1 hour buckets of every channel and
+ *  written under devices/{id}/rollups, one small string per bucket:
+ *
+ *      rollups/m15/ADC3IN/1559347200000 = "412,530,470"
+ *
+ *  Keys are the bucket start in milliseconds. They all have 13 digits,
+ *  so ordering by key is ordering by time, and a phone can ask for a
+ *  time range of one channel at one resolution with a bounded number
+ *  of entries. Every resolution keeps RETENTION buckets; the bucket
+ *  falling out is deleted in the same update that adds the new one.
+ *  Buckets that fell out while the Pi was off are missed that way, so
+ *  after a start the whole range before the first one kept is handed
+ *  out once by takeExpired for the Pi to delete.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.Map;
+
+public class RollupPublisher {
+
+    public static final int MINUTE = 0;     // Resolutions.
+    public static final int QUARTER = 1;
+    public static final int HOUR = 2;
+
+    public static final String[] RESOLUTIONS = {"m1", "m15", "h1"};     // Database names of the resolutions.
+    public static final long[] BUCKET_MS = {60000, 15 * 60000, 3600000};
+    public static final int[] RETENTION = {24 * 60, 7 * 24 * 4, 30 * 24};  // Buckets kept: 1 day, 7 days, 30 days.
+
+    private static final int[] CHANNELS = {         // Store channels published, ADA5 as Celsius.
+            TimeSeriesStore.ADA5, TimeSeriesStore.ADC3, TimeSeriesStore.ADC4, TimeSeriesStore.ADC5,
+            TimeSeriesStore.PWM3, TimeSeriesStore.PWM4, TimeSeriesStore.PWM5, TimeSeriesStore.PWM6
+    };
+    public static final String[] FIELDS = {         // Database names of the published channels.
+            TelemetryDelta.FIELDS[TelemetryDelta.ADA5IN], TelemetryDelta.FIELDS[TelemetryDelta.ADC3IN],
+            TelemetryDelta.FIELDS[TelemetryDelta.ADC4IN], TelemetryDelta.FIELDS[TelemetryDelta.ADC5IN],
+            TelemetryDelta.FIELDS[TelemetryDelta.PWM3], TelemetryDelta.FIELDS[TelemetryDelta.PWM4],
+            TelemetryDelta.FIELDS[TelemetryDelta.PWM5], TelemetryDelta.FIELDS[TelemetryDelta.PWM6]
+    };
+    private static final int MAX_CATCH_UP = 60;     // Most buckets per resolution in one update.
+
+    private final TimeSeriesStore mStore;
+    private final String[][] mPaths = new String[RESOLUTIONS.length][CHANNELS.length];
+    private final long[] mNext = new long[RESOLUTIONS.length];     // Start of the next bucket to publish, -1 before the first.
+    private final String[] mExpired = new String[RESOLUTIONS.length];  // Newest key expired before the start, until taken.
+    private final int mMinutes = (int) (BUCKET_MS[HOUR] / BUCKET_MS[MINUTE]);
+    private final int[] mMins = new int[mMinutes];  // Minute buckets of one channel being merged.
+    private final int[] mMaxs = new int[mMinutes];
+    private final int[] mAvgs = new int[mMinutes];
+    private long mPublished = 0;
+
+    /**
+     * @param store     History the rollups are built from.
+     * @param deviceId  Id of the Pi.
+     */
+    public RollupPublisher(TimeSeriesStore store, String deviceId) {
+        mStore = store;
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            for (int c = 0; c < CHANNELS.length; c++) {
+                mPaths[r][c] = DevicePaths.rollups(deviceId, RESOLUTIONS[r], FIELDS[c]) + "/";
+            }
+            mNext[r] = -1;
+        }
+    }
+
+    /**
+     *  Description:
+     *      Adds the buckets closed since the last call to an update
+     *      of the database root. A bucket only partly held by the
+     *      store, such as the first hour after a start, is skipped.
+     *
+     * @param out   Multi path update, paths relative to the root.
+     * @return  Number of buckets added, over all channels.
+     */
+    public int collect(Map<String, Object> out) {
+        long newest = mStore.newest(TimeSeriesStore.MINUTE);
+        if (newest < 0) {
+            return 0;
+        }
+        long closedEnd = newest + BUCKET_MS[MINUTE];    // Everything before this is final.
+        int added = 0;
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            long bucketMs = BUCKET_MS[r];
+            if (mNext[r] < 0) {
+                long oldest = mStore.oldest(TimeSeriesStore.MINUTE);
+                mNext[r] = (oldest + bucketMs - 1) / bucketMs * bucketMs;     // First whole bucket.
+                mExpired[r] = Long.toString(mNext[r] - RETENTION[r] * bucketMs);
+            }
+            for (int n = 0; n < MAX_CATCH_UP && mNext[r] + bucketMs <= closedEnd; n++) {
+                long start = mNext[r];
+                String key = Long.toString(start);
+                String expired = Long.toString(start - RETENTION[r] * bucketMs);
+                for (int c = 0; c < CHANNELS.length; c++) {
+                    String value = merge(CHANNELS[c], start, start + bucketMs);
+                    if (value != null) {
+                        out.put(mPaths[r][c] + key, value);
+                        added++;
+                    }
+                    out.put(mPaths[r][c] + expired, null);
+                }
+                mNext[r] = start + bucketMs;
+            }
+        }
+        mPublished += added;
+        return added;
+    }
+
+    /** Merges the minute buckets of a channel in [from, to), null if there are none. */
+    private String merge(int channel, long from, long to) {
+        int n = mStore.query(TimeSeriesStore.MINUTE, channel, from, to, null, mMins, mMaxs, mAvgs);
+        if (n == 0) {
+            return null;
+        }
+        int min = mMins[0];
+        int max = mMaxs[0];
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            min = Math.min(min, mMins[i]);
+            max = Math.max(max, mMaxs[i]);
+            sum += mAvgs[i];
+        }
+        int avg = (int) (sum / n);
+        if (channel == TimeSeriesStore.ADA5) {
+            return encode(Tmp36.toCelsius(min), Tmp36.toCelsius(max), Tmp36.toCelsius(avg));
+        }
+        return encode(min, max, avg);
+    }
+
+    /**
+     *  Description:
+     *      Hands out, once after a start, the newest key of the range
+     *      that expired while nothing was published. That key and every
+     *      one before it can be deleted from the rollups of all channels
+     *      at the resolution.
+     *
+     * @param resolution    MINUTE, QUARTER or HOUR.
+     * @return  Newest expired key, null before the first collect
+     *          adding to the resolution or once taken.
+     */
+    public String takeExpired(int resolution) {
+        String expired = mExpired[resolution];
+        mExpired[resolution] = null;
+        return expired;
+    }
+
+    /**
+     *  Description:
+     *      Encodes one bucket the way it is stored.
+     *
+     * @return  "min,max,avg".
+     */
+    public static String encode(int min, int max, int avg) {
+        return Integer.toString(min) + ',' + max + ',' + avg;
+    }
+
+    /**
+     *  Description:
+     *      Decodes a bucket written by encode.
+     *
+     * @param value Stored string.
+     * @param out   Receives min, max and avg.
+     * @return  False if the value is malformed.
+     */
+    public static boolean decode(String value, int[] out) {
+        if (value == null) {
+            return false;
+        }
+        int first = value.indexOf(',');
+        int second = value.indexOf(',', first + 1);
+        if (first < 0 || second < 0) {
+            return false;
+        }
+        try {
+            out[0] = Integer.parseInt(value.substring(0, first));
+            out[1] = Integer.parseInt(value.substring(first + 1, second));
+            out[2] = Integer.parseInt(value.substring(second + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Description:
+     *      Database key of the bucket holding a time.
+     *
+     * @param resolution    MINUTE, QUARTER or HOUR.
+     * @param time          Time in milliseconds.
+     * @return  Key of the bucket.
+     */
+    public static String key(int resolution, long time) {
+        return Long.toString(time - time % BUCKET_MS[resolution]);
+    }
+
+    /**
+     * @return  Buckets published since the start, over all channels.
+     */
+    public long getPublished() {
+        return mPublished;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the evaluator of the automation
+ *  rules, run by the control stage on every sample. It keeps which
+ *  rules are on between samples for their hysteresis, and drives each
+ *  output from the highest priority rule firing on it. Outputs no rule
+ *  fires on keep the value the control stage gave them.
+ *
+ *  A new program can be set from any thread and is picked up on the
+ *  next sample. Nothing is allocated per sample, and the schedules are
+ *  only looked at when the minute changes.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RuleEngine {
+
+    private static final long MINUTE_MS = 60000;
+
+    private final TimeZone mZone;
+    private final AtomicReference<RuleProgram> mNext = new AtomicReference<>(RuleProgram.EMPTY);
+
+    private RuleProgram mProgram = null;    // Sampling thread only from here on.
+    private long[] mState = new long[0];    // Rules on, before schedules.
+    private long[] mScratch = new long[0];
+    private long[] mSchedule = new long[0]; // Rules whose schedule is active.
+    private long mMinuteStartMs = 0;
+    private long mMinuteEndMs = 0;          // Schedules are rechecked from here.
+    private volatile int mFiring = 0;
+    private volatile int mDriven = 0;
+
+    /**
+     * @param zone  Time zone the schedules are written in.
+     */
+    public RuleEngine(TimeZone zone) {
+        mZone = zone;
+    }
+
+    /**
+     *  Description:
+     *      Replaces the rules. Every rule starts off.
+     *
+     * @param program   Compiled rules.
+     */
+    public void setProgram(RuleProgram program) {
+        mNext.set(program);
+    }
+
+    /**
+     *  Description:
+     *      Sets the rules only if none were set since the start, in
+     *      one step, so a saved copy never replaces rules that just
+     *      arrived from the database.
+     *
+     * @param program   Compiled rules.
+     * @return  False if rules were already set.
+     */
+    public boolean setProgramIfEmpty(RuleProgram program) {
+        return mNext.compareAndSet(RuleProgram.EMPTY, program);
+    }
+
+    public RuleProgram getProgram() {
+        return mNext.get();
+    }
+
+    /**
+     *  Description:
+     *      Evaluates the rules against a sample and overrides the
+     *      outputs they drive.
+     *
+     * @param sample    Sample with temp, adc3, adc4 and adc5 set, and
+     *                  the outputs the control stage computed.
+     * @param wallMs    Current time, System.currentTimeMillis().
+     * @return  Number of outputs driven by a rule.
+     */
+    public int evaluate(Sample sample, long wallMs) {
+        RuleProgram p = mNext.get();
+        if (p != mProgram) {
+            mProgram = p;
+            mState = new long[p.mWords];
+            mScratch = new long[p.mWords];
+            mSchedule = new long[p.mWords];
+            mMinuteEndMs = mMinuteStartMs;      // Recheck the schedules now.
+        }
+        if (p.mRules == 0) {
+            return 0;
+        }
+        if (wallMs >= mMinuteEndMs || wallMs < mMinuteStartMs) {
+            updateSchedule(p, wallMs);
+        }
+
+        int words = p.mWords;
+        long[] next = mScratch;
+        System.arraycopy(p.mAlways, 0, next, 0, words);
+        for (int i = 0; i < RuleProgram.INPUTS.length; i++) {
+            if (p.mIndex[i] == null) {
+                continue;
+            }
+            int e = p.entry(i, input(sample, i));
+            long[] on = p.mOn[i];
+            long[] hold = p.mHold[i];
+            for (int w = 0; w < words; w++) {
+                next[w] |= on[e + w] | (mState[w] & hold[e + w]);
+            }
+        }
+        mScratch = mState;
+        mState = next;
+
+        int firing = 0;
+        for (int w = 0; w < words; w++) {
+            firing += Long.bitCount(next[w] & mSchedule[w]);
+        }
+        int driven = 0;
+        if (firing > 0) {
+            for (int o = 0; o < RuleProgram.OUTPUTS.length; o++) {
+                long[] mask = p.mOutputs[o];
+                for (int w = 0; w < words; w++) {
+                    long fired = next[w] & mSchedule[w] & mask[w];
+                    if (fired != 0) {
+                        output(sample, o, p.mValues[w * 64 + Long.numberOfTrailingZeros(fired)]);    // Lowest bit is the highest priority.
+                        driven++;
+                        break;
+                    }
+                }
+            }
+        }
+        mFiring = firing;
+        mDriven = driven;
+        return driven;
+    }
+
+    private void updateSchedule(RuleProgram p, long wallMs) {
+        long local = wallMs + mZone.getOffset(wallMs);
+        long minute = Math.floorDiv(local, MINUTE_MS);
+        long day = Math.floorDiv(minute, 24L * 60);
+        int dayOfWeek = (int) Math.floorMod(day + 3, 7L);   // 1970-01-01 was a Thursday.
+        p.schedule(dayOfWeek, (int) (minute - day * 24 * 60), mSchedule);
+        mMinuteStartMs = minute * MINUTE_MS - (local - wallMs);
+        mMinuteEndMs = mMinuteStartMs + MINUTE_MS;
+    }
+
+    private static int input(Sample sample, int input) {
+        switch (input) {
+            case 0:
+                return sample.temp;
+            case 1:
+                return sample.adc3;
+            case 2:
+                return sample.adc4;
+            default:
+                return sample.adc5;
+        }
+    }
+
+    private static void output(Sample sample, int output, int value) {
+        switch (output) {
+            case 0:
+                sample.dac1 = value;
+                break;
+            case 1:
+                sample.pwm3 = value;
+                break;
+            case 2:
+                sample.pwm4 = value;
+                break;
+            case 3:
+                sample.pwm5 = value;
+                break;
+            default:
+                sample.pwm6 = value;
+                break;
+        }
+    }
+
+    /**
+     *  Description:
+     *      One line with the size of the program and what fired on
+     *      the last sample.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public StringBuilder summary(StringBuilder out) {
+        RuleProgram p = mNext.get();
+        return out.append("rules n=").append(p.getRuleCount())
+                .append(" rejected=").append(p.getRejected())
+                .append(" entries=").append(p.getTableEntries())
+                .append(" firing=").append(mFiring)
+                .append(" driven=").append(mDriven)
+                .append('\n');
+    }
+}
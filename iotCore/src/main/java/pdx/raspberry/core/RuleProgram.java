@@ -0,0 +1,251 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains a set of rules compiled for the
+ *  sampling thread. Every valid rule gets one bit, in priority order,
+ *  and each input channel gets a lookup table from its value to the
+ *  rules whose condition turns on there and the rules that stay on
+ *  there because of their hysteresis. Values with the same rule sets
+ *  share one entry, so the table holds at most two entries per rule.
+ *
+ *  Evaluating a sample is then one table lookup per input and a few
+ *  word operations per 64 rules; see RuleEngine. A program never
+ *  changes once compiled, so it can be handed between threads freely.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public final class RuleProgram {
+
+    public static final int[] INPUTS = {        // TelemetryDelta channels rules can test.
+            TelemetryDelta.ADA5IN, TelemetryDelta.ADC3IN, TelemetryDelta.ADC4IN, TelemetryDelta.ADC5IN
+    };
+    public static final int[] OUTPUTS = {       // TelemetryDelta channels rules can drive.
+            TelemetryDelta.DAC1OUT, TelemetryDelta.PWM3, TelemetryDelta.PWM4, TelemetryDelta.PWM5, TelemetryDelta.PWM6
+    };
+    private static final int[] INPUT_LO = {-40, 0, 0, 0};      // Range of each input, values outside are clamped.
+    private static final int[] INPUT_HI = {150, PicRegisters.ADC_MASK, PicRegisters.ADC_MASK, PicRegisters.ADC_MASK};
+    public static final int MAX_RULES = 4096;   // Keeps table entries within a short.
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    public static final RuleProgram EMPTY = compile(Collections.<RuleSpec>emptyList());
+
+    final int mRules;
+    final int mWords;                   // Longs per rule set.
+    final long[] mAlways;               // Rules without an input.
+    final short[][] mIndex;             // Per input, value - INPUT_LO to table entry. Null if no rule tests it.
+    final long[][] mOn;                 // Per input, mWords longs per entry: rules on at that value.
+    final long[][] mHold;               // Rules that stay on at that value if they already were.
+    final long[][] mOutputs;            // Per output, the rules driving it.
+    final int[] mValues;                // Output value of each rule.
+    private final int[] mDays;
+    private final int[] mFrom;
+    private final int[] mTo;
+    private final int mRejected;
+    private final int mEntries;
+
+    private RuleProgram(List<RuleSpec> rules, int rejected) {
+        mRules = rules.size();
+        mWords = (mRules + 63) / 64;
+        mRejected = rejected;
+        mAlways = new long[mWords];
+        mIndex = new short[INPUTS.length][];
+        mOn = new long[INPUTS.length][];
+        mHold = new long[INPUTS.length][];
+        mOutputs = new long[OUTPUTS.length][mWords];
+        mValues = new int[mRules];
+        mDays = new int[mRules];
+        mFrom = new int[mRules];
+        mTo = new int[mRules];
+
+        int[] inputs = new int[mRules];
+        for (int r = 0; r < mRules; r++) {
+            RuleSpec rule = rules.get(r);
+            inputs[r] = inputIndex(rule.input);
+            if (inputs[r] < 0) {
+                mAlways[r >> 6] |= 1L << r;
+            }
+            mOutputs[outputIndex(rule.output)][r >> 6] |= 1L << r;
+            mValues[r] = rule.value;
+            mDays[r] = rule.days;
+            mFrom[r] = rule.fromMinute;
+            mTo[r] = rule.toMinute;
+        }
+        int entries = 0;
+        for (int i = 0; i < INPUTS.length; i++) {
+            entries += buildTable(i, rules, inputs);
+        }
+        mEntries = entries;
+    }
+
+    /** Builds the lookup table of one input, sharing entries between equal rule sets. */
+    private int buildTable(int input, List<RuleSpec> rules, int[] inputs) {
+        boolean used = false;
+        for (int r = 0; r < mRules; r++) {
+            used |= inputs[r] == input;
+        }
+        if (!used) {
+            return 0;
+        }
+        int lo = INPUT_LO[input];
+        int hi = INPUT_HI[input];
+        short[] index = new short[hi - lo + 1];
+        long[] on = new long[mWords];
+        long[] hold = new long[mWords];
+        List<long[]> entries = new ArrayList<>();
+        for (int v = lo; v <= hi; v++) {
+            Arrays.fill(on, 0);
+            Arrays.fill(hold, 0);
+            for (int r = 0; r < mRules; r++) {
+                if (inputs[r] != input) {
+                    continue;
+                }
+                RuleSpec rule = rules.get(r);
+                boolean above = ">".equals(rule.op);
+                if (above ? v >= rule.threshold : v <= rule.threshold) {
+                    on[r >> 6] |= 1L << r;
+                }
+                if (above ? v > rule.threshold - rule.hysteresis : v < rule.threshold + rule.hysteresis) {
+                    hold[r >> 6] |= 1L << r;
+                }
+            }
+            int last = entries.size() / 2 - 1;
+            if (last < 0 || !Arrays.equals(entries.get(2 * last), on) || !Arrays.equals(entries.get(2 * last + 1), hold)) {
+                entries.add(on.clone());
+                entries.add(hold.clone());
+                last++;
+            }
+            index[v - lo] = (short) last;
+        }
+        int count = entries.size() / 2;
+        mIndex[input] = index;
+        mOn[input] = new long[count * mWords];
+        mHold[input] = new long[count * mWords];
+        for (int e = 0; e < count; e++) {
+            System.arraycopy(entries.get(2 * e), 0, mOn[input], e * mWords, mWords);
+            System.arraycopy(entries.get(2 * e + 1), 0, mHold[input], e * mWords, mWords);
+        }
+        return count;
+    }
+
+    /**
+     *  Description:
+     *      Compiles rules. Rules that are disabled, malformed or past
+     *      MAX_RULES are left out and counted as rejected, the rest
+     *      still run.
+     *
+     * @param rules     Rules in database order, which breaks priority ties.
+     * @return  The compiled program.
+     */
+    public static RuleProgram compile(List<RuleSpec> rules) {
+        List<RuleSpec> valid = new ArrayList<>();
+        int rejected = 0;
+        for (RuleSpec rule : rules) {
+            if (rule != null && rule.enabled && isValid(rule) && valid.size() < MAX_RULES) {
+                valid.add(rule);
+            } else {
+                rejected++;
+            }
+        }
+        Collections.sort(valid, new Comparator<RuleSpec>() {     // Stable, so ties keep their order.
+            @Override
+            public int compare(RuleSpec a, RuleSpec b) {
+                return Integer.compare(b.priority, a.priority);
+            }
+        });
+        return new RuleProgram(valid, rejected);
+    }
+
+    private static boolean isValid(RuleSpec rule) {
+        if (outputIndex(rule.output) < 0 || rule.hysteresis < 0) {
+            return false;
+        }
+        if (rule.days < 0 || rule.days > 0x7F
+                || rule.fromMinute < 0 || rule.fromMinute > MINUTES_PER_DAY
+                || rule.toMinute < 0 || rule.toMinute > MINUTES_PER_DAY) {
+            return false;
+        }
+        if (rule.input == null || rule.input.isEmpty()) {
+            return true;    // Schedule only.
+        }
+        return inputIndex(rule.input) >= 0 && (">".equals(rule.op) || "<".equals(rule.op));
+    }
+
+    private static int inputIndex(String name) {
+        for (int i = 0; i < INPUTS.length; i++) {
+            if (TelemetryDelta.FIELDS[INPUTS[i]].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int outputIndex(String name) {
+        for (int i = 0; i < OUTPUTS.length; i++) {
+            if (TelemetryDelta.FIELDS[OUTPUTS[i]].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *  Description:
+     *      Table entry of an input value, clamped to the input's range.
+     *
+     * @param input     Index into INPUTS, with a table.
+     * @param value     Channel value.
+     * @return  Offset of the entry's rule sets in mOn and mHold.
+     */
+    int entry(int input, int value) {
+        int lo = INPUT_LO[input];
+        int hi = INPUT_HI[input];
+        int v = value < lo ? lo : (value > hi ? hi : value);
+        return mIndex[input][v - lo] * mWords;
+    }
+
+    /**
+     *  Description:
+     *      Finds the rules whose schedule is active at a time. Run
+     *      once a minute.
+     *
+     * @param dayOfWeek     0 for Monday to 6 for Sunday.
+     * @param minuteOfDay   0 to 1439.
+     * @param out           mWords longs, set to the active rules.
+     */
+    void schedule(int dayOfWeek, int minuteOfDay, long[] out) {
+        Arrays.fill(out, 0);
+        for (int r = 0; r < mRules; r++) {
+            boolean today = mDays[r] == 0 || (mDays[r] & (1 << dayOfWeek)) != 0;
+            int from = mFrom[r];
+            int to = mTo[r];
+            boolean inWindow = from == to
+                    || (from < to ? minuteOfDay >= from && minuteOfDay < to : minuteOfDay >= from || minuteOfDay < to);
+            if (today && inWindow) {
+                out[r >> 6] |= 1L << r;
+            }
+        }
+    }
+
+    public int getRuleCount() {
+        return mRules;
+    }
+
+    public int getRejected() {
+        return mRejected;
+    }
+
+    /**
+     * @return  Lookup table entries over all inputs.
+     */
+    public int getTableEntries() {
+        return mEntries;
+    }
+}
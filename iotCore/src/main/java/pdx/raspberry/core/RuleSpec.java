@@ -0,0 +1,97 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains one automation rule as it is stored
+ *  in the database under devices/{id}/rules. A rule drives an output
+ *  to a value while its condition holds and its schedule is active:
+ *
+ *      input       Channel tested, a TelemetryDelta field such as
+ *                  "ADA5IN" (whole degrees) or "ADC3IN". Empty for a
+ *                  rule driven by its schedule alone.
+ *      op          ">" turns on at input >= threshold and off below
+ *                  threshold - hysteresis. "<" is the mirror image.
+ *      output      Output driven, "DAC1OUT" or "PWM3" to "PWM6".
+ *      priority    Higher wins when several rules drive one output.
+ *      days        Bit 0 Monday to bit 6 Sunday, 0 for every day.
+ *      fromMinute  Active from this minute of the day up to toMinute,
+ *      toMinute    across midnight if toMinute is smaller. Equal
+ *                  for the whole day.
+ *
+ *  Rules are compiled into a RuleProgram before they are evaluated.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class RuleSpec {
+
+    public String input = "";
+    public String op = ">";
+    public int threshold;
+    public int hysteresis;
+    public String output = "";
+    public int value;
+    public int priority;
+    public int days;
+    public int fromMinute;
+    public int toMinute;
+    public boolean enabled = true;
+
+    public RuleSpec() {
+        // Default constructor required for calls to DataSnapshot.getValue(RuleSpec.class)
+    }
+
+    public RuleSpec(String input, String op, int threshold, int hysteresis, String output, int value) {
+        this.input = input;
+        this.op = op;
+        this.threshold = threshold;
+        this.hysteresis = hysteresis;
+        this.output = output;
+        this.value = value;
+    }
+
+    /**
+     *  Description:
+     *      Encodes the rule as one line of comma separated fields,
+     *      the format rules are kept on disk in.
+     *
+     * @return  Line without a line end.
+     */
+    public String toLine() {
+        return (input == null ? "" : input) + ',' + (op == null ? "" : op) + ',' + threshold + ',' + hysteresis
+                + ',' + (output == null ? "" : output) + ',' + value + ',' + priority
+                + ',' + days + ',' + fromMinute + ',' + toMinute + ',' + enabled;
+    }
+
+    /**
+     *  Description:
+     *      Decodes a line written by toLine.
+     *
+     * @param line  Encoded rule.
+     * @return  The rule.
+     * @throws IllegalArgumentException If the line is malformed.
+     */
+    public static RuleSpec fromLine(String line) {
+        String[] f = line.split(",", -1);
+        if (f.length != 11) {
+            throw new IllegalArgumentException("Bad rule: " + line);
+        }
+        RuleSpec rule = new RuleSpec();
+        rule.input = f[0];
+        rule.op = f[1];
+        rule.output = f[4];
+        rule.enabled = Boolean.parseBoolean(f[10]);
+        try {
+            rule.threshold = Integer.parseInt(f[2]);
+            rule.hysteresis = Integer.parseInt(f[3]);
+            rule.value = Integer.parseInt(f[5]);
+            rule.priority = Integer.parseInt(f[6]);
+            rule.days = Integer.parseInt(f[7]);
+            rule.fromMinute = Integer.parseInt(f[8]);
+            rule.toMinute = Integer.parseInt(f[9]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad rule: " + line);
+        }
+        return rule;
+    }
+}
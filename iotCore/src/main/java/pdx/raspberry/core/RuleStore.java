@@ -0,0 +1,104 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the local copy of the automation
+ *  rules, so they keep running after a restart without a connection.
+ *  Rules are kept one per line in the RuleSpec.toLine format after a
+ *  header with their count, and replaced the same way CommandStore
+ *  replaces the commands: temporary file, sync, rename.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RuleStore {
+
+    private static final String HEADER = "rules ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final File mTemp;
+
+    /**
+     * @param file  Where the rules are kept.
+     */
+    public RuleStore(File file) {
+        mFile = file;
+        mTemp = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     *  Description:
+     *      Replaces the stored rules.
+     *
+     * @param rules Rules as received, in database order.
+     * @throws IOException File error. The old copy is left in place.
+     */
+    public synchronized void save(List<RuleSpec> rules) throws IOException {
+        FileOutputStream stream = new FileOutputStream(mTemp);
+        try {
+            Writer out = new OutputStreamWriter(stream, UTF8);
+            out.write(HEADER + rules.size() + "\n");
+            for (RuleSpec rule : rules) {
+                out.write(rule.toLine());
+                out.write('\n');
+            }
+            out.flush();
+            stream.getFD().sync();      // On disk before it replaces the old copy.
+        } finally {
+            stream.close();
+        }
+        if (!mTemp.renameTo(mFile)) {
+            throw new IOException("Can't replace " + mFile);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Reads the stored rules.
+     *
+     * @return  The rules, null if nothing valid was stored.
+     * @throws IOException File error other than a missing file.
+     */
+    public synchronized List<RuleSpec> load() throws IOException {
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF8));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            String header = in.readLine();
+            if (header == null || !header.startsWith(HEADER)) {
+                return null;
+            }
+            int count = Integer.parseInt(header.substring(HEADER.length()));
+            List<RuleSpec> rules = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String line = in.readLine();
+                if (line == null) {
+                    return null;
+                }
+                rules.add(RuleSpec.fromLine(line));
+            }
+            return rules;
+        } catch (IllegalArgumentException e) {
+            return null;    // Also covers a bad count.
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the class holding one set of
+ *  channel values read from the PIC16 and the outputs written back.
+ *  Instances are reused so sampling doesn't allocate.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class Sample {
+
+    public static final int ALL_FRESH = (1 << SampleFilter.CHANNELS) - 1;
+
+    public long seq;    // Sample number since the engine started.
+    public long time;   // Wall clock time of the read in milliseconds.
+
+    public int ada5;    // Raw temperature sensor reading.
+    public int adc3;    // 10 bit ADC readings of the RGB PWM outputs.
+    public int adc4;
+    public int adc5;
+    public int fresh = ALL_FRESH;   // Inputs read from the bus for this sample, bit n for SampleFilter channel n.
+
+    public int temp;    // Temperature in Celsius.
+    public int dac1;    // Outputs written to the PIC.
+    public int pwm3;
+    public int pwm4;
+    public int pwm5;
+    public int pwm6;
+
+    /**
+     *  Description:
+     *      Copies every channel of another sample into this one.
+     *
+     * @param other Sample to copy from.
+     */
+    public void copyFrom(Sample other) {
+        seq = other.seq;
+        time = other.time;
+        ada5 = other.ada5;
+        adc3 = other.adc3;
+        adc4 = other.adc4;
+        adc5 = other.adc5;
+        fresh = other.fresh;
+        temp = other.temp;
+        dac1 = other.dac1;
+        pwm3 = other.pwm3;
+        pwm4 = other.pwm4;
+        pwm5 = other.pwm5;
+        pwm6 = other.pwm6;
+    }
+}
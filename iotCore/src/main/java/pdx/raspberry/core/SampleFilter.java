@@ -0,0 +1,73 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the filter stage between the
+ *  sensor read and the control stage. Each input channel of a
+ *  sample (ADA5, ADC3, ADC4, ADC5) has its own AdcFilter, so what
+ *  is controlled on, stored and uploaded is the filtered value.
+ *  Inputs served from the register cache aren't fed again, so a
+ *  filter only sees distinct readings and holds its output between.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class SampleFilter {
+
+    public static final int ADA5 = 0;       // Channel indexes.
+    public static final int ADC3 = 1;
+    public static final int ADC4 = 2;
+    public static final int ADC5 = 3;
+    public static final int CHANNELS = 4;
+
+    private final AdcFilter[] mFilters = new AdcFilter[CHANNELS];   // Null for a raw channel.
+
+    /**
+     *  Description:
+     *      Sets the filter of a channel.
+     *
+     * @param channel   ADA5 to ADC5.
+     * @param filter    Filter to use, null to pass raw values.
+     */
+    public void setFilter(int channel, AdcFilter filter) {
+        mFilters[channel] = filter;
+    }
+
+    public AdcFilter getFilter(int channel) {
+        return mFilters[channel];
+    }
+
+    /**
+     *  Description:
+     *      Replaces the input fields of a freshly read sample with
+     *      their filtered values. Channels not in sample.fresh get
+     *      the last output of their filter.
+     *
+     * @param sample    Sample just read from the sensors.
+     */
+    public void apply(Sample sample) {
+        sample.ada5 = filter(ADA5, sample.ada5, sample.fresh);
+        sample.adc3 = filter(ADC3, sample.adc3, sample.fresh);
+        sample.adc4 = filter(ADC4, sample.adc4, sample.fresh);
+        sample.adc5 = filter(ADC5, sample.adc5, sample.fresh);
+    }
+
+    private int filter(int channel, int raw, int fresh) {
+        AdcFilter filter = mFilters[channel];
+        if (filter == null) {
+            return raw;
+        }
+        if ((fresh & (1 << channel)) == 0 && filter.hasOutput()) {
+            return filter.getOutput();      // Cached copy of a reading already fed.
+        }
+        return filter.filter(raw);
+    }
+
+    public void reset() {
+        for (AdcFilter filter : mFilters) {
+            if (filter != null) {
+                filter.reset();
+            }
+        }
+    }
+}
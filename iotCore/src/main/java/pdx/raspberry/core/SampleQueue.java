@@ -0,0 +1,92 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains a bounded queue used to hand
+ *  samples from the sampling thread to a consumer (UI, Firebase).
+ *  Slots are allocated once and samples are copied in and out, so
+ *  the sampling thread never allocates or blocks on a slow consumer.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class SampleQueue {
+
+    private final Sample[] mSlots;  // Preallocated ring of samples.
+    private int mHead = 0;          // Next slot to read.
+    private int mCount = 0;         // Samples waiting.
+    private long mDropped = 0;      // Samples overwritten before being read.
+
+    /**
+     * @param capacity  Number of samples held before the oldest is dropped.
+     */
+    public SampleQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        mSlots = new Sample[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Sample();
+        }
+    }
+
+    /**
+     *  Description:
+     *      Adds a copy of the sample. When the queue is full the
+     *      oldest sample is dropped so the producer never waits.
+     *
+     * @param sample    Sample to copy in.
+     */
+    public synchronized void offer(Sample sample) {
+        if (mCount == mSlots.length) {
+            mHead = (mHead + 1) % mSlots.length;
+            mCount--;
+            mDropped++;
+        }
+        mSlots[(mHead + mCount) % mSlots.length].copyFrom(sample);
+        mCount++;
+    }
+
+    /**
+     *  Description:
+     *      Removes the oldest sample.
+     *
+     * @param out   Sample to copy the oldest one into.
+     * @return  False if the queue was empty.
+     */
+    public synchronized boolean poll(Sample out) {
+        if (mCount == 0) {
+            return false;
+        }
+        out.copyFrom(mSlots[mHead]);
+        mHead = (mHead + 1) % mSlots.length;
+        mCount--;
+        return true;
+    }
+
+    /**
+     *  Description:
+     *      Empties the queue keeping only the newest sample.
+     *      Used by consumers that only show the latest values.
+     *
+     * @param out   Sample to copy the newest one into.
+     * @return  False if the queue was empty.
+     */
+    public synchronized boolean pollLatest(Sample out) {
+        if (mCount == 0) {
+            return false;
+        }
+        out.copyFrom(mSlots[(mHead + mCount - 1) % mSlots.length]);
+        mHead = 0;
+        mCount = 0;
+        return true;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+}
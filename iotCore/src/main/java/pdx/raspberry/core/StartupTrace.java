@@ -0,0 +1,97 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the startup trace of the Pi app.
+ *  Each startup stage is marked the first time it is reached, by
+ *  whichever thread reaches it, as the time since the app started.
+ *  The summary also gives when the app started after boot, so the
+ *  time from a power cut to running fans can be read off directly.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class StartupTrace {
+
+    public static final int COMMANDS_RESTORED = 0;  // Last known commands loaded from disk.
+    public static final int HARDWARE_OPEN = 1;      // I2C opened and boards added.
+    public static final int FIRST_SAMPLE = 2;       // First cycle of the sampling loop.
+    public static final int FIRST_OUTPUT = 3;       // First actuator values computed and queued.
+    public static final int CLOUD_ATTACHED = 4;     // Database listeners and uploads set up.
+    public static final int FIRST_COMMAND = 5;      // First command from the database or the LAN.
+    public static final int FIRST_UPLOAD = 6;       // First telemetry accepted by the database.
+    public static final int STAGES = 7;
+
+    private static final String[] NAMES = {
+            "restored", "hardware", "first_sample", "first_output", "cloud", "first_command", "first_upload"
+    };
+
+    private final long mStartNanos;
+    private final long mBootMs;     // Time from boot to the start of the app.
+    private final AtomicLongArray mMarks = new AtomicLongArray(STAGES);    // Nanos since start, -1 until reached.
+
+    /**
+     * @param startNanos    System.nanoTime() when the app started.
+     * @param bootMs        Milliseconds since boot at that time.
+     */
+    public StartupTrace(long startNanos, long bootMs) {
+        mStartNanos = startNanos;
+        mBootMs = bootMs;
+        for (int i = 0; i < STAGES; i++) {
+            mMarks.set(i, -1);
+        }
+    }
+
+    /**
+     *  Description:
+     *      Marks a stage as reached. Safe from any thread, only the
+     *      first mark of a stage counts.
+     *
+     * @param stage     Stage constant.
+     * @param nowNanos  Current System.nanoTime().
+     * @return  True if this was the first mark of the stage.
+     */
+    public boolean mark(int stage, long nowNanos) {
+        if (mMarks.get(stage) >= 0) {
+            return false;       // Common case, no write.
+        }
+        return mMarks.compareAndSet(stage, -1, Math.max(nowNanos - mStartNanos, 0));
+    }
+
+    /**
+     * @param stage Stage constant.
+     * @return  Milliseconds from the start to the stage, -1 if not reached.
+     */
+    public long getMillis(int stage) {
+        long nanos = mMarks.get(stage);
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    public boolean isReached(int stage) {
+        return mMarks.get(stage) >= 0;
+    }
+
+    /**
+     *  Description:
+     *      Writes one line with the time of every stage, "-" for
+     *      the ones not reached yet.
+     *
+     * @param out   Where the summary is written.
+     * @return  out.
+     */
+    public StringBuilder summary(StringBuilder out) {
+        out.append("startup boot+").append(mBootMs).append("ms");
+        for (int i = 0; i < STAGES; i++) {
+            out.append(' ').append(NAMES[i]).append('=');
+            long ms = getMillis(i);
+            if (ms < 0) {
+                out.append('-');
+            } else {
+                out.append(ms).append("ms");
+            }
+        }
+        return out.append('\n');
+    }
+}
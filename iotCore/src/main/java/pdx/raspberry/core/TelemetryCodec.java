@@ -0,0 +1,287 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the encoder for Firebase telemetry
+ *  updates. Fields come from a fixed schema and are held in primitive
+ *  arrays. The update handed to updateChildren() is a map view over
+ *  those arrays that is reused for every upload, and values are boxed
+ *  from a cache, so building an update doesn't allocate.
+ *
+ *  TIMESTAMP is written as Firebase's server timestamp placeholder.
+ *  The server fills in epoch milliseconds, which also avoids trusting
+ *  the Pi's clock (it has no RTC). Format it when it is displayed.
+ *
+ *  TRACE and AGE are optional latency tracing fields, the trace id of
+ *  the sample and how long it waited before upload in milliseconds.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+public class TelemetryCodec {
+
+    public static final String TIMESTAMP = "TIMESTAMP";
+    public static final String TRACE = "TRACE";
+    public static final String AGE = "AGE";
+    public static final Map<String, String> SERVER_TIMESTAMP =     // Same as Firebase's ServerValue.TIMESTAMP.
+            Collections.singletonMap(".sv", "timestamp");
+
+    private static final int BOX_MIN = -1024;       // Range of cached boxes. Covers every channel.
+    private static final int BOX_MAX = 4095;
+    private static final Integer[] BOXES = new Integer[BOX_MAX - BOX_MIN + 1];
+
+    static {
+        for (int i = 0; i < BOXES.length; i++) {
+            BOXES[i] = BOX_MIN + i;
+        }
+    }
+
+    private final String[] mFields;         // Schema, Firebase name of each field.
+    private final int[] mValues;
+    private final boolean[] mPresent;
+    private int mCount = 0;                 // Fields present.
+    private boolean mTimestamp = true;      // Add TIMESTAMP to non empty updates.
+    private boolean mTraced = false;        // Add TRACE and AGE to non empty updates.
+    private int mTrace;
+    private int mAge;
+
+    private final Payload mPayload = new Payload();
+
+    /**
+     * @param fields    Firebase names of the fields, indexed by field number.
+     */
+    public TelemetryCodec(String[] fields) {
+        mFields = fields.clone();
+        mValues = new int[fields.length];
+        mPresent = new boolean[fields.length];
+    }
+
+    /**
+     *  Description:
+     *      Boxes an int without allocating for values in the cached range.
+     *
+     * @param value Value to box.
+     * @return  Boxed value.
+     */
+    public static Integer box(int value) {
+        if (value >= BOX_MIN && value <= BOX_MAX) {
+            return BOXES[value - BOX_MIN];
+        }
+        return value;
+    }
+
+    /**
+     *  Description:
+     *      Removes every field from the update.
+     */
+    public void clear() {
+        for (int i = 0; i < mPresent.length; i++) {
+            mPresent[i] = false;
+        }
+        mCount = 0;
+    }
+
+    /**
+     *  Description:
+     *      Adds a field to the update, replacing its value if present.
+     *
+     * @param field Field number in the schema.
+     * @param value Value of the field.
+     */
+    public void put(int field, int value) {
+        if (!mPresent[field]) {
+            mPresent[field] = true;
+            mCount++;
+        }
+        mValues[field] = value;
+    }
+
+    /**
+     * @param timestamp True to add the server TIMESTAMP to non empty updates.
+     */
+    public void setTimestamp(boolean timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    /**
+     *  Description:
+     *      Adds TRACE and AGE to non empty updates until clearTrace().
+     *      Both are boxed from the cache, so keep them in its range.
+     *
+     * @param trace Trace id of the sample.
+     * @param ageMs Time from the read to the upload.
+     */
+    public void setTrace(int trace, int ageMs) {
+        mTraced = true;
+        mTrace = trace;
+        mAge = ageMs;
+    }
+
+    public void clearTrace() {
+        mTraced = false;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     *  Description:
+     *      Returns the update as a map for updateChildren(). The map is
+     *      a view that changes with the codec and is reused, so it must
+     *      be consumed before the next update is built, on one thread.
+     *
+     * @return  Fields present plus TRACE, AGE and TIMESTAMP.
+     */
+    public Map<String, Object> payload() {
+        return mPayload;
+    }
+
+    private int extras() {
+        return mCount == 0 ? 0 : (mTraced ? 2 : 0) + (mTimestamp ? 1 : 0);
+    }
+
+    private int fieldOf(Object key) {
+        for (int i = 0; i < mFields.length; i++) {
+            if (mPresent[i] && mFields[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *  Description:
+     *      Map view over the fields present. The entry set, its
+     *      iterator and entry are single reused objects.
+     */
+    private class Payload extends AbstractMap<String, Object> {
+
+        private final Entries mEntries = new Entries();
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return mEntries;
+        }
+
+        @Override
+        public int size() {
+            return mCount + extras();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (mCount > 0) {
+                if (mTimestamp && TIMESTAMP.equals(key)) {
+                    return SERVER_TIMESTAMP;
+                }
+                if (mTraced && TRACE.equals(key)) {
+                    return box(mTrace);
+                }
+                if (mTraced && AGE.equals(key)) {
+                    return box(mAge);
+                }
+            }
+            int field = fieldOf(key);
+            return field < 0 ? null : box(mValues[field]);
+        }
+    }
+
+    private class Entries extends AbstractSet<Map.Entry<String, Object>> {
+
+        private final Cursor mCursor = new Cursor();
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+            mCursor.reset();
+            return mCursor;
+        }
+
+        @Override
+        public int size() {
+            return mPayload.size();
+        }
+    }
+
+    private class Cursor implements Iterator<Map.Entry<String, Object>>, Map.Entry<String, Object> {
+
+        private int mNext;          // Next entry to look at. Fields first, then TRACE, AGE and TIMESTAMP.
+        private String mKey;
+        private Object mValue;
+
+        void reset() {
+            mNext = mCount == 0 ? mFields.length + 3 : 0;
+            advance();
+        }
+
+        /** Moves mNext to the next entry present. */
+        private void advance() {
+            while (mNext < mFields.length && !mPresent[mNext]) {
+                mNext++;
+            }
+            if (!mTraced && (mNext == mFields.length || mNext == mFields.length + 1)) {
+                mNext = mFields.length + 2;
+            }
+            if (!mTimestamp && mNext == mFields.length + 2) {
+                mNext++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mFields.length + 3;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int extra = mNext - mFields.length;
+            if (extra == 0) {
+                mKey = TRACE;
+                mValue = box(mTrace);
+            } else if (extra == 1) {
+                mKey = AGE;
+                mValue = box(mAge);
+            } else if (extra == 2) {
+                mKey = TIMESTAMP;
+                mValue = SERVER_TIMESTAMP;
+            } else {
+                mKey = mFields[mNext];
+                mValue = box(mValues[mNext]);
+            }
+            mNext++;
+            advance();
+            return this;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public Object getValue() {
+            return mValue;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the change detection stage in front
+ *  of the Firebase upload. Only fields that moved further than their
+ *  deadband since they were last uploaded are sent. Everything is sent
+ *  again once the heartbeat period passes, so values drifting inside
+ *  their deadband are refreshed too. Updates are built with a
+ *  TelemetryCodec so checking and encoding don't allocate.
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.util.Map;
+
+public class TelemetryDelta {
+
+    public static final int ADA5IN = 0;     // Channel indexes.
+    public static final int ADC3IN = 1;
+    public static final int ADC4IN = 2;
+    public static final int ADC5IN = 3;
+    public static final int DAC1OUT = 4;
+    public static final int PWM3 = 5;
+    public static final int PWM4 = 6;
+    public static final int PWM5 = 7;
+    public static final int PWM6 = 8;
+
+    public static final String[] FIELDS = {     // Firebase names of the channels.
+            "ADA5IN", "ADC3IN", "ADC4IN", "ADC5IN", "DAC1OUT", "PWM3", "PWM4", "PWM5", "PWM6"
+    };
+
+    private final int[] mDeadband = new int[FIELDS.length];     // Change needed to upload, 0 for any change.
+    private final int[] mLast = new int[FIELDS.length];         // Values last uploaded.
+    private final int[] mValues = new int[FIELDS.length];
+    private final TelemetryCodec mCodec = new TelemetryCodec(FIELDS);
+    private boolean mHaveLast = false;
+    private long mLastFullUpload = 0;       // Time every field was last sent.
+    private long mMaxSilenceMs;
+
+    private long mFieldsSent = 0;           // Counters for checking the savings.
+    private long mFieldsSuppressed = 0;
+
+    /**
+     * @param maxSilenceMs  Longest time before every field is sent again.
+     */
+    public TelemetryDelta(long maxSilenceMs) {
+        mMaxSilenceMs = maxSilenceMs;
+    }
+
+    /**
+     *  Description:
+     *      Sets the deadband of a channel. A field is uploaded when it
+     *      differs from the last uploaded value by more than this.
+     *
+     * @param channel   Channel index, ADA5IN to PWM6.
+     * @param deadband  Deadband in the units of the field.
+     */
+    public void setDeadband(int channel, int deadband) {
+        mDeadband[channel] = deadband;
+    }
+
+    /**
+     *  Description:
+     *      Adds latency tracing fields to the next updates.
+     *
+     * @param trace Trace id of the sample, see LatencyTracer.TRACE_MASK.
+     * @param ageMs Time from the read to the upload.
+     */
+    public void setTrace(int trace, int ageMs) {
+        mCodec.setTrace(trace, ageMs);
+    }
+
+    /**
+     *  Description:
+     *      Compares the data against what was last uploaded.
+     *
+     * @param data  Latest values.
+     * @param now   Current time in milliseconds.
+     * @return  Fields to upload plus TIMESTAMP, or null if nothing needs
+     *          to be sent. The map is reused by the next call.
+     */
+    public Map<String, Object> changes(FirebaseData data, long now) {
+        mValues[ADA5IN] = data.ADA5IN;
+        mValues[ADC3IN] = data.ADC3IN;
+        mValues[ADC4IN] = data.ADC4IN;
+        mValues[ADC5IN] = data.ADC5IN;
+        mValues[DAC1OUT] = data.DAC1OUT;
+        mValues[PWM3] = data.PWM3;
+        mValues[PWM4] = data.PWM4;
+        mValues[PWM5] = data.PWM5;
+        mValues[PWM6] = data.PWM6;
+
+        boolean heartbeat = !mHaveLast || now - mLastFullUpload >= mMaxSilenceMs;
+        mCodec.clear();
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (heartbeat || Math.abs(mValues[i] - mLast[i]) > mDeadband[i]) {
+                mCodec.put(i, mValues[i]);
+                mLast[i] = mValues[i];
+                mFieldsSent++;
+            } else {
+                mFieldsSuppressed++;
+            }
+        }
+        if (heartbeat) {
+            mHaveLast = true;
+            mLastFullUpload = now;
+        }
+        return mCodec.isEmpty() ? null : mCodec.payload();
+    }
+
+    /**
+     *  Description:
+     *      Forces a full upload next time, e.g. after the connection comes back.
+     */
+    public void reset() {
+        mHaveLast = false;
+    }
+
+    public long getFieldsSent() {
+        return mFieldsSent;
+    }
+
+    public long getFieldsSuppressed() {
+        return mFieldsSuppressed;
+    }
+}
@@ -0,0 +1,541 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains an append only log of telemetry
+ *  kept on disk while the Pi is offline. Records are fixed size and
+ *  written into memory mapped segment files, so appending is a few
+ *  stores into the page cache and survives the process being killed.
+ *
+ *  Every record carries a log sequence number that keeps counting
+ *  across restarts. A small cursor file holds the last sequence the
+ *  cloud acknowledged. Fully acknowledged segments are deleted, and
+ *  when the log grows past its disk budget the oldest segments are
+ *  compacted into one record per minute, then dropped. Segments with
+ *  records read for sending but not yet acknowledged are never
+ *  compacted, so the cloud can't get them twice under other keys.
+ *
+ *  The active segment is forced to disk every FORCE_RECORDS appends,
+ *  which bounds what a power cut loses.
+ *
+ *  Record layout, 48 bytes, big endian:
+ *      0   int     magic, RAW or ROLLUP
+ *      4   int     checksum of bytes 8..47
+ *      8   long    sequence number
+ *      16  long    time, or minute start for rollups
+ *      24  short   ada5, adc3, adc4, adc5, temp, dac1, pwm3..pwm6
+ *      44  int     samples merged into the record
+ *
+ */
+
+package pdx.raspberry.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class TelemetryLog implements Closeable {
+
+    public static final int RECORD_BYTES = 48;
+    public static final long ROLLUP_MS = 60000;         // Resolution of compacted segments.
+    public static final int FORCE_RECORDS = 32;         // Most records lost to a power cut.
+
+    private static final int RAW = 0x544C4F47;          // "TLOG"
+    private static final int ROLLUP = 0x544C5255;       // "TLRU"
+    private static final String RAW_SUFFIX = ".seg";
+    private static final String ROLLUP_SUFFIX = ".roll";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String CURSOR = "cursor";
+    private static final int VALUES = 10;
+
+    /**
+     *  Description:
+     *      One segment file. Records are ordered by sequence number,
+     *      so a segment is found and searched without reading it all.
+     */
+    private static class Segment {
+        File file;
+        final long firstSeq;
+        long lastSeq;           // firstSeq - 1 while empty.
+        int count;
+        long bytes;             // Size on disk.
+        boolean rollup;
+        MappedByteBuffer buffer;    // Mapped on first use.
+
+        Segment(File file, long firstSeq, boolean rollup) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.lastSeq = firstSeq - 1;
+            this.rollup = rollup;
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentRecords;
+    private final long mMaxBytes;
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+    private final RandomAccessFile mCursor;
+    private final ByteBuffer mCursorBuffer = ByteBuffer.allocate(16);
+    private final ByteBuffer mRecordBuffer = ByteBuffer.allocate(RECORD_BYTES);
+    private final Sample mScratch = new Sample();
+    private final Sample mRollup = new Sample();
+    private final long[] mSums = new long[VALUES];
+
+    private Segment mActive = null;     // Raw segment being appended to.
+    private long mNextSeq = 1;
+    private long mAcked = 0;
+    private long mReadSeq = 0;          // Newest record handed out by read.
+    private int mUnforced = 0;          // Records appended since the last force.
+    private long mDiskBytes = 0;
+    private long mCompacted = 0;        // Raw records merged into rollups.
+    private long mDropped = 0;          // Records deleted before they were sent.
+
+    /**
+     *  Description:
+     *      Opens the log in a directory, recovering any segments and
+     *      the acknowledged cursor left by an earlier run.
+     *
+     * @param dir           Directory holding the segment files.
+     * @param segmentBytes  Size of each raw segment.
+     * @param maxBytes      Disk budget for all segments.
+     */
+    public TelemetryLog(File dir, int segmentBytes, long maxBytes) throws IOException {
+        if (segmentBytes < RECORD_BYTES || maxBytes < segmentBytes) {
+            throw new IllegalArgumentException("Segment " + segmentBytes + " bytes, budget " + maxBytes);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        mDir = dir;
+        mSegmentRecords = segmentBytes / RECORD_BYTES;
+        mMaxBytes = maxBytes;
+
+        mCursor = new RandomAccessFile(new File(dir, CURSOR), "rw");
+        if (mCursor.length() >= 16) {
+            long acked = mCursor.readLong();
+            if (mCursor.readLong() == ~acked) {     // Ignore a torn write.
+                mAcked = acked;
+            }
+        }
+        recover();
+        mNextSeq = Math.max(mNextSeq, mAcked + 1);
+        mReadSeq = mAcked;
+        deleteAcked();
+    }
+
+    /**
+     *  Description:
+     *      Appends one sample. The log assigns the sequence number;
+     *      the seq of the sample itself restarts with the engine.
+     *
+     * @param sample    Values to store.
+     * @return  Log sequence number of the record.
+     */
+    public synchronized long append(Sample sample) throws IOException {
+        if (mActive == null || mActive.count == mSegmentRecords) {
+            roll();
+        }
+        long seq = mNextSeq++;
+        put(mActive.buffer, mActive.count * RECORD_BYTES, RAW, seq, sample.time, sample, 1);
+        mActive.count++;
+        mActive.lastSeq = seq;
+        if (++mUnforced >= FORCE_RECORDS) {
+            mActive.buffer.force();
+            mUnforced = 0;
+        }
+        return seq;
+    }
+
+    /**
+     *  Description:
+     *      Reads records after a sequence number in order. The seq
+     *      of each sample is set to its log sequence number.
+     *
+     * @param afterSeq  Last sequence number already read.
+     * @param out       Samples to fill.
+     * @param counts    Samples merged into each record, 1 for raw.
+     * @return  Number of records read.
+     */
+    public synchronized int read(long afterSeq, Sample[] out, int[] counts) throws IOException {
+        int n = 0;
+        for (int s = 0; s < mSegments.size() && n < out.length; s++) {
+            Segment segment = mSegments.get(s);
+            if (segment.lastSeq <= afterSeq) {
+                continue;
+            }
+            ByteBuffer buffer = map(segment);
+            for (int i = search(buffer, segment.count, afterSeq); i < segment.count && n < out.length; i++) {
+                counts[n] = get(buffer, i * RECORD_BYTES, out[n]);
+                mReadSeq = Math.max(mReadSeq, out[n].seq);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     *  Description:
+     *      Records that the cloud has every record up to a sequence
+     *      number, deleting segments that are no longer needed.
+     *
+     * @param seq   Last sequence number delivered.
+     */
+    public synchronized void ack(long seq) throws IOException {
+        seq = Math.min(seq, mNextSeq - 1);
+        if (seq <= mAcked) {
+            return;
+        }
+        mAcked = seq;
+        mCursorBuffer.clear();
+        mCursorBuffer.putLong(seq).putLong(~seq).flip();
+        mCursor.getChannel().write(mCursorBuffer, 0);
+        deleteAcked();
+    }
+
+    public synchronized boolean hasBacklog() {
+        return mNextSeq - 1 > mAcked;
+    }
+
+    public synchronized long getAcked() {
+        return mAcked;
+    }
+
+    public synchronized long getLastSeq() {
+        return mNextSeq - 1;
+    }
+
+    public synchronized long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    public synchronized long getCompacted() {
+        return mCompacted;
+    }
+
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     *  Description:
+     *      Flushes the active segment and closes the cursor file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mActive != null) {
+            mActive.buffer.force();
+        }
+        for (Segment segment : mSegments) {
+            segment.buffer = null;
+        }
+        mActive = null;
+        mCursor.close();
+    }
+
+    /**
+     *  Description:
+     *      Starts a new raw segment, then keeps the log in budget.
+     */
+    private void roll() throws IOException {
+        if (mActive != null) {
+            mActive.buffer.force();
+            mActive.buffer = null;      // Remapped read only by the replay.
+        }
+        mUnforced = 0;
+        Segment segment = new Segment(new File(mDir, name(mNextSeq, RAW_SUFFIX)), mNextSeq, false);
+        segment.bytes = (long) mSegmentRecords * RECORD_BYTES;
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "rw")) {
+            segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment.bytes);
+        }
+        mSegments.add(segment);
+        mDiskBytes += segment.bytes;
+        mActive = segment;
+
+        while (mDiskBytes > mMaxBytes) {
+            Segment oldest = null;
+            for (Segment candidate : mSegments) {
+                if (!candidate.rollup && candidate != mActive && !isInFlight(candidate)) {
+                    oldest = candidate;
+                    break;
+                }
+            }
+            if (oldest != null) {
+                compact(oldest);
+            } else if (mSegments.get(0) != mActive) {
+                Segment victim = mSegments.get(0);
+                mDropped += victim.count;
+                remove(victim);
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     *  Description:
+     *      Replaces a raw segment with one averaged record per minute.
+     *      Records the cloud already has are left out. The rollup is
+     *      written to a temporary file and renamed, so a crash leaves
+     *      either the raw segment or the finished rollup.
+     *
+     * @param segment   Raw segment to compact.
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer in = map(segment);
+        File tmp = new File(mDir, name(segment.firstSeq, ROLLUP_SUFFIX + TMP_SUFFIX));
+        int written = 0;
+        long lastSeq = 0;
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            long minute = -1;
+            int merged = 0;
+            Arrays.fill(mSums, 0);
+            for (int i = 0; i < segment.count; i++) {
+                int count = get(in, i * RECORD_BYTES, mScratch);
+                if (mScratch.seq <= mAcked) {
+                    continue;
+                }
+                long m = mScratch.time / ROLLUP_MS;
+                if (merged > 0 && m != minute) {
+                    writeRollup(channel, written++, minute, lastSeq, merged);
+                    merged = 0;
+                    Arrays.fill(mSums, 0);
+                }
+                minute = m;
+                lastSeq = mScratch.seq;
+                merged += count;
+                sum(mScratch, count);
+            }
+            if (merged > 0) {
+                writeRollup(channel, written++, minute, lastSeq, merged);
+            }
+            channel.force(false);
+        }
+        mCompacted += segment.count;
+        File rolled = new File(mDir, name(segment.firstSeq, ROLLUP_SUFFIX));
+        if (written == 0 || !tmp.renameTo(rolled)) {
+            tmp.delete();
+            remove(segment);
+            return;
+        }
+        segment.file.delete();
+        mDiskBytes -= segment.bytes;
+        segment.file = rolled;
+        segment.rollup = true;
+        segment.count = written;
+        segment.lastSeq = lastSeq;
+        segment.bytes = (long) written * RECORD_BYTES;
+        segment.buffer = null;
+        mDiskBytes += segment.bytes;
+    }
+
+    /** True if some records of the segment were read for sending but not acknowledged. */
+    private boolean isInFlight(Segment segment) {
+        return segment.firstSeq <= mReadSeq && segment.lastSeq > mAcked;
+    }
+
+    private void sum(Sample sample, int count) {
+        mSums[0] += (long) sample.ada5 * count;
+        mSums[1] += (long) sample.adc3 * count;
+        mSums[2] += (long) sample.adc4 * count;
+        mSums[3] += (long) sample.adc5 * count;
+        mSums[4] += (long) sample.temp * count;
+        mSums[5] += (long) sample.dac1 * count;
+        mSums[6] += (long) sample.pwm3 * count;
+        mSums[7] += (long) sample.pwm4 * count;
+        mSums[8] += (long) sample.pwm5 * count;
+        mSums[9] += (long) sample.pwm6 * count;
+    }
+
+    private void writeRollup(FileChannel channel, int index, long minute, long seq, int merged) throws IOException {
+        Sample avg = mRollup;
+        avg.ada5 = (int) Math.round((double) mSums[0] / merged);
+        avg.adc3 = (int) Math.round((double) mSums[1] / merged);
+        avg.adc4 = (int) Math.round((double) mSums[2] / merged);
+        avg.adc5 = (int) Math.round((double) mSums[3] / merged);
+        avg.temp = (int) Math.round((double) mSums[4] / merged);
+        avg.dac1 = (int) Math.round((double) mSums[5] / merged);
+        avg.pwm3 = (int) Math.round((double) mSums[6] / merged);
+        avg.pwm4 = (int) Math.round((double) mSums[7] / merged);
+        avg.pwm5 = (int) Math.round((double) mSums[8] / merged);
+        avg.pwm6 = (int) Math.round((double) mSums[9] / merged);
+        put(mRecordBuffer, 0, ROLLUP, seq, minute * ROLLUP_MS, avg, merged);
+        mRecordBuffer.clear();
+        channel.write(mRecordBuffer, (long) index * RECORD_BYTES);
+    }
+
+    /**
+     *  Description:
+     *      Rebuilds the segment list from the directory. Leftover
+     *      temporary files are deleted, a raw segment whose rollup was
+     *      finished is deleted, and each segment is scanned up to its
+     *      first invalid record.
+     */
+    private void recover() throws IOException {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + mDir);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            boolean rollup = name.endsWith(ROLLUP_SUFFIX);
+            if (!rollup && !name.endsWith(RAW_SUFFIX)) {
+                continue;
+            }
+            long firstSeq;
+            try {
+                firstSeq = Long.parseLong(name.substring(0, name.indexOf('.')));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!rollup && new File(mDir, name(firstSeq, ROLLUP_SUFFIX)).exists()) {
+                file.delete();
+                continue;
+            }
+            Segment segment = new Segment(file, firstSeq, rollup);
+            segment.bytes = file.length();
+            scan(segment);
+            if (segment.count == 0) {
+                file.delete();
+                continue;
+            }
+            mSegments.add(segment);
+            mDiskBytes += segment.bytes;
+            mNextSeq = segment.lastSeq + 1;
+        }
+
+        Segment last = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (last != null && !last.rollup && last.bytes == (long) mSegmentRecords * RECORD_BYTES
+                && last.count < mSegmentRecords) {
+            last.buffer = null;
+            try (RandomAccessFile file = new RandomAccessFile(last.file, "rw")) {
+                last.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, last.bytes);
+            }
+            mActive = last;
+        }
+    }
+
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer buffer = map(segment);
+        int magic = segment.rollup ? ROLLUP : RAW;
+        long previous = segment.firstSeq - 1;
+        int records = (int) (segment.bytes / RECORD_BYTES);
+        int count = 0;
+        while (count < records) {
+            int pos = count * RECORD_BYTES;
+            long seq = buffer.getLong(pos + 8);
+            if (buffer.getInt(pos) != magic || buffer.getInt(pos + 4) != checksum(buffer, pos) || seq <= previous) {
+                break;
+            }
+            previous = seq;
+            count++;
+        }
+        segment.count = count;
+        segment.lastSeq = previous;
+    }
+
+    private void deleteAcked() {
+        while (!mSegments.isEmpty()) {
+            Segment oldest = mSegments.get(0);
+            if (oldest == mActive || oldest.lastSeq > mAcked) {
+                break;
+            }
+            remove(oldest);
+        }
+    }
+
+    private void remove(Segment segment) {
+        mSegments.remove(segment);
+        mDiskBytes -= segment.bytes;
+        segment.buffer = null;
+        segment.file.delete();
+    }
+
+    private ByteBuffer map(Segment segment) throws IOException {
+        if (segment.buffer == null) {
+            try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")) {
+                segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.bytes);
+            }
+        }
+        return segment.buffer;
+    }
+
+    /** Index of the first record after seq. */
+    private static int search(ByteBuffer buffer, int count, long seq) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buffer.getLong(mid * RECORD_BYTES + 8) <= seq) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static String name(long firstSeq, String suffix) {
+        return String.format("%020d%s", firstSeq, suffix);
+    }
+
+    /** Writes a record, checksum and magic last so a torn record reads as invalid. */
+    private static void put(ByteBuffer buffer, int pos, int magic, long seq, long time, Sample sample, int count) {
+        buffer.putLong(pos + 8, seq);
+        buffer.putLong(pos + 16, time);
+        buffer.putShort(pos + 24, (short) sample.ada5);
+        buffer.putShort(pos + 26, (short) sample.adc3);
+        buffer.putShort(pos + 28, (short) sample.adc4);
+        buffer.putShort(pos + 30, (short) sample.adc5);
+        buffer.putShort(pos + 32, (short) sample.temp);
+        buffer.putShort(pos + 34, (short) sample.dac1);
+        buffer.putShort(pos + 36, (short) sample.pwm3);
+        buffer.putShort(pos + 38, (short) sample.pwm4);
+        buffer.putShort(pos + 40, (short) sample.pwm5);
+        buffer.putShort(pos + 42, (short) sample.pwm6);
+        buffer.putInt(pos + 44, count);
+        buffer.putInt(pos + 4, checksum(buffer, pos));
+        buffer.putInt(pos, magic);
+    }
+
+    /** Reads a record and returns the number of samples merged into it. */
+    private static int get(ByteBuffer buffer, int pos, Sample out) {
+        out.seq = buffer.getLong(pos + 8);
+        out.time = buffer.getLong(pos + 16);
+        out.ada5 = buffer.getShort(pos + 24) & 0xFFFF;
+        out.adc3 = buffer.getShort(pos + 26);
+        out.adc4 = buffer.getShort(pos + 28);
+        out.adc5 = buffer.getShort(pos + 30);
+        out.temp = buffer.getShort(pos + 32);
+        out.dac1 = buffer.getShort(pos + 34);
+        out.pwm3 = buffer.getShort(pos + 36);
+        out.pwm4 = buffer.getShort(pos + 38);
+        out.pwm5 = buffer.getShort(pos + 40);
+        out.pwm6 = buffer.getShort(pos + 42);
+        return buffer.getInt(pos + 44);
+    }
+
+    /** FNV-1a over the words after the header. */
+    private static int checksum(ByteBuffer buffer, int pos) {
+        int h = 0x811C9DC5;
+        for (int i = 8; i < RECORD_BYTES; i += 4) {
+            h = (h ^ buffer.getInt(pos + i)) * 0x01000193;
+        }
+        return h;
+    }
+}
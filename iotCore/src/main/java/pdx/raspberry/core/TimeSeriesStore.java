@@ -0,0 +1,330 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains an in memory history of the sensor
+ *  and PWM channels. Values are kept in fixed size rings of primitive
+ *  arrays at three resolutions: raw samples, 1 second and 1 minute
+ *  rollups holding min/max/avg. Appending and querying never allocate.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public class TimeSeriesStore {
+
+    public static final int ADA5 = 0;       // Channel indexes.
+    public static final int ADC3 = 1;
+    public static final int ADC4 = 2;
+    public static final int ADC5 = 3;
+    public static final int PWM3 = 4;
+    public static final int PWM4 = 5;
+    public static final int PWM5 = 6;
+    public static final int PWM6 = 7;
+    public static final int CHANNELS = 8;
+
+    public static final int RAW = 0;        // Resolutions.
+    public static final int SECOND = 1;
+    public static final int MINUTE = 2;
+
+    private static final long[] BUCKET_MS = {0, 1000, 60000};
+
+    /**
+     *  Description:
+     *      Ring of buckets at one resolution. Values are stored
+     *      channel interleaved as shorts, which covers the 10 bit
+     *      ADCs and PWMs. Raw buckets hold a single value so only
+     *      the avg array is used.
+     */
+    private static class Tier {
+        final long[] time;      // Sample time or bucket start in milliseconds.
+        final short[] min;
+        final short[] max;
+        final short[] avg;
+        int start = 0;          // Oldest bucket.
+        int count = 0;
+
+        Tier(int capacity, boolean rollup) {
+            time = new long[capacity];
+            avg = new short[capacity * CHANNELS];
+            min = rollup ? new short[capacity * CHANNELS] : avg;
+            max = rollup ? new short[capacity * CHANNELS] : avg;
+        }
+
+        int capacity() {
+            return time.length;
+        }
+
+        /** Slot for a new bucket, dropping the oldest when full. */
+        int next(long t) {
+            int slot;
+            if (count == time.length) {
+                slot = start;
+                start = (start + 1) % time.length;
+            } else {
+                slot = (start + count) % time.length;
+                count++;
+            }
+            time[slot] = t;
+            return slot;
+        }
+
+        int slot(int index) {
+            return (start + index) % time.length;
+        }
+
+        /** Index of the first bucket at or after t. */
+        int lowerBound(long t) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (time[slot(mid)] < t) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        long bytes() {
+            long bytes = time.length * 8L + avg.length * 2L;
+            if (min != avg) {
+                bytes += min.length * 2L + max.length * 2L;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     *  Description:
+     *      Running min/max/sum of the samples in the open bucket of a rollup tier.
+     */
+    private static class Accumulator {
+        final long bucketMs;
+        final int[] min = new int[CHANNELS];
+        final int[] max = new int[CHANNELS];
+        final long[] sum = new long[CHANNELS];
+        long bucket = -1;       // Start of the open bucket, -1 when empty.
+        int count = 0;
+
+        Accumulator(long bucketMs) {
+            this.bucketMs = bucketMs;
+        }
+    }
+
+    private final Tier[] mTiers = new Tier[3];
+    private final Accumulator[] mAccumulators = new Accumulator[3];
+    private final int[] mValues = new int[CHANNELS];
+
+    /**
+     * @param rawCapacity       Raw samples kept.
+     * @param secondCapacity    1 second rollups kept.
+     * @param minuteCapacity    1 minute rollups kept.
+     */
+    public TimeSeriesStore(int rawCapacity, int secondCapacity, int minuteCapacity) {
+        mTiers[RAW] = new Tier(rawCapacity, false);
+        mTiers[SECOND] = new Tier(secondCapacity, true);
+        mTiers[MINUTE] = new Tier(minuteCapacity, true);
+        mAccumulators[SECOND] = new Accumulator(BUCKET_MS[SECOND]);
+        mAccumulators[MINUTE] = new Accumulator(BUCKET_MS[MINUTE]);
+    }
+
+    /**
+     *  Description:
+     *      Store sized for the Pi: 10 minutes of raw samples at the
+     *      given rate, 6 hours of 1 second and 7 days of 1 minute
+     *      rollups. About 3 MB at 100 Hz.
+     *
+     * @param rateHz    Sample rate.
+     * @return  New store.
+     */
+    public static TimeSeriesStore forRate(int rateHz) {
+        return new TimeSeriesStore(rateHz * 600, 6 * 3600, 7 * 24 * 60);
+    }
+
+    /**
+     *  Description:
+     *      Appends the channels of a sample.
+     *
+     * @param sample    Sample to record. Its time is used as the timestamp.
+     */
+    public synchronized void append(Sample sample) {
+        mValues[ADA5] = sample.ada5;
+        mValues[ADC3] = sample.adc3;
+        mValues[ADC4] = sample.adc4;
+        mValues[ADC5] = sample.adc5;
+        mValues[PWM3] = sample.pwm3;
+        mValues[PWM4] = sample.pwm4;
+        mValues[PWM5] = sample.pwm5;
+        mValues[PWM6] = sample.pwm6;
+        append(sample.time, mValues);
+    }
+
+    /**
+     *  Description:
+     *      Appends one value per channel. Times must not go backwards.
+     *
+     * @param time      Time of the values in milliseconds.
+     * @param values    Value of every channel, indexed by channel.
+     */
+    public synchronized void append(long time, int[] values) {
+        Tier raw = mTiers[RAW];
+        int base = raw.next(time) * CHANNELS;
+        for (int c = 0; c < CHANNELS; c++) {
+            raw.avg[base + c] = clamp(values[c]);
+        }
+        accumulate(SECOND, time, values);
+        accumulate(MINUTE, time, values);
+    }
+
+    private void accumulate(int resolution, long time, int[] values) {
+        Accumulator acc = mAccumulators[resolution];
+        long bucket = time - time % acc.bucketMs;
+        if (bucket != acc.bucket) {
+            flush(resolution);
+            acc.bucket = bucket;
+            for (int c = 0; c < CHANNELS; c++) {
+                acc.min[c] = values[c];
+                acc.max[c] = values[c];
+                acc.sum[c] = values[c];
+            }
+            acc.count = 1;
+            return;
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            int v = values[c];
+            if (v < acc.min[c]) {
+                acc.min[c] = v;
+            }
+            if (v > acc.max[c]) {
+                acc.max[c] = v;
+            }
+            acc.sum[c] += v;
+        }
+        acc.count++;
+    }
+
+    /** Closes the open bucket of a rollup tier. */
+    private void flush(int resolution) {
+        Accumulator acc = mAccumulators[resolution];
+        if (acc.count == 0) {
+            return;
+        }
+        Tier tier = mTiers[resolution];
+        int base = tier.next(acc.bucket) * CHANNELS;
+        for (int c = 0; c < CHANNELS; c++) {
+            tier.min[base + c] = clamp(acc.min[c]);
+            tier.max[base + c] = clamp(acc.max[c]);
+            tier.avg[base + c] = clamp((int) (acc.sum[c] / acc.count));
+        }
+        acc.count = 0;
+        acc.bucket = -1;
+    }
+
+    /**
+     *  Description:
+     *      Copies the values of one channel in [from, to) into the
+     *      given arrays, oldest first. For RAW min, max and avg are the
+     *      sample value. The bucket still being filled is not returned.
+     *      Any output array may be null if not needed.
+     *
+     * @param resolution    RAW, SECOND or MINUTE.
+     * @param channel       Channel index.
+     * @param from          Start time in milliseconds, inclusive.
+     * @param to            End time in milliseconds, exclusive.
+     * @param times         Receives sample or bucket start times.
+     * @param mins          Receives bucket minimums.
+     * @param maxs          Receives bucket maximums.
+     * @param avgs          Receives bucket averages.
+     * @return  Number of entries written, at most the length of the arrays.
+     */
+    public synchronized int query(int resolution, int channel, long from, long to,
+                                  long[] times, int[] mins, int[] maxs, int[] avgs) {
+        Tier tier = mTiers[resolution];
+        int limit = Integer.MAX_VALUE;
+        if (times != null) {
+            limit = Math.min(limit, times.length);
+        }
+        if (mins != null) {
+            limit = Math.min(limit, mins.length);
+        }
+        if (maxs != null) {
+            limit = Math.min(limit, maxs.length);
+        }
+        if (avgs != null) {
+            limit = Math.min(limit, avgs.length);
+        }
+
+        int n = 0;
+        for (int i = tier.lowerBound(from); i < tier.count && n < limit; i++) {
+            int slot = tier.slot(i);
+            if (tier.time[slot] >= to) {
+                break;
+            }
+            int index = slot * CHANNELS + channel;
+            if (times != null) {
+                times[n] = tier.time[slot];
+            }
+            if (mins != null) {
+                mins[n] = tier.min[index];
+            }
+            if (maxs != null) {
+                maxs[n] = tier.max[index];
+            }
+            if (avgs != null) {
+                avgs[n] = tier.avg[index];
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @param resolution    RAW, SECOND or MINUTE.
+     * @return  Number of entries held at the resolution.
+     */
+    public synchronized int size(int resolution) {
+        return mTiers[resolution].count;
+    }
+
+    /**
+     * @param resolution    RAW, SECOND or MINUTE.
+     * @return  Time of the oldest entry held, or -1 if empty.
+     */
+    public synchronized long oldest(int resolution) {
+        Tier tier = mTiers[resolution];
+        return tier.count == 0 ? -1 : tier.time[tier.start];
+    }
+
+    /**
+     * @param resolution    RAW, SECOND or MINUTE.
+     * @return  Time of the newest entry held, or -1 if empty. For the
+     *          rollups this is the start of the last closed bucket.
+     */
+    public synchronized long newest(int resolution) {
+        Tier tier = mTiers[resolution];
+        return tier.count == 0 ? -1 : tier.time[tier.slot(tier.count - 1)];
+    }
+
+    /**
+     * @return  Memory used by the arrays in bytes.
+     */
+    public long footprintBytes() {
+        long bytes = 0;
+        for (Tier tier : mTiers) {
+            bytes += tier.bytes();
+        }
+        return bytes;
+    }
+
+    private static short clamp(int value) {
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) value;
+    }
+}
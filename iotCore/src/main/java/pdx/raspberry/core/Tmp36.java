@@ -0,0 +1,53 @@
+/**
+ * Andrew Capatina / Ryan Bornhorst
+ *
+ * Description: This file contains the conversion of the TMP36
+ *  temperature sensor reading on ADA5 to Celsius.
+ *
+ */
+
+package pdx.raspberry.core;
+
+public final class Tmp36 {
+
+    public static final int OFFSET_MV = 500;    // Output at 0 Celsius.
+    public static final int MV_PER_C = 10;      // Scale factor.
+
+    private Tmp36() {
+    }
+
+    /**
+     *  Description:
+     *      Converts the ADA5 reading in millivolts to whole degrees Celsius.
+     *
+     * @param raw   ADA5 register value.
+     * @return  Temperature in Celsius.
+     */
+    public static int toCelsius(int raw) {
+        if(raw > 1023)
+        {
+            return 1023; // Limiting max to 10 bits.
+        }
+        else if(raw > 0) {
+            // https://www.microchip.com/forums/m589143.aspx        ~helpful link
+            //temp = (int) ((raw * ((1.98) / 1024)) * 100);    // Convert to temperature. Converts to Fahrenheit.
+            //temp = (int) (((temp-32)*5)/9);   // Convert to celsius.
+            return (raw - OFFSET_MV) / MV_PER_C;
+        }
+        else {
+            return 0;
+        }
+    }
+
+    /**
+     *  Description:
+     *      Converts the ADA5 reading in millivolts to tenths of a
+     *      degree Celsius, for the fan controller.
+     *
+     * @param raw   ADA5 register value.
+     * @return  Temperature in tenths of a degree Celsius.
+     */
+    public static int toDeciCelsius(int raw) {
+        return (raw - OFFSET_MV) * 10 / MV_PER_C;
+    }
+}
@@ -0,0 +1,116 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the ADC filters.
+ */
+public class AdcFilterTest {
+
+    @Test
+    public void off_passesRawValues() {
+        AdcFilter filter = new AdcFilter(1, 1, 0);
+
+        assertEquals(5, filter.filter(5));
+        assertEquals(900, filter.filter(900));
+    }
+
+    @Test
+    public void median_dropsSpikes() {
+        AdcFilter filter = new AdcFilter(3, 1, 0);
+        filter.filter(100);
+        filter.filter(101);
+
+        assertEquals(101, filter.filter(1023));     // Spike.
+        assertEquals(101, filter.filter(99));
+        assertEquals(99, filter.filter(0));         // Spike the other way.
+    }
+
+    @Test
+    public void decimate_averagesBlocksAndHolds() {
+        AdcFilter filter = new AdcFilter(1, 4, 0);
+
+        assertEquals(10, filter.filter(10));        // Passes through until the first block.
+        filter.filter(20);
+        filter.filter(30);
+        assertEquals(25, filter.filter(40));        // (10 + 20 + 30 + 40) / 4 rounded.
+        assertEquals(25, filter.filter(100));       // Held.
+        assertEquals(25, filter.filter(100));
+    }
+
+    @Test
+    public void ema_startsAtFirstValueAndConverges() {
+        AdcFilter filter = new AdcFilter(1, 1, 2);
+
+        assertEquals(400, filter.filter(400));
+        assertEquals(450, filter.filter(600));      // A quarter of the way.
+        int out = 0;
+        for (int i = 0; i < 60; i++) {
+            out = filter.filter(600);
+        }
+        assertEquals(600, out);
+    }
+
+    @Test
+    public void pipeline_reducesNoise() {
+        Random random = new Random(5);
+        AdcFilter filter = new AdcFilter(3, 5, 2);
+        int rawWorst = 0;
+        int filteredWorst = 0;
+        for (int i = 0; i < 5000; i++) {
+            int raw = 700 + random.nextInt(9) - 4;      // +-4 counts of noise.
+            int out = filter.filter(raw);
+            if (i > 100) {
+                rawWorst = Math.max(rawWorst, Math.abs(raw - 700));
+                filteredWorst = Math.max(filteredWorst, Math.abs(out - 700));
+            }
+        }
+
+        assertEquals(4, rawWorst);
+        assertTrue("worst " + filteredWorst, filteredWorst <= rawWorst / 2);
+    }
+
+    @Test
+    public void sampleFilter_filtersOnlyConfiguredChannels() {
+        SampleFilter filters = new SampleFilter();
+        filters.setFilter(SampleFilter.ADC3, new AdcFilter(3, 1, 0));
+        Sample sample = new Sample();
+
+        sample.adc3 = 100;
+        sample.adc4 = 7;
+        filters.apply(sample);
+        sample.adc3 = 1000;
+        sample.adc4 = 8;
+        filters.apply(sample);
+        sample.adc3 = 100;
+        filters.apply(sample);
+
+        assertEquals(100, sample.adc3);
+        assertEquals(8, sample.adc4);
+    }
+
+    @Test
+    public void sampleFilter_holdsOutputOnCachedInputs() {
+        SampleFilter filters = new SampleFilter();
+        filters.setFilter(SampleFilter.ADA5, new AdcFilter(3, 1, 0));
+        Sample sample = new Sample();
+        int[] readings = {100, 500, 500, 500, 500, 100};
+        boolean[] fresh = {true, true, false, false, false, true};
+
+        for (int i = 0; i < readings.length; i++) {
+            sample.ada5 = readings[i];
+            sample.fresh = fresh[i] ? Sample.ALL_FRESH : 0;
+            filters.apply(sample);
+        }
+
+        assertEquals(100, sample.ada5);     // Median of 100, 500, 100; the copies of 500 weren't fed.
+        sample.ada5 = 900;
+        sample.fresh = 0;
+        filters.apply(sample);
+        assertEquals(100, sample.ada5);
+    }
+}
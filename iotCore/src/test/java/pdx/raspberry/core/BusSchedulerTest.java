@@ -0,0 +1,161 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the I2C bus scheduler.
+ */
+public class BusSchedulerTest {
+
+    private static final long MS = 1000000L;
+
+    private final List<String> mLog = new ArrayList<>();
+
+    private class NamedJob extends BusScheduler.Job {
+        final String name;
+        int value;
+        boolean fail = false;
+        IOException failure = null;
+
+        NamedJob(int device, int priority, String name) {
+            super(device, priority);
+            this.name = name;
+        }
+
+        @Override
+        protected void run() throws IOException {
+            mLog.add(name + (value != 0 ? "=" + value : ""));
+            if (fail) {
+                throw new IOException(name);
+            }
+        }
+
+        @Override
+        protected void failed(IOException e) {
+            failure = e;
+        }
+    }
+
+    @Test
+    public void runPending_actuatorsBeforePolls() {
+        BusScheduler scheduler = new BusScheduler(8);
+        int pic = scheduler.addDevice("pic0", 0, 0);
+        scheduler.submit(new NamedJob(pic, BusScheduler.BACKGROUND, "diag"));
+        scheduler.submit(new NamedJob(pic, BusScheduler.POLL, "poll"));
+        scheduler.submit(new NamedJob(pic, BusScheduler.ACTUATOR, "pwm4"));
+        scheduler.submit(new NamedJob(pic, BusScheduler.ACTUATOR, "pwm5"));
+
+        assertEquals(4, scheduler.runPending(0, BusScheduler.BACKGROUND, 10));
+        assertEquals("[pwm4, pwm5, poll, diag]", mLog.toString());
+    }
+
+    @Test
+    public void runPending_lowestPriorityLeavesTheRestQueued() {
+        BusScheduler scheduler = new BusScheduler(8);
+        int pic = scheduler.addDevice("pic0", 0, 0);
+        scheduler.submit(new NamedJob(pic, BusScheduler.POLL, "poll"));
+        scheduler.submit(new NamedJob(pic, BusScheduler.ACTUATOR, "pwm4"));
+
+        assertEquals(1, scheduler.runPending(0, BusScheduler.ACTUATOR, 10));
+        assertEquals("[pwm4]", mLog.toString());
+        assertEquals(1, scheduler.getWaiting(BusScheduler.POLL));
+    }
+
+    @Test
+    public void submit_mergesUpdatesOfAQueuedJob() {
+        BusScheduler scheduler = new BusScheduler(8);
+        int pic = scheduler.addDevice("pic0", 0, 0);
+        NamedJob pwm4 = new NamedJob(pic, BusScheduler.ACTUATOR, "pwm4");
+        for (int value = 1; value <= 5; value++) {
+            pwm4.value = value;
+            scheduler.submit(pwm4);     // Slider moved five times before the bus got to it.
+        }
+
+        assertEquals(1, scheduler.runPending(0, BusScheduler.BACKGROUND, 10));
+        assertEquals("[pwm4=5]", mLog.toString());
+        assertTrue(scheduler.submit(pwm4));    // Can be queued again once run.
+    }
+
+    @Test
+    public void budget_defersPollsWithoutBlockingOtherDevices() {
+        BusScheduler scheduler = new BusScheduler(8);
+        int slow = scheduler.addDevice("slow", 10, 1);     // One transaction per 100 ms.
+        int fast = scheduler.addDevice("fast", 0, 0);
+        NamedJob slowPoll = new NamedJob(slow, BusScheduler.POLL, "slow");
+        NamedJob fastPoll = new NamedJob(fast, BusScheduler.POLL, "fast");
+
+        int slowRuns = 0;
+        for (long t = 0; t < 1000 * MS; t += 20 * MS) {     // 50 cycles over one second.
+            scheduler.submit(slowPoll);
+            scheduler.submit(fastPoll);
+            scheduler.runPending(t, BusScheduler.BACKGROUND, 10);
+        }
+        for (String entry : mLog) {
+            if (entry.equals("slow")) {
+                slowRuns++;
+            }
+        }
+        assertEquals(50, scheduler.getRun(fast));
+        assertTrue("slow=" + slowRuns, slowRuns >= 10 && slowRuns <= 11);
+        assertEquals(50 - slowRuns, scheduler.getDeferred(slow));
+    }
+
+    @Test
+    public void budget_actuatorsOverdrawAndPollsYield() {
+        BusScheduler scheduler = new BusScheduler(8);
+        int pic = scheduler.addDevice("pic0", 100, 2);     // 10 ms per transaction, 2 back to back.
+        NamedJob[] writes = new NamedJob[4];
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = new NamedJob(pic, BusScheduler.ACTUATOR, "w" + i);
+            scheduler.submit(writes[i]);
+        }
+        NamedJob poll = new NamedJob(pic, BusScheduler.POLL, "poll");
+        scheduler.submit(poll);
+
+        assertEquals(4, scheduler.runPending(0, BusScheduler.BACKGROUND, 10));
+        assertEquals("[w0, w1, w2, w3]", mLog.toString());    // Writes never wait.
+        assertEquals(1, scheduler.getDeferred(pic));
+        assertEquals(0, scheduler.runPending(20 * MS, BusScheduler.BACKGROUND, 10));  // Still paying back.
+        assertEquals(1, scheduler.runPending(30 * MS, BusScheduler.BACKGROUND, 10));
+        assertEquals("poll", mLog.get(4));
+    }
+
+    @Test
+    public void runPending_boundedByMaxJobs() {
+        BusScheduler scheduler = new BusScheduler(8);
+        int pic = scheduler.addDevice("pic0", 0, 0);
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit(new NamedJob(pic, BusScheduler.POLL, "p" + i));
+        }
+
+        assertEquals(3, scheduler.runPending(0, BusScheduler.BACKGROUND, 3));
+        assertEquals(2, scheduler.getWaiting(BusScheduler.POLL));
+        assertEquals(2, scheduler.runPending(0, BusScheduler.BACKGROUND, 3));
+        assertEquals("[p0, p1, p2, p3, p4]", mLog.toString());
+    }
+
+    @Test
+    public void runPending_reportsFailures() {
+        BusScheduler scheduler = new BusScheduler(2);
+        int pic = scheduler.addDevice("pic0", 0, 0);
+        NamedJob job = new NamedJob(pic, BusScheduler.ACTUATOR, "pwm4");
+        job.fail = true;
+        scheduler.submit(job);
+
+        assertEquals(1, scheduler.runPending(0, BusScheduler.BACKGROUND, 10));
+        assertEquals(1, scheduler.getFailed(pic));
+        assertNotNull(job.failure);
+
+        assertTrue(scheduler.submit(new NamedJob(pic, BusScheduler.ACTUATOR, "a")));
+        assertTrue(scheduler.submit(new NamedJob(pic, BusScheduler.ACTUATOR, "b")));
+        assertFalse(scheduler.submit(new NamedJob(pic, BusScheduler.ACTUATOR, "c")));  // Queue full.
+        assertEquals(1, scheduler.getDropped());
+        assertTrue(scheduler.summary(new StringBuilder()).toString().startsWith("pic0 run=1 deferred=0 failed=1\n"));
+    }
+}
@@ -0,0 +1,114 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency stress test for the control state hand off. Runs on a plain JVM.
+ */
+public class ControlExchangeTest {
+
+    private static final int WRITERS = 2;
+    private static final int UPDATES = 200000;     // Per writer.
+
+    @Test
+    public void get_beforePublish_isEmpty() {
+        assertSame(ControlState.EMPTY, new ControlExchange().get());
+    }
+
+    @Test
+    public void publishIfNewer_dropsStaleCommands() {
+        ControlExchange exchange = new ControlExchange();
+
+        assertNotNull(exchange.publishIfNewer(new ControlState(0, 5, 100, 0, 0, 0)));
+        assertNull(exchange.publishIfNewer(new ControlState(0, 4, 200, 0, 0, 0)));     // Late delivery.
+        assertNull(exchange.publishIfNewer(new ControlState(0, 5, 300, 0, 0, 0)));     // Repeated delivery.
+        assertEquals(100, exchange.get().pwm4);
+
+        ControlState next = exchange.publishIfNewer(new ControlState(0, 6, 400, 0, 0, 0));
+        assertEquals(6, next.seq);
+        assertEquals(2, next.version);
+    }
+
+    @Test
+    public void publishIfNewer_acceptsUnsequencedCommands() {
+        ControlExchange exchange = new ControlExchange();
+        exchange.publishIfNewer(new ControlState(0, 5, 100, 0, 0, 0));
+
+        assertNotNull(exchange.publishIfNewer(new ControlState(0, 0, 200, 0, 0, 0)));
+        assertEquals(200, exchange.get().pwm4);
+        assertEquals(5, exchange.get().seq);        // Ordering survives the unsequenced command.
+        assertNull(exchange.publishIfNewer(new ControlState(0, 4, 300, 0, 0, 0)));
+        assertEquals(200, exchange.get().pwm4);
+    }
+
+    @Test
+    public void stress_readerSeesConsistentOrderedStates() throws Exception {
+        final ControlExchange exchange = new ControlExchange();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final int[] lastValue = new int[WRITERS];
+
+        Thread[] writers = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int i = 1; i <= UPDATES; i++) {
+                        int value = writer * UPDATES + i;       // Every field carries the same value.
+                        exchange.publish(new ControlState(0, value, value, value, value));
+                    }
+                    lastValue[writer] = writer * UPDATES + UPDATES;
+                }
+            });
+            writers[w].start();
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                long lastVersion = 0;
+                while (lastVersion < (long) WRITERS * UPDATES) {
+                    ControlState state = exchange.get();
+                    if (state.pwm4 != state.pwm5 || state.pwm5 != state.pwm6 || state.pwm6 != state.dac1) {
+                        failure.compareAndSet(null, new AssertionError("Torn state at version " + state.version));
+                        return;
+                    }
+                    if (state.version < lastVersion) {
+                        failure.compareAndSet(null, new AssertionError("Version went back to " + state.version));
+                        return;
+                    }
+                    lastVersion = state.version;
+                }
+            }
+        });
+        reader.start();
+
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        reader.join(10000);
+
+        assertNull(failure.get());
+        assertFalse(reader.isAlive());
+        ControlState last = exchange.get();
+        assertEquals((long) WRITERS * UPDATES, last.version);   // No publish was lost.
+        assertTrue(last.pwm4 == lastValue[0] || last.pwm4 == lastValue[1]);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the per device database layout.
+ */
+public class DevicePathsTest {
+
+    @Test
+    public void paths_areShardedByDevice() {
+        assertEquals("devices/pi1/telemetry", DevicePaths.telemetry("pi1"));
+        assertEquals("devices/pi1/commands", DevicePaths.commands("pi1"));
+        assertEquals("devices/pi1/ack", DevicePaths.ack("pi1"));
+        assertEquals("devices/pi1/diagnostics", DevicePaths.diagnostics("pi1"));
+        assertEquals("devices/pi1/history", DevicePaths.history("pi1"));
+        assertEquals("devices/pi1/rules", DevicePaths.rules("pi1"));
+        assertEquals("devices/pi1/lanKey", DevicePaths.lanKey("pi1"));
+        assertEquals("devices/pi1/rollups/m15/ADC3IN", DevicePaths.rollups("pi1", "m15", "ADC3IN"));
+        assertEquals("deviceIndex/pi1", DevicePaths.index("pi1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkId_rejectsPathCharacters() {
+        DevicePaths.checkId("../pi1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkId_rejectsMissingId() {
+        DevicePaths.checkId(null);
+    }
+
+    @Test
+    public void toCommandMap_leavesTelemetryOut() {
+        FirebaseData data = new FirebaseData(30, 1, 2, 3, 4, 5, 6, 7, 8, 0);
+
+        assertEquals(8, data.toCommandMap().size());   // Outputs, setpoint, sequence number, trace and time.
+        assertFalse(data.toCommandMap().containsKey("ADC3IN"));
+        assertEquals(7, data.toCommandMap().get("PWM5"));
+    }
+}
@@ -0,0 +1,152 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the event recorder and its exporter.
+ */
+public class EventRecorderTest {
+
+    private final EventRecorder recorder = new EventRecorder(8);
+    private final int readFailed = recorder.define(EventRecorder.WARN, "read_failed", "errors");
+    private final int upload = recorder.define(EventRecorder.DEBUG, "upload", "temp", "dac1", "pwm3", "pwm4", "pwm5", "pwm6");
+
+    private static String fields(String line) {
+        return line.substring(line.indexOf(' ') + 1);      // Drops the time.
+    }
+
+    @Test
+    public void drain_formatsNamedArguments() {
+        recorder.record(readFailed, 3);
+        recorder.record(upload, 24, -1, 300, 400, 500, 600);
+
+        StringBuilder out = new StringBuilder();
+        assertEquals(2, recorder.drain(out, 10));
+        String[] lines = out.toString().split("\n");
+        assertEquals("W read_failed errors=3", fields(lines[0]));
+        assertEquals("D upload temp=24 dac1=-1 pwm3=300 pwm4=400 pwm5=500 pwm6=600", fields(lines[1]));
+        long time = Long.parseLong(lines[0].substring(0, lines[0].indexOf(' ')));
+        assertTrue(Math.abs(System.currentTimeMillis() - time) < 10000);
+        assertEquals(0, recorder.drain(out, 10));
+    }
+
+    @Test
+    public void level_gatesEventsBelowIt() {
+        recorder.setLevel(EventRecorder.INFO);
+        assertFalse(recorder.isEnabled(upload));
+        assertTrue(recorder.isEnabled(readFailed));
+
+        recorder.record(upload, 1, 2, 3, 4, 5, 6);
+        recorder.record(readFailed, 1);
+
+        assertEquals(1, recorder.getRecorded());
+        StringBuilder out = new StringBuilder();
+        assertEquals(EventRecorder.WARN, recorder.drainOne(out));
+        assertEquals(-1, recorder.drainOne(out));
+    }
+
+    @Test
+    public void lappedRecords_areCountedAsLost() {
+        for (int i = 0; i < 20; i++) {
+            recorder.record(readFailed, i);
+        }
+
+        StringBuilder out = new StringBuilder();
+        assertEquals(8, recorder.drain(out, 100));
+        assertEquals(12, recorder.getLost());
+        assertEquals("W read_failed errors=12", fields(out.toString().split("\n")[0]));   // Oldest kept.
+        assertTrue(recorder.summary(new StringBuilder()).toString().startsWith("events recorded=20 lost=12 level=D"));
+    }
+
+    @Test
+    public void record_isSafeFromSeveralThreads() throws Exception {
+        final EventRecorder shared = new EventRecorder(1 << 16);
+        final int type = shared.define(EventRecorder.INFO, "tick", "thread", "i");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        shared.record(type, id, i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        StringBuilder out = new StringBuilder();
+        assertEquals(40000, shared.drain(out, 100000));
+        assertEquals(0, shared.getLost());
+    }
+
+    @Test
+    public void drain_neverReturnsTornRecords() throws Exception {
+        final EventRecorder shared = new EventRecorder(16);     // Small, so the writers keep lapping the reader.
+        final int type = shared.define(EventRecorder.INFO, "tick", "a", "b", "c", "d", "e", "f");
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200000; i++) {
+                        int v = id << 24 | i;
+                        shared.record(type, v, v, v, v, v, v);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        StringBuilder out = new StringBuilder();
+        long drained = 0;
+        boolean running = true;
+        while (running) {
+            running = threads[0].isAlive() || threads[1].isAlive();
+            out.setLength(0);
+            drained += shared.drain(out, 1000);
+            for (String line : out.toString().split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = fields(line).split(" ");
+                String value = fields[2].substring(2);
+                for (int i = 3; i < fields.length; i++) {
+                    assertEquals(line, value, fields[i].substring(2));    // Every word from the same record.
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, drained + shared.getLost());
+    }
+
+    @Test
+    public void exporter_writesEveryLineOnStop() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        EventExporter exporter = new EventExporter(recorder, new EventExporter.Sink() {
+            @Override
+            public void write(int level, String line) {
+                lines.add(level + ":" + fields(line));
+            }
+        }, 1000);
+        exporter.start();
+        recorder.record(readFailed, 7);
+        exporter.stop();
+
+        assertEquals(1, lines.size());
+        assertEquals(EventRecorder.WARN + ":W read_failed errors=7", lines.get(0));
+        assertEquals(1, exporter.getExported());
+    }
+}
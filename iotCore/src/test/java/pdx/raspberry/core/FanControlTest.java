@@ -0,0 +1,106 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the fan PID, including closed loop runs
+ * against the simulated plant.
+ */
+public class FanControlTest {
+
+    private static final int CONTROL_HZ = 10;
+
+    /**
+     * Runs the loop on the simulator for a while.
+     *
+     * @return  Largest distance from the setpoint, in tenths, over the last ten minutes.
+     */
+    private static int run(Pic16Simulator pic, FanControl fan, int seconds) throws Exception {
+        int worst = 0;
+        for (int step = 0; step < seconds * CONTROL_HZ; step++) {
+            int raw = pic.readRegWordI2C(PicRegisters.ADA5_ADDRESS) & 0xFFFF;
+            int measured = Tmp36.toDeciCelsius(raw);
+            pic.writeRegWordI2C(PicRegisters.PWM3_ADDRESS, (short) fan.update(measured));
+            pic.advance(1.0 / CONTROL_HZ);
+            if (step >= (seconds - 600) * CONTROL_HZ) {
+                worst = Math.max(worst, Math.abs(measured - fan.getSetpoint()));
+            }
+        }
+        return worst;
+    }
+
+    private static Pic16Simulator plant(double start) {
+        Pic16Simulator pic = new Pic16Simulator(3);
+        pic.setRealTime(false);
+        pic.setPlant(24, 0.05, 0.1, 120);      // Settles between 18 and 30 Celsius.
+        pic.setTemperature(start);
+        return pic;
+    }
+
+    @Test
+    public void holdsSetpoint() throws Exception {
+        Pic16Simulator pic = plant(29);
+        FanControl fan = new FanControl(CONTROL_HZ);
+
+        int worst = run(pic, fan, 3600);
+
+        assertTrue("worst " + worst, worst <= 1);
+        assertEquals(25.0, pic.getTemperature(), 0.15);
+        int expected = (int) ((30 - 25) / 12.0 * FanControl.PWM_MAX);      // Duty that balances the load.
+        assertEquals(expected, fan.getOutput(), 25);
+    }
+
+    @Test
+    public void followsNewSetpoint() throws Exception {
+        Pic16Simulator pic = plant(24);
+        FanControl fan = new FanControl(CONTROL_HZ);
+        run(pic, fan, 1800);
+
+        fan.setSetpoint(210);
+        int worst = run(pic, fan, 1800);
+
+        assertTrue("worst " + worst, worst <= 1);
+        assertEquals(21.0, pic.getTemperature(), 0.15);
+    }
+
+    @Test
+    public void noisySensor_fewDutyChanges() throws Exception {
+        Pic16Simulator pic = plant(25);
+        pic.setNoise(2);
+        FanControl fan = new FanControl(CONTROL_HZ);
+        run(pic, fan, 600);
+        long before = fan.getChanges();
+
+        run(pic, fan, 600);
+
+        assertEquals(25.0, pic.getTemperature(), 0.3);
+        assertTrue("changes " + (fan.getChanges() - before), fan.getChanges() - before < 60);       // A write every step before the hold band.
+    }
+
+    @Test
+    public void unreachableSetpoint_doesNotWindUp() throws Exception {
+        Pic16Simulator pic = plant(24);
+        FanControl fan = new FanControl(CONTROL_HZ);
+        fan.setSetpoint(150);           // Colder than full fan can reach.
+        run(pic, fan, 1800);
+        assertEquals(FanControl.PWM_MAX, fan.getOutput());
+
+        fan.setSetpoint(250);
+        run(pic, fan, 120);
+
+        assertTrue("output " + fan.getOutput(), fan.getOutput() < FanControl.PWM_MAX / 2);  // Backs off right away.
+    }
+
+    @Test
+    public void slewLimitsEachStep() {
+        FanControl fan = new FanControl(CONTROL_HZ);
+        fan.setSlew(10);
+        fan.setHold(0);
+
+        assertEquals(10, fan.update(400));
+        assertEquals(20, fan.update(400));
+        assertEquals(10, fan.update(0));
+    }
+}
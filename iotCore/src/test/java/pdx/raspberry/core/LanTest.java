@@ -0,0 +1,292 @@
+package pdx.raspberry.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the LAN control path, with the Pi and the phone
+ * end running on this host over the loopback interface.
+ */
+public class LanTest {
+
+    private static final long WAIT_MS = 3000;
+    private static final int DISCOVER_MS = 50;          // Short timeouts so the tests don't sit idle.
+    private static final int LINK_TIMEOUT_MS = 300;
+    private static final int CLIENT_TIMEOUT_MS = 300;
+    private static final long QUIET_MS = 500;           // Several DISCOVER rounds, for links that must not come up.
+    private static final byte[] KEY = new byte[LanProtocol.KEY_BYTES];
+    private static final byte[] OTHER_KEY = new byte[LanProtocol.KEY_BYTES];
+
+    static {
+        for (int i = 0; i < KEY.length; i++) {
+            KEY[i] = (byte) i;
+            OTHER_KEY[i] = (byte) (i + 1);
+        }
+    }
+
+    private final BlockingQueue<FirebaseData> mCommands = new ArrayBlockingQueue<>(16);
+    private LanServer mServer;
+    private LanClient mClient;
+    private LanClient mOther;
+
+    private final LanServer.Listener mListener = new LanServer.Listener() {
+        @Override
+        public void onCommand(FirebaseData command) {
+            FirebaseData copy = new FirebaseData();
+            copy.SEQ = command.SEQ;
+            copy.UI_MS = command.UI_MS;
+            copy.DAC1OUT = command.DAC1OUT;
+            copy.PWM4 = command.PWM4;
+            copy.PWM5 = command.PWM5;
+            copy.PWM6 = command.PWM6;
+            copy.SETPOINT = command.SETPOINT;
+            mCommands.add(copy);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.stop();
+        }
+        if (mOther != null) {
+            mOther.stop();
+        }
+        if (mServer != null) {
+            mServer.stop();
+        }
+    }
+
+    private void connect(String serverId, String clientId, byte[] clientKey) throws Exception {
+        mServer = new LanServer(serverId, KEY, 0, CLIENT_TIMEOUT_MS, mListener);
+        mServer.start("lan-server");
+        mClient = newClient(clientId, clientKey, mServer.getLocalPort());
+        mClient.start("lan-client");
+    }
+
+    private static LanClient newClient(String clientId, byte[] clientKey, int port) throws Exception {
+        return new LanClient(clientId, clientKey, InetAddress.getLoopbackAddress(), port,
+                DISCOVER_MS, LINK_TIMEOUT_MS);
+    }
+
+    private static boolean waitFor(LanClient client) throws InterruptedException {
+        return waitFor(client, WAIT_MS);
+    }
+
+    private static boolean waitFor(LanClient client, long waitMs) throws InterruptedException {
+        long end = System.currentTimeMillis() + waitMs;
+        while (!client.isConnected() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        return client.isConnected();
+    }
+
+    @Test
+    public void discovery_findsThePi() throws Exception {
+        connect("pi1", "pi1", KEY);
+        assertTrue(waitFor(mClient));
+        assertTrue(mServer.hasClient());
+    }
+
+    @Test
+    public void discovery_ignoresOtherBoards() throws Exception {
+        connect("pi1", "pi2", KEY);
+        assertFalse(waitFor(mClient, QUIET_MS));
+        assertFalse(mServer.hasClient());
+
+        FirebaseData data = new FirebaseData();
+        assertFalse(mClient.sendCommand(data));     // Cloud path only.
+    }
+
+    @Test
+    public void discovery_needsTheKey() throws Exception {
+        connect("pi1", "pi1", OTHER_KEY);
+        assertFalse(waitFor(mClient, QUIET_MS));
+        assertFalse(mServer.hasClient());
+    }
+
+    @Test
+    public void discovery_keepsTheLiveClient() throws Exception {
+        connect("pi1", "pi1", KEY);
+        assertTrue(waitFor(mClient));
+
+        mOther = newClient("pi1", KEY, mServer.getLocalPort());
+        mOther.start("lan-other");
+        assertFalse(waitFor(mOther, QUIET_MS));
+        assertTrue(mClient.isConnected());
+
+        mClient.stop();
+        mClient = null;
+        Thread.sleep(CLIENT_TIMEOUT_MS);
+        assertTrue(waitFor(mOther));    // Taken over once the first phone timed out.
+    }
+
+    @Test
+    public void discovery_ignoresReplayedAnnounce() throws Exception {
+        DatagramSocket pi = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        try {
+            pi.setSoTimeout((int) WAIT_MS);
+            mClient = newClient("pi1", KEY, pi.getLocalPort());
+            mClient.start("lan-client");
+            Mac mac = LanProtocol.newMac(KEY);
+            byte[] tag = new byte[LanProtocol.MAC_BYTES];
+
+            long recorded = answer(pi, mac, tag, -1);   // An earlier DISCOVER, its answer recorded.
+            long end = System.currentTimeMillis() + QUIET_MS;
+            while (System.currentTimeMillis() < end) {
+                answer(pi, mac, tag, recorded);         // Signed, but for an old DISCOVER.
+            }
+            assertFalse(mClient.isConnected());
+
+            end = System.currentTimeMillis() + WAIT_MS;
+            while (!mClient.isConnected() && System.currentTimeMillis() < end) {
+                answer(pi, mac, tag, 0);
+            }
+            assertTrue(mClient.isConnected());
+        } finally {
+            pi.close();
+        }
+    }
+
+    /**
+     *  Description:
+     *      Plays the Pi for one DISCOVER, answering with the clock given,
+     *      the one received when clock is 0, or not at all when negative.
+     *
+     * @return  Clock of the DISCOVER received.
+     */
+    private static long answer(DatagramSocket pi, Mac mac, byte[] tag, long clock) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[LanProtocol.MAX_PACKET], LanProtocol.MAX_PACKET);
+        pi.receive(packet);
+        ByteBuffer in = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        assertTrue(LanProtocol.verify(in, mac, tag));
+        assertEquals(LanProtocol.DISCOVER, LanProtocol.type(in));
+        byte[] id = LanProtocol.encodeId("pi1");
+        assertTrue(LanProtocol.matchesId(in, id));
+        long received = in.getLong();
+        if (clock < 0) {
+            return received;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(LanProtocol.MAX_PACKET);
+        LanProtocol.begin(out, LanProtocol.ANNOUNCE);
+        LanProtocol.putId(out, id);
+        out.putLong(clock == 0 ? received : clock);
+        LanProtocol.sign(out, mac, tag);
+        pi.send(new DatagramPacket(out.array(), out.position(), packet.getSocketAddress()));
+        return received;
+    }
+
+    @Test
+    public void command_reachesThePi() throws Exception {
+        connect("pi1", "pi1", KEY);
+        assertTrue(waitFor(mClient));
+
+        FirebaseData data = new FirebaseData();
+        data.SEQ = 42;
+        data.UI_MS = 123456789L;
+        data.DAC1OUT = 17;
+        data.PWM4 = 1023;
+        data.PWM5 = 7;
+        data.PWM6 = 512;
+        data.SETPOINT = 265;
+        assertTrue(mClient.sendCommand(data));
+
+        FirebaseData received = mCommands.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(received);
+        assertEquals(42, received.SEQ);
+        assertEquals(123456789L, received.UI_MS);
+        assertEquals(17, received.DAC1OUT);
+        assertEquals(1023, received.PWM4);
+        assertEquals(7, received.PWM5);
+        assertEquals(512, received.PWM6);
+        assertEquals(265, received.SETPOINT);
+    }
+
+    @Test
+    public void command_dropsReplays() throws Exception {
+        connect("pi1", "pi1", KEY);
+        assertTrue(waitFor(mClient));
+
+        FirebaseData data = new FirebaseData();
+        data.SEQ = 42;
+        assertTrue(mClient.sendCommand(data));
+        assertEquals(42, mCommands.poll(WAIT_MS, TimeUnit.MILLISECONDS).SEQ);
+
+        long[] replays = {42, 41, 0};
+        for (long seq : replays) {
+            data.SEQ = seq;
+            assertTrue(mClient.sendCommand(data));
+            Thread.sleep(50);       // Sent one by one, not merged.
+        }
+        data.SEQ = 43;
+        assertTrue(mClient.sendCommand(data));
+        assertEquals(43, mCommands.poll(WAIT_MS, TimeUnit.MILLISECONDS).SEQ);
+        assertTrue(mCommands.isEmpty());
+    }
+
+    @Test
+    public void ackAndTelemetry_reachThePhone() throws Exception {
+        connect("pi1", "pi1", KEY);
+        assertTrue(waitFor(mClient));
+        final BlockingQueue<Boolean> received = new ArrayBlockingQueue<>(16);
+        mClient.setListener(new LanClient.Listener() {
+            @Override
+            public void onReceive() {
+                received.offer(true);
+            }
+        });
+
+        mServer.sendAck(42);
+        long end = System.currentTimeMillis() + WAIT_MS;
+        while (mClient.getAck() != 42 && System.currentTimeMillis() < end) {
+            received.poll(10, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(42, mClient.getAck());
+
+        Sample sample = new Sample();
+        sample.seq = 0x1005;
+        sample.time = System.currentTimeMillis();
+        sample.temp = 24;
+        sample.adc3 = 1000;
+        sample.pwm3 = 300;
+        sample.pwm6 = 900;
+        mServer.sendTelemetry(sample);
+
+        int[] channels = new int[TelemetryDelta.FIELDS.length];
+        end = System.currentTimeMillis() + WAIT_MS;
+        while (!mClient.pollTelemetry(channels) && System.currentTimeMillis() < end) {
+            received.poll(10, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(24, channels[TelemetryDelta.ADA5IN]);
+        assertEquals(1000, channels[TelemetryDelta.ADC3IN]);
+        assertEquals(300, channels[TelemetryDelta.PWM3]);
+        assertEquals(900, channels[TelemetryDelta.PWM6]);
+        assertEquals(5, mClient.getTrace());
+        assertEquals(sample.time, mClient.getTelemetryTime());
+        assertFalse(mClient.pollTelemetry(channels));   // Each sample is read once.
+    }
+
+    @Test
+    public void link_dropsWhenThePiStops() throws Exception {
+        connect("pi1", "pi1", KEY);
+        assertTrue(waitFor(mClient));
+        mServer.stop();
+        mServer = null;
+
+        Thread.sleep(LINK_TIMEOUT_MS + 200);
+        assertFalse(mClient.isConnected());
+    }
+}
@@ -0,0 +1,56 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the latency histogram and tracer.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentile_exactBelow64() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(25, histogram.percentile(0.50));
+        assertEquals(50, histogram.percentile(0.99));
+        assertEquals(50, histogram.getMax());
+        assertEquals(50, histogram.getCount());
+    }
+
+    @Test
+    public void percentile_withinThreePercentAbove64() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long ms = 64; ms < 600000; ms = ms * 11 / 10) {
+            histogram.reset();
+            histogram.record(ms);
+            histogram.record(ms * 4);   // Raises max so the bucket edge is returned.
+
+            long p50 = histogram.percentile(0.5);
+            assertTrue("ms=" + ms + " p50=" + p50, p50 >= ms && p50 <= ms + ms / 32 + 1);
+        }
+    }
+
+    @Test
+    public void record_clampsNegativeAndOverflow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(Long.MAX_VALUE / 2, histogram.percentile(1.0));
+    }
+
+    @Test
+    public void dump_listsOnlyRecordedSpans() {
+        LatencyTracer tracer = new LatencyTracer();
+        tracer.record(LatencyTracer.PI_TO_BUS, 12);
+
+        String dump = tracer.dump(new StringBuilder()).toString();
+        assertEquals("pi->bus n=1 p50=12 p99=12 max=12\n", dump);
+    }
+}
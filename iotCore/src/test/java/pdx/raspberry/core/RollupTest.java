@@ -0,0 +1,168 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the history rollups and the chart decimation.
+ */
+public class RollupTest {
+
+    private static final long HOUR = 3600000;
+    private static final int[] VALUES = new int[TimeSeriesStore.CHANNELS];
+
+    /** One sample per second from start to end, ADC3 counting the minutes. */
+    private static void fill(TimeSeriesStore store, long start, long end) {
+        for (long t = start; t < end; t += 1000) {
+            VALUES[TimeSeriesStore.ADA5] = 750;     // 25 Celsius.
+            VALUES[TimeSeriesStore.ADC3] = (int) (t / 60000 % 60);
+            store.append(t, VALUES);
+        }
+    }
+
+    private static String path(String resolution, String field, long start) {
+        return DevicePaths.rollups("pi1", resolution, field) + "/" + start;
+    }
+
+    @Test
+    public void collect_publishesClosedBucketsOnce() {
+        TimeSeriesStore store = new TimeSeriesStore(10, 10, 24 * 60);
+        RollupPublisher publisher = new RollupPublisher(store, "pi1");
+        fill(store, 0, HOUR + 1000);        // The sample after the hour closes its last minute.
+
+        Map<String, Object> out = new HashMap<>();
+        publisher.collect(out);
+
+        assertEquals("25,25,25", out.get(path("m1", "ADA5IN", 0)));
+        assertEquals("59,59,59", out.get(path("m1", "ADC3IN", 59 * 60000)));
+        assertEquals("15,29,22", out.get(path("m15", "ADC3IN", 15 * 60000)));
+        assertEquals("0,59,29", out.get(path("h1", "ADC3IN", 0)));
+        assertTrue(out.containsKey(path("m1", "ADC3IN", -RollupPublisher.RETENTION[0] * 60000L)));
+        assertNull(out.get(path("m1", "ADC3IN", -RollupPublisher.RETENTION[0] * 60000L)));   // Deleted.
+
+        out.clear();
+        assertEquals(0, publisher.collect(out));    // Nothing new closed.
+        fill(store, HOUR + 1000, HOUR + 61000);
+        out.clear();
+        assertEquals(RollupPublisher.FIELDS.length, publisher.collect(out));
+        assertTrue(out.containsKey(path("m1", "ADC3IN", HOUR)));
+    }
+
+    @Test
+    public void collect_skipsPartialFirstBucket() {
+        TimeSeriesStore store = new TimeSeriesStore(10, 10, 24 * 60);
+        RollupPublisher publisher = new RollupPublisher(store, "pi1");
+        fill(store, 10 * 60000, HOUR + 16 * 60000);
+
+        Map<String, Object> out = new HashMap<>();
+        publisher.collect(out);
+
+        assertTrue(out.containsKey(path("m1", "ADC3IN", 10 * 60000)));
+        assertFalse(out.containsKey(path("m15", "ADC3IN", 0)));
+        assertTrue(out.containsKey(path("m15", "ADC3IN", 15 * 60000)));
+        assertFalse(out.containsKey(path("h1", "ADC3IN", 0)));
+        assertFalse(out.containsKey(path("h1", "ADC3IN", HOUR)));     // Still open.
+    }
+
+    @Test
+    public void takeExpired_coversWhatFellOutWhileStopped() {
+        TimeSeriesStore store = new TimeSeriesStore(10, 10, 24 * 60);
+        RollupPublisher publisher = new RollupPublisher(store, "pi1");
+        assertNull(publisher.takeExpired(RollupPublisher.MINUTE));    // Nothing collected yet.
+
+        long start = 40 * 24 * HOUR;    // Restarted long after the last buckets were written.
+        fill(store, start, start + HOUR + 1000);
+        Map<String, Object> out = new HashMap<>();
+        publisher.collect(out);
+
+        long expired = start - RollupPublisher.RETENTION[RollupPublisher.MINUTE] * 60000L;
+        assertEquals(Long.toString(expired), publisher.takeExpired(RollupPublisher.MINUTE));
+        assertTrue(out.containsKey(path("m1", "ADC3IN", expired)));    // Where the per bucket deletes start.
+        assertEquals(Long.toString(start - RollupPublisher.RETENTION[RollupPublisher.QUARTER] * 15 * 60000L),
+                publisher.takeExpired(RollupPublisher.QUARTER));
+        assertEquals(Long.toString(start - RollupPublisher.RETENTION[RollupPublisher.HOUR] * HOUR),
+                publisher.takeExpired(RollupPublisher.HOUR));
+
+        assertNull(publisher.takeExpired(RollupPublisher.MINUTE));    // Once per start.
+        fill(store, start + HOUR + 1000, start + HOUR + 61000);
+        publisher.collect(out);
+        assertNull(publisher.takeExpired(RollupPublisher.MINUTE));
+    }
+
+    @Test
+    public void decode_roundTrips() {
+        int[] bucket = new int[3];
+        assertTrue(RollupPublisher.decode(RollupPublisher.encode(-5, 1023, 400), bucket));
+        assertArrayEquals(new int[] {-5, 1023, 400}, bucket);
+        assertFalse(RollupPublisher.decode("1,2", bucket));
+        assertFalse(RollupPublisher.decode("1,x,3", bucket));
+        assertEquals("3600000", RollupPublisher.key(RollupPublisher.HOUR, HOUR + 59 * 60000));
+    }
+
+    @Test
+    public void pickResolution_boundsTheDownload() {
+        assertEquals(RollupPublisher.MINUTE, ChartDecimator.pickResolution(6 * HOUR, 720));
+        assertEquals(RollupPublisher.QUARTER, ChartDecimator.pickResolution(24 * HOUR, 720));
+        assertEquals(RollupPublisher.HOUR, ChartDecimator.pickResolution(7 * 24 * HOUR, 500));
+        assertEquals(RollupPublisher.HOUR, ChartDecimator.pickResolution(365 * 24 * HOUR, 5000));
+        for (long span = HOUR; span <= 30 * 24 * HOUR; span += HOUR) {
+            int r = ChartDecimator.pickResolution(span, 5000);
+            assertTrue(span / RollupPublisher.BUCKET_MS[r] <= ChartDecimator.MAX_POINTS);
+        }
+    }
+
+    @Test
+    public void minMax_keepsSpikes() {
+        int n = 1000;
+        long[] times = new long[n];
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            times[i] = i * 60000L;
+            values[i] = 100;
+        }
+        values[437] = 900;      // One bucket spike.
+        long[] outTimes = new long[100];
+        int[] outMins = new int[100];
+        int[] outMaxs = new int[100];
+
+        int columns = ChartDecimator.minMax(times, values, values, n, 100, outTimes, outMins, outMaxs);
+
+        assertEquals(100, columns);
+        assertEquals(900, outMaxs[43]);
+        assertEquals(100, outMins[43]);
+        assertEquals(430 * 60000L, outTimes[43]);
+        assertEquals(100, outMaxs[44]);
+    }
+
+    @Test
+    public void lttb_keepsEndsAndPeak() {
+        int n = 1000;
+        long[] times = new long[n];
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            times[i] = 1559347200000L + i * 60000L;
+            values[i] = i % 2;
+        }
+        values[500] = 50;
+        long[] outTimes = new long[50];
+        int[] outValues = new int[50];
+
+        int kept = ChartDecimator.lttb(times, values, n, 50, outTimes, outValues);
+
+        assertEquals(50, kept);
+        assertEquals(times[0], outTimes[0]);
+        assertEquals(times[n - 1], outTimes[49]);
+        boolean peak = false;
+        for (int i = 1; i < kept; i++) {
+            assertTrue(outTimes[i] > outTimes[i - 1]);
+            peak |= outValues[i] == 50;
+        }
+        assertTrue(peak);
+
+        assertEquals(10, ChartDecimator.lttb(times, values, 10, 50, outTimes, outValues));     // Short lines are copied.
+    }
+}
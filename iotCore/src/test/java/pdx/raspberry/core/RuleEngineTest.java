@@ -0,0 +1,186 @@
+package pdx.raspberry.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the compiled automation rules.
+ */
+public class RuleEngineTest {
+
+    private static final long MONDAY_NOON = 1561982400000L;    // 2019-07-01 12:00 UTC, a Monday.
+    private static final long MINUTE = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RuleEngine engine = new RuleEngine(TimeZone.getTimeZone("UTC"));
+    private final Sample sample = new Sample();
+
+    private void load(RuleSpec... rules) {
+        engine.setProgram(RuleProgram.compile(Arrays.asList(rules)));
+    }
+
+    private int fanAt(int temp, long wallMs) {
+        sample.temp = temp;
+        sample.pwm3 = -1;      // What the control stage computed.
+        engine.evaluate(sample, wallMs);
+        return sample.pwm3;
+    }
+
+    @Test
+    public void threshold_drivesOutputWithHysteresis() {
+        load(new RuleSpec("ADA5IN", ">", 30, 2, "PWM3", 1023));
+
+        assertEquals(-1, fanAt(29, MONDAY_NOON));
+        assertEquals(1023, fanAt(30, MONDAY_NOON));
+        assertEquals(1023, fanAt(29, MONDAY_NOON));     // Held until below 28.
+        assertEquals(1023, fanAt(29, MONDAY_NOON));
+        assertEquals(-1, fanAt(28, MONDAY_NOON));
+        assertEquals(-1, fanAt(29, MONDAY_NOON));       // Needs 30 again.
+    }
+
+    @Test
+    public void belowRule_mirrorsTheThreshold() {
+        load(new RuleSpec("ADC3IN", "<", 100, 10, "PWM4", 500));
+        sample.adc3 = 90;
+        engine.evaluate(sample, MONDAY_NOON);
+        assertEquals(500, sample.pwm4);
+
+        sample.pwm4 = 0;
+        sample.adc3 = 105;
+        engine.evaluate(sample, MONDAY_NOON);
+        assertEquals(500, sample.pwm4);
+        sample.pwm4 = 0;
+        sample.adc3 = 110;
+        assertEquals(0, engine.evaluate(sample, MONDAY_NOON));
+        assertEquals(0, sample.pwm4);
+    }
+
+    @Test
+    public void priority_picksTheWinnerPerOutput() {
+        RuleSpec warm = new RuleSpec("ADA5IN", ">", 25, 0, "PWM3", 500);
+        RuleSpec hot = new RuleSpec("ADA5IN", ">", 35, 0, "PWM3", 1023);
+        hot.priority = 10;
+        RuleSpec light = new RuleSpec("", "", 0, 0, "PWM4", 200);   // Always on.
+        load(warm, hot, light);
+
+        assertEquals(500, fanAt(30, MONDAY_NOON));
+        assertEquals(1023, fanAt(40, MONDAY_NOON));
+        assertEquals(200, sample.pwm4);
+        assertTrue(engine.summary(new StringBuilder()).toString().startsWith("rules n=3 rejected=0"));
+    }
+
+    @Test
+    public void schedule_limitsRulesToTheirWindow() {
+        RuleSpec night = new RuleSpec("", "", 0, 0, "PWM5", 300);
+        night.fromMinute = 22 * 60;     // 22:00 to 06:00, across midnight.
+        night.toMinute = 6 * 60;
+        RuleSpec weekend = new RuleSpec("", "", 0, 0, "PWM6", 400);
+        weekend.days = 0x60;            // Saturday and Sunday.
+        load(night, weekend);
+
+        sample.pwm5 = 0;
+        engine.evaluate(sample, MONDAY_NOON);
+        assertEquals(0, sample.pwm5);
+        engine.evaluate(sample, MONDAY_NOON + 11 * 60 * MINUTE);   // 23:00.
+        assertEquals(300, sample.pwm5);
+        sample.pwm5 = 0;
+        engine.evaluate(sample, MONDAY_NOON + 18 * 60 * MINUTE);   // 06:00 Tuesday.
+        assertEquals(0, sample.pwm5);
+
+        assertEquals(0, sample.pwm6);
+        engine.evaluate(sample, MONDAY_NOON + 5 * 24 * 60 * MINUTE);   // Saturday.
+        assertEquals(400, sample.pwm6);
+    }
+
+    @Test
+    public void compile_rejectsMalformedRules() {
+        RuleSpec disabled = new RuleSpec("ADA5IN", ">", 30, 0, "PWM3", 1);
+        disabled.enabled = false;
+        RuleProgram program = RuleProgram.compile(Arrays.asList(
+                new RuleSpec("ADA5IN", ">", 30, 0, "PWM3", 1),
+                new RuleSpec("TIMESTAMP", ">", 30, 0, "PWM3", 1),
+                new RuleSpec("ADA5IN", "=", 30, 0, "PWM3", 1),
+                new RuleSpec("ADA5IN", ">", 30, 0, "ADC3IN", 1),
+                new RuleSpec("ADA5IN", ">", 30, -1, "PWM3", 1),
+                disabled,
+                null));     // An entry the database couldn't parse.
+
+        assertEquals(1, program.getRuleCount());
+        assertEquals(6, program.getRejected());
+    }
+
+    @Test
+    public void manyRules_shareTableEntries() {
+        List<RuleSpec> rules = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            RuleSpec rule = new RuleSpec("ADC" + (3 + i % 3) + "IN", i % 2 == 0 ? ">" : "<", (i * 37) % 1024, i % 8,
+                    "PWM" + (3 + i % 4), i);
+            rule.priority = i;
+            rules.add(rule);
+        }
+        RuleProgram program = RuleProgram.compile(rules);
+        assertEquals(300, program.getRuleCount());
+        assertTrue(program.getTableEntries() <= 2 * 300 + 3);
+        engine.setProgram(program);
+
+        sample.adc3 = 1023;     // Rule 0, ADC3 >= 0, but lower priority than the rest.
+        sample.adc4 = 0;
+        sample.adc5 = 512;
+        engine.evaluate(sample, MONDAY_NOON);
+        int expected = -1;
+        for (int i = 299; i >= 0 && expected < 0; i--) {
+            if (i % 4 == 0) {       // Drives PWM3.
+                int v = i % 3 == 0 ? sample.adc3 : (i % 3 == 1 ? sample.adc4 : sample.adc5);
+                int t = (i * 37) % 1024;
+                if (i % 2 == 0 ? v >= t : v <= t) {
+                    expected = i;
+                }
+            }
+        }
+        assertEquals(expected, sample.pwm3);
+    }
+
+    @Test
+    public void setProgramIfEmpty_neverReplacesDatabaseRules() {
+        RuleProgram saved = RuleProgram.compile(Arrays.asList(new RuleSpec("ADA5IN", ">", 30, 2, "PWM3", 7)));
+        RuleProgram database = RuleProgram.compile(new ArrayList<RuleSpec>());     // No rules is still a program.
+
+        engine.setProgram(database);
+        assertFalse(engine.setProgramIfEmpty(saved));
+        assertSame(database, engine.getProgram());
+
+        RuleEngine fresh = new RuleEngine(TimeZone.getTimeZone("UTC"));
+        assertTrue(fresh.setProgramIfEmpty(saved));
+        assertFalse(fresh.setProgramIfEmpty(database));
+        assertSame(saved, fresh.getProgram());
+    }
+
+    @Test
+    public void store_keepsRulesForOfflineRestarts() throws Exception {
+        RuleSpec rule = new RuleSpec("ADA5IN", ">", 30, 2, "PWM3", 1023);
+        rule.priority = 4;
+        rule.days = 0x1F;
+        rule.fromMinute = 480;
+        rule.toMinute = 1020;
+        RuleStore store = new RuleStore(new File(folder.getRoot(), "rules"));
+        assertNull(store.load());
+        store.save(Arrays.asList(rule, new RuleSpec("", "", 0, 0, "PWM4", 7)));
+
+        List<RuleSpec> loaded = new RuleStore(new File(folder.getRoot(), "rules")).load();
+        assertEquals(2, loaded.size());
+        assertEquals(rule.toLine(), loaded.get(0).toLine());
+        assertEquals("", loaded.get(1).input);
+        assertEquals(7, loaded.get(1).value);
+    }
+}
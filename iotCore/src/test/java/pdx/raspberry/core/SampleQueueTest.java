@@ -0,0 +1,57 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the sample queue between the sampling thread and its consumers.
+ */
+public class SampleQueueTest {
+
+    private static Sample sample(long seq) {
+        Sample sample = new Sample();
+        sample.seq = seq;
+        return sample;
+    }
+
+    @Test
+    public void poll_returnsSamplesInOrder() {
+        SampleQueue queue = new SampleQueue(4);
+        queue.offer(sample(1));
+        queue.offer(sample(2));
+
+        Sample out = new Sample();
+        assertTrue(queue.poll(out));
+        assertEquals(1, out.seq);
+        assertTrue(queue.poll(out));
+        assertEquals(2, out.seq);
+        assertFalse(queue.poll(out));
+    }
+
+    @Test
+    public void offer_dropsOldestWhenFull() {
+        SampleQueue queue = new SampleQueue(2);
+        queue.offer(sample(1));
+        queue.offer(sample(2));
+        queue.offer(sample(3));
+
+        Sample out = new Sample();
+        assertEquals(1, queue.getDropped());
+        assertTrue(queue.poll(out));
+        assertEquals(2, out.seq);
+    }
+
+    @Test
+    public void pollLatest_emptiesQueue() {
+        SampleQueue queue = new SampleQueue(4);
+        for (int i = 1; i <= 6; i++) {
+            queue.offer(sample(i));
+        }
+
+        Sample out = new Sample();
+        assertTrue(queue.pollLatest(out));
+        assertEquals(6, out.seq);
+        assertEquals(0, queue.size());
+    }
+}
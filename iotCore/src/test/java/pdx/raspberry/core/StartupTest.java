@@ -0,0 +1,83 @@
+package pdx.raspberry.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the persisted commands and the startup trace.
+ */
+public class StartupTest {
+
+    private static final long MS = 1000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void commandStore_keepsTheLastCommands() throws Exception {
+        File file = new File(folder.getRoot(), "commands");
+        CommandStore store = new CommandStore(file);
+        assertNull(store.load());       // First boot.
+
+        store.save(new ControlState(3, 41, 100, 200, 300, 7, 265, 5000, 6000));
+        store.save(new ControlState(4, 42, 101, 201, 301, 8, 270, 5000, 6000));
+
+        ControlState state = new CommandStore(file).load();
+        assertNotNull(state);
+        assertEquals(42, state.seq);
+        assertEquals(101, state.pwm4);
+        assertEquals(201, state.pwm5);
+        assertEquals(301, state.pwm6);
+        assertEquals(8, state.dac1);
+        assertEquals(270, state.setpoint);
+        assertEquals(0, state.traceMs);     // Not a new command, nothing to trace.
+        assertEquals(0, state.receivedMs);
+        assertFalse(new File(folder.getRoot(), "commands.tmp").exists());
+    }
+
+    @Test
+    public void commandStore_ignoresCorruptFile() throws Exception {
+        File file = new File(folder.getRoot(), "commands");
+        CommandStore store = new CommandStore(file);
+        store.save(new ControlState(1, 42, 100, 200, 300, 7, 265, 0, 0));
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(14);
+        raw.write(0xFF);
+        raw.close();
+
+        assertNull(store.load());
+    }
+
+    @Test
+    public void restoredCommands_yieldToNewerOnes() throws Exception {
+        File file = new File(folder.getRoot(), "commands");
+        new CommandStore(file).save(new ControlState(1, 42, 100, 200, 300, 7, 265, 0, 0));
+        ControlExchange exchange = new ControlExchange();
+        exchange.publishIfNewer(new ControlState(0, 43, 1, 2, 3, 4, 0, 0, 0));   // The database was faster.
+
+        assertNull(exchange.publishIfNewer(new CommandStore(file).load()));
+        assertEquals(43, exchange.get().seq);
+    }
+
+    @Test
+    public void trace_keepsTheFirstMarkOfEachStage() {
+        StartupTrace trace = new StartupTrace(1000 * MS, 8000);
+        assertTrue(trace.mark(StartupTrace.HARDWARE_OPEN, 1120 * MS));
+        assertTrue(trace.mark(StartupTrace.FIRST_SAMPLE, 1130 * MS));
+        assertFalse(trace.mark(StartupTrace.FIRST_SAMPLE, 1140 * MS));
+
+        assertEquals(120, trace.getMillis(StartupTrace.HARDWARE_OPEN));
+        assertEquals(130, trace.getMillis(StartupTrace.FIRST_SAMPLE));
+        assertEquals(-1, trace.getMillis(StartupTrace.FIRST_UPLOAD));
+        assertFalse(trace.isReached(StartupTrace.FIRST_UPLOAD));
+        String summary = trace.summary(new StringBuilder()).toString();
+        assertTrue(summary, summary.startsWith("startup boot+8000ms restored=- hardware=120ms first_sample=130ms"));
+        assertTrue(summary, summary.contains("first_upload=-"));
+    }
+}
@@ -0,0 +1,128 @@
+package pdx.raspberry.core;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the telemetry codec, including a check that
+ * building and reading an update doesn't allocate.
+ */
+public class TelemetryCodecTest {
+
+    private static final String[] FIELDS = {"A", "B", "C"};
+
+    @Test
+    public void payload_hasFieldsInSchemaOrderThenTimestamp() {
+        TelemetryCodec codec = new TelemetryCodec(FIELDS);
+        codec.put(2, 300);
+        codec.put(0, 100);
+
+        Iterator<Map.Entry<String, Object>> it = codec.payload().entrySet().iterator();
+        Map.Entry<String, Object> entry = it.next();
+        assertEquals("A", entry.getKey());
+        assertEquals(100, entry.getValue());
+        entry = it.next();
+        assertEquals("C", entry.getKey());
+        assertEquals(300, entry.getValue());
+        entry = it.next();
+        assertEquals(TelemetryCodec.TIMESTAMP, entry.getKey());
+        assertEquals(TelemetryCodec.SERVER_TIMESTAMP, entry.getValue());
+        assertFalse(it.hasNext());
+        assertEquals(3, codec.payload().size());
+    }
+
+    @Test
+    public void payload_hasTraceBeforeTimestamp() {
+        TelemetryCodec codec = new TelemetryCodec(FIELDS);
+        codec.setTrace(4000, 12);
+        codec.put(1, 7);
+
+        Iterator<Map.Entry<String, Object>> it = codec.payload().entrySet().iterator();
+        assertEquals("B", it.next().getKey());
+        Map.Entry<String, Object> entry = it.next();
+        assertEquals(TelemetryCodec.TRACE, entry.getKey());
+        assertEquals(4000, entry.getValue());
+        entry = it.next();
+        assertEquals(TelemetryCodec.AGE, entry.getKey());
+        assertEquals(12, entry.getValue());
+        assertEquals(TelemetryCodec.TIMESTAMP, it.next().getKey());
+        assertFalse(it.hasNext());
+        assertEquals(4, codec.payload().size());
+        assertEquals(12, codec.payload().get(TelemetryCodec.AGE));
+
+        codec.clearTrace();
+        assertEquals(2, codec.payload().size());
+        assertFalse(codec.payload().containsKey(TelemetryCodec.TRACE));
+    }
+
+    @Test
+    public void payload_lookups() {
+        TelemetryCodec codec = new TelemetryCodec(FIELDS);
+        codec.put(1, 5000);     // Outside the box cache.
+
+        assertEquals(5000, codec.payload().get("B"));
+        assertFalse(codec.payload().containsKey("A"));
+        assertTrue(codec.payload().containsKey(TelemetryCodec.TIMESTAMP));
+    }
+
+    @Test
+    public void emptyPayload_hasNoTimestamp() {
+        TelemetryCodec codec = new TelemetryCodec(FIELDS);
+
+        assertTrue(codec.payload().isEmpty());
+        assertFalse(codec.payload().entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void timestampCanBeLeftOut() {
+        TelemetryCodec codec = new TelemetryCodec(FIELDS);
+        codec.setTimestamp(false);
+        codec.put(0, 1);
+
+        assertEquals(1, codec.payload().size());
+        assertNull(codec.payload().get(TelemetryCodec.TIMESTAMP));
+    }
+
+    @Test
+    public void deltaEncoding_doesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        long id = Thread.currentThread().getId();
+
+        TelemetryDelta delta = new TelemetryDelta(60000);
+        FirebaseData data = new FirebaseData(21, 100, 200, 300, 0, 511, 0, 0, 0, 0);
+        long sink = 0;
+        for (int i = 0; i < 20000; i++) {       // Warm up, also fills the JIT.
+            sink += encode(delta, data, i);
+        }
+
+        long overhead = threads.getThreadAllocatedBytes(id);
+        overhead = threads.getThreadAllocatedBytes(id) - overhead;
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 10000; i++) {
+            sink += encode(delta, data, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before - overhead;
+
+        assertTrue(sink > 0);
+        assertEquals(0, allocated);
+    }
+
+    private static long encode(TelemetryDelta delta, FirebaseData data, int i) {
+        data.ADC3IN = (i & 1) == 0 ? 100 : 900;
+        Map<String, Object> update = delta.changes(data, i);
+        long sum = 0;
+        for (Map.Entry<String, Object> entry : update.entrySet()) {
+            sum += entry.getKey().length();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,71 @@
+package pdx.raspberry.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the telemetry change detection stage.
+ */
+public class TelemetryDeltaTest {
+
+    private TelemetryDelta delta;
+    private FirebaseData data;
+
+    @Before
+    public void setUp() {
+        delta = new TelemetryDelta(60000);
+        delta.setDeadband(TelemetryDelta.ADC3IN, 2);
+        data = new FirebaseData(21, 100, 200, 300, 0, 511, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void firstCall_sendsEverything() {
+        Map<String, Object> changes = delta.changes(data, 0);
+
+        assertEquals(TelemetryDelta.FIELDS.length + 1, changes.size());
+        assertEquals(TelemetryCodec.SERVER_TIMESTAMP, changes.get(TelemetryCodec.TIMESTAMP));
+    }
+
+    @Test
+    public void changeInsideDeadband_isSuppressed() {
+        delta.changes(data, 0);
+        data.ADC3IN = 102;
+
+        assertNull(delta.changes(data, 1000));
+    }
+
+    @Test
+    public void changeOutsideDeadband_sendsOnlyThatField() {
+        delta.changes(data, 0);
+        data.ADC3IN = 103;
+        data.ADA5IN = 22;
+
+        Map<String, Object> changes = delta.changes(data, 1000);
+
+        assertEquals(2 + 1, changes.size());      // Plus TIMESTAMP.
+        assertEquals(103, changes.get("ADC3IN"));
+        assertEquals(22, changes.get("ADA5IN"));
+    }
+
+    @Test
+    public void deadband_isMeasuredFromLastUpload() {
+        delta.changes(data, 0);
+        data.ADC3IN = 102;
+        delta.changes(data, 1000);
+        data.ADC3IN = 103;      // Drifted 3 counts in total.
+
+        assertNotNull(delta.changes(data, 2000));
+    }
+
+    @Test
+    public void heartbeat_sendsEverythingAfterSilence() {
+        delta.changes(data, 0);
+
+        assertNull(delta.changes(data, 59999));
+        assertEquals(TelemetryDelta.FIELDS.length + 1, delta.changes(data, 60000).size());
+    }
+}
@@ -0,0 +1,289 @@
+package pdx.raspberry.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the store and forward telemetry log and its
+ * replay against a local stand-in for the database.
+ */
+public class TelemetryLogTest {
+
+    private static final int SEGMENT = 100 * TelemetryLog.RECORD_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     *  Local stand-in for the database. Keeps what it received and
+     *  fails every batch while offline.
+     */
+    private static class LocalBackend implements LogReplayer.Sink {
+        final List<Long> seqs = new ArrayList<>();
+        final List<Integer> temps = new ArrayList<>();
+        final List<Integer> counts = new ArrayList<>();
+        boolean online = true;
+        boolean deferred = false;
+        LogReplayer.Callback pending;
+        int batches = 0;
+
+        @Override
+        public void send(Sample[] batch, int[] counts, int size, LogReplayer.Callback done) {
+            batches++;
+            if (!online) {
+                done.complete(false);
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                seqs.add(batch[i].seq);
+                temps.add(batch[i].temp);
+                this.counts.add(counts[i]);
+            }
+            if (deferred) {
+                pending = done;
+            } else {
+                done.complete(true);
+            }
+        }
+    }
+
+    private static Sample sample(long time, int temp) {
+        Sample sample = new Sample();
+        sample.time = time;
+        sample.temp = temp;
+        sample.ada5 = 750 + temp;
+        sample.adc3 = 1023;
+        sample.pwm6 = 512;
+        return sample;
+    }
+
+    @Test
+    public void append_readsBackInOrder() throws IOException {
+        TelemetryLog log = new TelemetryLog(folder.getRoot(), SEGMENT, 10 * SEGMENT);
+        for (int i = 0; i < 250; i++) {
+            assertEquals(i + 1, log.append(sample(1000L * i, i % 50)));
+        }
+        assertEquals(3, log.getSegmentCount());
+
+        Sample[] out = new Sample[300];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = new Sample();
+        }
+        int[] counts = new int[300];
+        assertEquals(250, log.read(0, out, counts));
+        assertEquals(1, out[0].seq);
+        assertEquals(250, out[249].seq);
+        assertEquals(49, out[149].temp);
+        assertEquals(799, out[149].ada5);
+        assertEquals(1023, out[149].adc3);
+        assertEquals(512, out[149].pwm6);
+        assertEquals(1, counts[149]);
+
+        assertEquals(50, log.read(200, out, counts));
+        assertEquals(201, out[0].seq);
+        log.close();
+    }
+
+    @Test
+    public void reopen_keepsBacklogCursorAndSequence() throws IOException {
+        File dir = folder.getRoot();
+        TelemetryLog log = new TelemetryLog(dir, SEGMENT, 10 * SEGMENT);
+        for (int i = 0; i < 150; i++) {
+            log.append(sample(1000L * i, 20));
+        }
+        log.ack(120);
+        log.close();
+
+        log = new TelemetryLog(dir, SEGMENT, 10 * SEGMENT);   // Process restart.
+        assertEquals(150, log.getLastSeq());
+        assertEquals(120, log.getAcked());
+        assertEquals(1, log.getSegmentCount());                 // First segment was fully acked.
+        assertEquals(151, log.append(sample(150000, 21)));
+
+        Sample[] out = {new Sample(), new Sample(), new Sample(), new Sample(),
+                new Sample(), new Sample(), new Sample(), new Sample()};
+        assertEquals(8, log.read(log.getAcked(), out, new int[8]));
+        assertEquals(121, out[0].seq);
+        log.close();
+    }
+
+    @Test
+    public void reopen_stopsAtTornRecord() throws IOException {
+        File dir = folder.getRoot();
+        TelemetryLog log = new TelemetryLog(dir, SEGMENT, 10 * SEGMENT);
+        for (int i = 0; i < 10; i++) {
+            log.append(sample(1000L * i, 20));
+        }
+        log.close();
+
+        File segment = new File(dir, String.format("%020d.seg", 1));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(7 * TelemetryLog.RECORD_BYTES + 32);      // Corrupt the 8th record.
+            file.writeShort(99);
+        }
+
+        log = new TelemetryLog(dir, SEGMENT, 10 * SEGMENT);
+        assertEquals(7, log.getLastSeq());
+        assertEquals(8, log.append(sample(10000, 20)));
+        log.close();
+    }
+
+    @Test
+    public void budget_compactsOldSegmentsThenDrops() throws IOException {
+        File dir = folder.getRoot();
+        int segment = 120 * TelemetryLog.RECORD_BYTES;          // Two minutes at 1 Hz.
+        TelemetryLog log = new TelemetryLog(dir, segment, 4 * segment);
+        for (int i = 0; i < 2000; i++) {
+            log.append(sample(1000L * i, i < 60 ? 20 : 30));
+        }
+        assertTrue(log.getDiskBytes() <= 4 * segment);
+        assertTrue(log.getCompacted() > 0);
+        assertEquals(log.getDiskBytes(), usage(dir));
+
+        Sample[] out = new Sample[2000];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = new Sample();
+        }
+        int[] counts = new int[2000];
+        int n = log.read(0, out, counts);
+        assertEquals(2000, out[n - 1].seq);
+        assertEquals(60, counts[0]);                            // First minute merged.
+        assertEquals(20, out[0].temp);
+        assertEquals(0, out[0].time);
+        assertEquals(60, out[0].seq);
+        assertEquals(30, out[1].temp);
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            total += counts[i];
+            assertTrue(i == 0 || out[i].seq > out[i - 1].seq);
+        }
+        assertEquals(2000, total + log.getDropped());
+        log.close();
+
+        log = new TelemetryLog(dir, segment, 4 * segment);     // Rollups survive a restart.
+        assertEquals(n, log.read(0, out, counts));
+        assertEquals(60, counts[0]);
+        log.close();
+    }
+
+    @Test
+    public void budget_neverCompactsRecordsInFlight() throws IOException {
+        int segment = 120 * TelemetryLog.RECORD_BYTES;
+        TelemetryLog log = new TelemetryLog(folder.getRoot(), segment, 4 * segment);
+        for (int i = 0; i < 300; i++) {
+            log.append(sample(1000L * i, 20));
+        }
+        Sample[] out = new Sample[100];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = new Sample();
+        }
+        int[] counts = new int[100];
+        assertEquals(100, log.read(0, out, counts));           // Sent, not acked yet.
+        for (int i = 300; i < 600; i++) {
+            log.append(sample(1000L * i, 20));
+        }
+        assertTrue(log.getCompacted() > 0);
+
+        log.ack(100);
+        log.read(log.getAcked(), out, counts);
+        assertEquals(101, out[0].seq);                          // The first segment stayed raw.
+        assertEquals(1, counts[19]);
+        assertEquals(60, counts[20]);                           // The next one was compacted.
+        log.close();
+    }
+
+    @Test
+    public void replay_sendsBacklogOnceInThrottledBatches() throws IOException {
+        TelemetryLog log = new TelemetryLog(folder.getRoot(), SEGMENT, 10 * SEGMENT);
+        for (int i = 0; i < 250; i++) {
+            log.append(sample(1000L * i, i % 50));
+        }
+        LocalBackend backend = new LocalBackend();
+        LogReplayer replayer = new LogReplayer(log, backend, 100, 1000);
+
+        assertEquals(100, replayer.pump(0));
+        assertEquals(0, replayer.pump(500));                    // Throttled.
+        assertEquals(100, replayer.pump(1000));
+        assertEquals(50, replayer.pump(2000));
+        assertEquals(0, replayer.pump(3000));
+        assertFalse(log.hasBacklog());
+        assertEquals(250, replayer.getReplayed());
+        assertEquals(250, backend.seqs.size());
+        for (int i = 0; i < 250; i++) {
+            assertEquals(i + 1, (long) backend.seqs.get(i));
+        }
+        log.close();
+    }
+
+    @Test
+    public void replay_retriesWithBackoffWhileOffline() throws IOException {
+        TelemetryLog log = new TelemetryLog(folder.getRoot(), SEGMENT, 10 * SEGMENT);
+        for (int i = 0; i < 10; i++) {
+            log.append(sample(1000L * i, 20));
+        }
+        LocalBackend backend = new LocalBackend();
+        backend.online = false;
+        LogReplayer replayer = new LogReplayer(log, backend, 100, 1000);
+
+        assertEquals(10, replayer.pump(0));
+        assertEquals(0, replayer.pump(1000));                   // Failure settles, back off 2 s.
+        assertEquals(1, replayer.getFailures());
+        assertEquals(0, replayer.pump(2500));
+        assertEquals(10, replayer.pump(3000));
+        assertEquals(0, log.getAcked());
+
+        backend.online = true;
+        assertEquals(0, replayer.pump(3000));                   // Second failure, back off 4 s.
+        assertEquals(2, replayer.getFailures());
+        assertEquals(0, replayer.pump(6000));
+        assertEquals(10, replayer.pump(7000));
+        replayer.pump(7000);
+        assertEquals(10, log.getAcked());
+        log.close();
+    }
+
+    @Test
+    public void replay_waitsForBatchInFlight() throws IOException {
+        File dir = folder.getRoot();
+        TelemetryLog log = new TelemetryLog(dir, SEGMENT, 10 * SEGMENT);
+        for (int i = 0; i < 30; i++) {
+            log.append(sample(1000L * i, 20));
+        }
+        LocalBackend backend = new LocalBackend();
+        backend.deferred = true;
+        LogReplayer replayer = new LogReplayer(log, backend, 10, 100);
+
+        assertEquals(10, replayer.pump(0));
+        assertEquals(0, replayer.pump(10000));                  // Still in flight.
+        assertEquals(1, backend.batches);
+        backend.pending.complete(true);
+        assertEquals(10, replayer.pump(10000));
+        log.close();                                            // Restart with the second batch unacked.
+
+        log = new TelemetryLog(dir, SEGMENT, 10 * SEGMENT);
+        replayer = new LogReplayer(log, backend, 10, 100);
+        backend.deferred = false;
+        assertEquals(10, replayer.pump(0));
+        assertEquals(11, (long) backend.seqs.get(20));          // Unacked batch is sent again.
+        log.close();
+    }
+
+    private static long usage(File dir) {
+        long bytes = 0;
+        for (File file : dir.listFiles()) {
+            if (!file.getName().equals("cursor")) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,76 @@
+package pdx.raspberry.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the time series store.
+ */
+public class TimeSeriesStoreTest {
+
+    private static final int[] VALUES = new int[TimeSeriesStore.CHANNELS];
+
+    private static void append(TimeSeriesStore store, long time, int value) {
+        for (int c = 0; c < TimeSeriesStore.CHANNELS; c++) {
+            VALUES[c] = value + c;
+        }
+        store.append(time, VALUES);
+    }
+
+    @Test
+    public void rawQuery_returnsRange() {
+        TimeSeriesStore store = new TimeSeriesStore(100, 10, 10);
+        for (int i = 0; i < 50; i++) {
+            append(store, i * 10, i);
+        }
+
+        long[] times = new long[100];
+        int[] values = new int[100];
+        int n = store.query(TimeSeriesStore.RAW, TimeSeriesStore.ADC4, 100, 200, times, null, null, values);
+
+        assertEquals(10, n);
+        assertEquals(100, times[0]);
+        assertEquals(10 + TimeSeriesStore.ADC4, values[0]);
+        assertEquals(190, times[9]);
+    }
+
+    @Test
+    public void raw_dropsOldestWhenFull() {
+        TimeSeriesStore store = new TimeSeriesStore(10, 10, 10);
+        for (int i = 0; i < 25; i++) {
+            append(store, i, i);
+        }
+
+        assertEquals(10, store.size(TimeSeriesStore.RAW));
+        assertEquals(15, store.oldest(TimeSeriesStore.RAW));
+    }
+
+    @Test
+    public void secondRollup_hasMinMaxAvg() {
+        TimeSeriesStore store = new TimeSeriesStore(1000, 10, 10);
+        for (int i = 0; i < 100; i++) {
+            append(store, i * 10, i);       // 0 to 99 in the first second.
+        }
+        append(store, 1000, 0);             // Closes the first bucket.
+
+        long[] times = new long[4];
+        int[] mins = new int[4];
+        int[] maxs = new int[4];
+        int[] avgs = new int[4];
+        int n = store.query(TimeSeriesStore.SECOND, TimeSeriesStore.ADA5, 0, Long.MAX_VALUE, times, mins, maxs, avgs);
+
+        assertEquals(1, n);
+        assertEquals(0, times[0]);
+        assertEquals(0, mins[0]);
+        assertEquals(99, maxs[0]);
+        assertEquals(49, avgs[0]);
+    }
+
+    @Test
+    public void forRate_fitsDayAt100HzInFewMegabytes() {
+        TimeSeriesStore store = TimeSeriesStore.forRate(100);
+
+        assertTrue(store.footprintBytes() < 4L * 1024 * 1024);
+    }
+}
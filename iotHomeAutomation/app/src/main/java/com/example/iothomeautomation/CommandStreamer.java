@@ -0,0 +1,116 @@
+/**
+ * CommandStreamer.java
+ *
+ * Name: Andrew Capatina / Ryan Bornhorst
+ *
+ * Description:
+ *      This file contains the pacing for commands sent while
+ *      a seekbar is being dragged. Requests made between two
+ *      sends are coalesced into one, sends are spaced by a
+ *      minimum interval and only a few writes may be waiting
+ *      on the network, so a slow link never builds a backlog.
+ *
+ */
+
+package com.example.iothomeautomation;
+
+/** Class
+ *
+ *  Description:
+ *      Decides when the newest commands are sent. The caller
+ *      keeps the values, this class only tracks timing. Only
+ *      used from the main thread.
+ *
+ */
+public class CommandStreamer {
+
+    public static final long SEND_NOW = 0;      // Results of next().
+    public static final long IDLE = -1;         // Nothing to send, or waiting on the network.
+
+    private final long mIntervalMs;     // Minimum time between sends.
+    private final int mMaxInFlight;     // Writes allowed without a completion.
+
+    private boolean mPending = false;   // Values changed since the last send.
+    private int mInFlight = 0;          // Writes not yet completed.
+    private long mLastSendMs;           // Time of the last send.
+    private boolean mSentOnce = false;
+
+    private long mRequests = 0;         // Counters.
+    private long mSends = 0;
+
+    public CommandStreamer(int rateHz, int maxInFlight) {
+        if (rateHz <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("Rate and in flight limit must be positive");
+        }
+        mIntervalMs = 1000 / rateHz;
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     *  Description:
+     *      Marks the commands as changed.
+     */
+    public void request() {
+        mPending = true;
+        mRequests++;
+    }
+
+    /**
+     *  Description:
+     *      Checks whether the commands can be sent now. A
+     *      SEND_NOW result takes a network slot, so the caller
+     *      has to send and call complete() when the write ends.
+     *
+     * @param nowMs Current time in milliseconds.
+     * @return  SEND_NOW, IDLE, or milliseconds to wait.
+     */
+    public long next(long nowMs) {
+        if (!mPending || mInFlight >= mMaxInFlight) {
+            return IDLE;        // complete() calls back in when a slot frees up.
+        }
+        long wait = mSentOnce ? mLastSendMs + mIntervalMs - nowMs : 0;
+        if (wait > 0) {
+            return wait;
+        }
+        mPending = false;
+        mInFlight++;
+        mLastSendMs = nowMs;
+        mSentOnce = true;
+        mSends++;
+        return SEND_NOW;
+    }
+
+    /**
+     *  Description:
+     *      Drops a request not yet sent, when the commands it was
+     *      for no longer apply. Writes in flight still complete.
+     */
+    public void cancel() {
+        if (mPending) {
+            mPending = false;
+            mRequests--;        // Neither sent nor coalesced.
+        }
+    }
+
+    /**
+     *  Description:
+     *      Frees the network slot of a finished write.
+     */
+    public void complete() {
+        if (mInFlight > 0) {
+            mInFlight--;
+        }
+    }
+
+    public boolean isPending() {
+        return mPending;
+    }
+
+    public int getInFlight() {
+        return mInFlight;
+    }
+
+    public long getCoalesced() {
+        return mRequests - mSends;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * HistoryChartView.java
+ *
+ * Name: Andrew Capatina / Ryan Bornhorst
+ *
+ * Description:
+ *      This file contains the history chart of one channel.
+ *      It draws the min/max band of the rollup buckets and
+ *      their average as a line, both thinned to the width
+ *      of the view so drawing doesn't depend on the span.
+ *
+ */
+
+package com.example.iothomeautomation;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import pdx.raspberry.core.ChartDecimator;
+
+/** Class
+ *
+ *  Description:
+ *      Holds the buckets downloaded for the chart and their
+ *      thinned copies. Only touched from the main thread.
+ *
+ */
+public class HistoryChartView extends View {
+
+    private static final int PIXELS_PER_POINT = 2;      // Thinned to one point per this many pixels.
+
+    private final Paint mBandPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path mPath = new Path();
+
+    private final long[] mTimes = new long[ChartDecimator.MAX_POINTS];     // Buckets as downloaded.
+    private final int[] mMins = new int[ChartDecimator.MAX_POINTS];
+    private final int[] mMaxs = new int[ChartDecimator.MAX_POINTS];
+    private final int[] mAvgs = new int[ChartDecimator.MAX_POINTS];
+    private int mCount = 0;
+    private long mFrom = 0;         // Time span shown.
+    private long mTo = 1;
+
+    private final long[] mBandTimes = new long[ChartDecimator.MAX_POINTS];   // Thinned to the width.
+    private final int[] mBandMins = new int[ChartDecimator.MAX_POINTS];
+    private final int[] mBandMaxs = new int[ChartDecimator.MAX_POINTS];
+    private final long[] mLineTimes = new long[ChartDecimator.MAX_POINTS];
+    private final int[] mLineValues = new int[ChartDecimator.MAX_POINTS];
+    private int mBandCount = 0;
+    private int mLineCount = 0;
+    private int mLow = 0;           // Value range of the buckets.
+    private int mHigh = 1;
+
+    public HistoryChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mBandPaint.setColor(Color.LTGRAY);
+        mBandPaint.setStrokeWidth(PIXELS_PER_POINT);
+        mLinePaint.setColor(Color.BLACK);
+        mLinePaint.setStrokeWidth(3);
+        mLinePaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     *  Description:
+     *      Returns the arrays the buckets are downloaded into,
+     *      MAX_POINTS long. Call setData once they are filled.
+     *
+     */
+    public long[] getTimes() {
+        return mTimes;
+    }
+
+    public int[] getMins() {
+        return mMins;
+    }
+
+    public int[] getMaxs() {
+        return mMaxs;
+    }
+
+    public int[] getAvgs() {
+        return mAvgs;
+    }
+
+    /**
+     *  Description:
+     *      Shows the buckets filled into the arrays.
+     *
+     * @param from  Start of the span shown, in milliseconds.
+     * @param to    End of the span shown.
+     * @param count Buckets in the arrays, oldest first.
+     */
+    public void setData(long from, long to, int count) {
+        mFrom = from;
+        mTo = Math.max(to, from + 1);
+        mCount = count;
+        mLow = Integer.MAX_VALUE;
+        mHigh = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            mLow = Math.min(mLow, mMins[i]);
+            mHigh = Math.max(mHigh, mMaxs[i]);
+        }
+        if (mHigh <= mLow) {
+            mHigh = mLow + 1;   // Flat or empty line.
+        }
+        thin();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        thin();
+    }
+
+    /** Thins the buckets to the width, so onDraw only draws what shows. */
+    private void thin() {
+        int points = Math.max(getWidth() / PIXELS_PER_POINT, 3);
+        mBandCount = ChartDecimator.minMax(mTimes, mMins, mMaxs, mCount, points, mBandTimes, mBandMins, mBandMaxs);
+        mLineCount = ChartDecimator.lttb(mTimes, mAvgs, mCount, points, mLineTimes, mLineValues);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        for (int i = 0; i < mBandCount; i++) {
+            float x = x(mBandTimes[i]);
+            canvas.drawLine(x, y(mBandMaxs[i]), x, y(mBandMins[i]), mBandPaint);
+        }
+        if (mLineCount < 2) {
+            return;
+        }
+        mPath.reset();
+        mPath.moveTo(x(mLineTimes[0]), y(mLineValues[0]));
+        for (int i = 1; i < mLineCount; i++) {
+            mPath.lineTo(x(mLineTimes[i]), y(mLineValues[i]));
+        }
+        canvas.drawPath(mPath, mLinePaint);
+    }
+
+    private float x(long time) {
+        return (float) ((double) (time - mFrom) / (mTo - mFrom) * getWidth());
+    }
+
+    private float y(int value) {
+        return getHeight() - (float) (value - mLow) / (mHigh - mLow) * getHeight();
+    }
+}
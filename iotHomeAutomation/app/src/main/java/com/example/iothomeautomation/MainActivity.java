@@ -9,18 +9,23 @@
  *      This activity is specifically used for android phones.
  *      Activity will read Firebase and update Firebase data
  *      based on user selection using UI. User can modify
- *      4 PWM channels and DAC output.
+ *      4 PWM channels and DAC output, and chart the history
+ *      of a reading from the rollups the board publishes.
  *
  */
 
 package com.example.iothomeautomation;
 
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.design.widget.BottomNavigationView;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
@@ -34,8 +39,18 @@ import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 
-import java.text.DateFormat;
-import java.util.Date;
+import pdx.raspberry.core.ChartDecimator;
+import pdx.raspberry.core.DevicePaths;
+import pdx.raspberry.core.FirebaseData;
+import pdx.raspberry.core.LanClient;
+import pdx.raspberry.core.LanProtocol;
+import pdx.raspberry.core.LatencyTracer;
+import pdx.raspberry.core.RollupPublisher;
+import pdx.raspberry.core.TelemetryCodec;
+import pdx.raspberry.core.TelemetryDelta;
+
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.Map;
 
 /** Class
@@ -49,10 +64,30 @@ import java.util.Map;
  */
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = "MainActivity";
     private static final int DAC_MIN = 0;           // min/max user input for DAC.
     private static final int DAC_MAX = 31;
+    private static final int SETPOINT_MIN_C = 15;   // Fan setpoint seekbar starts here, in Celsius.
+    private static final int COMMAND_RATE_HZ = 20;  // Most commands sent per second while dragging.
+    private static final int COMMAND_IN_FLIGHT = 2; // Most command writes waiting on the network.
+    private static final String PREFS = "iot_home";         // Remembers which board is shown.
+    private static final String PREF_DEVICE = "device_id";
+    private static final int[] SHOWN_CHANNELS = {   // Channels with a view, the only ones subscribed to.
+            TelemetryDelta.ADA5IN, TelemetryDelta.ADC3IN, TelemetryDelta.ADC4IN,
+            TelemetryDelta.ADC5IN, TelemetryDelta.PWM3 };
+    private static final String[] TRACE_FIELDS = {      // Latency tracing fields of the telemetry.
+            TelemetryCodec.TRACE, TelemetryCodec.AGE, TelemetryCodec.TIMESTAMP };
+    private static final long[] CHART_SPANS_MS = {      // Spans of the history chart, picked by tapping it.
+            3600000L, 24 * 3600000L, 7 * 24 * 3600000L, 30 * 24 * 3600000L };
+    private static final String[] CHART_SPAN_NAMES = { "1 hour", "1 day", "7 days", "30 days" };
+    private static final int TRACE = 0;     // Indexes in TRACE_FIELDS.
+    private static final int AGE = 1;
+    private static final int TIMESTAMP = 2;
     //private TextView mTextMessage;
     private DatabaseReference mDatabase = null;
+    private DatabaseReference mTelemetry = null;    // Shard of the board on screen.
+    private DatabaseReference mCommands = null;
+    private String mDeviceId = null;                // Board on screen, null until one is found.
 
     /* Initializing TextViews for displaying peripheral data */
     private TextView    mTempTxtVw = null;  // Temperature object.
@@ -64,14 +99,39 @@ public class MainActivity extends AppCompatActivity {
     private SeekBar     mPWM4SeekBar = null;
     private SeekBar     mPWM5SeekBar = null;
     private SeekBar     mPWM6SeekBar = null;
+    private SeekBar     mSetpointSeekBar = null;    // Fan temperature.
 
     private Button      mMinusButton = null;        // Addition and subtract buttons.
     private Button      mPlusButton = null;
+    private HistoryChartView mChart = null;         // History of one channel.
+    private TextView    mChartLabel = null;
 
-    private FirebaseData data;              // Holds current Firebase data.
+    private FirebaseData data;              // Holds the commands sent to the board.
+    private final TelemetryViewModel mModel = new TelemetryViewModel(TelemetryDelta.FIELDS.length);   // Values waiting to be drawn.
+    private final ValueEventListener[] mChannelListeners = new ValueEventListener[SHOWN_CHANNELS.length];
 
     private int mDacCount = 0;      // DAC count, set by using buttons.
 
+    private final Handler mHandler = new Handler();     // Runs delayed command sends.
+    private final CommandStreamer mStreamer = new CommandStreamer(COMMAND_RATE_HZ, COMMAND_IN_FLIGHT);
+
+    private final LatencyTracer mTracer = new LatencyTracer();  // Command and telemetry latencies.
+    private long mPendingUiMs = 0;              // Server time of the oldest input not yet sent.
+    private final long[] mInFlightUiMs = new long[COMMAND_IN_FLIGHT];  // Input times of the writes in flight, oldest first.
+    private int mInFlightHead = 0;
+    private int mInFlightCount = 0;
+    private long mLastSentSeq = 0;              // Newest command sent and its input time, for the ack.
+    private long mLastSentUiMs = 0;
+    private final long[] mTrace = new long[TRACE_FIELDS.length];   // Newest tracing fields of the telemetry.
+    private boolean mTraceFresh = false;        // A new upload arrived since the last frame.
+    private final ValueEventListener[] mTraceListeners = new ValueEventListener[TRACE_FIELDS.length];
+    private LanClient mLan = null;              // Direct path to the board when on the same network.
+    private final int[] mLanChannels = new int[TelemetryDelta.FIELDS.length];
+    private int mChartChannel = TelemetryDelta.ADA5IN;  // Channel and span of the history chart.
+    private int mChartSpan = 1;
+    private int mChartRequest = 0;              // Answers to older requests are dropped.
+    private final int[] mBucket = new int[3];   // Decoded min, max and avg.
+
     /** Method
      *
      *  Description:
@@ -86,7 +146,8 @@ public class MainActivity extends AppCompatActivity {
             switch (item.getItemId()) {
                 case R.id.navigation_home:      // Doesn't do anything for this project.
                     return true;
-                case R.id.navigation_dashboard:
+                case R.id.navigation_dashboard:     // Latency summary for tuning.
+                    Log.i(TAG, "Latency ms:\n" + mTracer.dump(new StringBuilder()));
                    // mTextMessage.setText(R.string.title_dashboard);   // example usage.
                     return true;
                 case R.id.navigation_notifications:
@@ -128,36 +189,67 @@ public class MainActivity extends AppCompatActivity {
         mPWM4SeekBar = findViewById(R.id.seekBar);
         mPWM5SeekBar = findViewById(R.id.seekBar2);
         mPWM6SeekBar = findViewById(R.id.seekBar3);
+        mSetpointSeekBar = findViewById(R.id.seekBar4);
 
         mMinusButton = findViewById(R.id.button);           // Buttons for DAC.
         mPlusButton = findViewById(R.id.button2);
+        mChart = findViewById(R.id.historyChart);           // History chart.
+        mChartLabel = findViewById(R.id.historyLabel);
+
+        // Tapping a reading charts its history, tapping the chart changes the span.
+        mTempTxtVw.setOnClickListener(new ChartClickListener(TelemetryDelta.ADA5IN));
+        mADC3TxtVw.setOnClickListener(new ChartClickListener(TelemetryDelta.ADC3IN));
+        mADC4TxtVw.setOnClickListener(new ChartClickListener(TelemetryDelta.ADC4IN));
+        mADC5TxtVw.setOnClickListener(new ChartClickListener(TelemetryDelta.ADC5IN));
+        mPWM3ProgressBar.setOnClickListener(new ChartClickListener(TelemetryDelta.PWM3));
+        mChart.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mChartSpan = (mChartSpan + 1) % CHART_SPANS_MS.length;
+                loadHistory();
+            }
+        });
 
         mDatabase = FirebaseDatabase.getInstance().getReference();         // Creating fire base object
 
-        // Creating a firebase listener and updating the data class.
-        mDatabase.addValueEventListener( new ValueEventListener() {
+        // Keeps the tracer on the server clock, shared with the board.
+        mDatabase.child(DevicePaths.SERVER_OFFSET).addValueEventListener(new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot dataSnapshot) {
-                data = dataSnapshot.getValue(FirebaseData.class);
-
-                if(data != null) {
-                    mTempTxtVw.setText(String.format(Integer.toString(data.ADA5IN)));   // Updating Analog Digital text views.
-                    mADC3TxtVw.setText(String.format(Integer.toString(data.ADC3IN)));
-                    mADC4TxtVw.setText(String.format(Integer.toString(data.ADC4IN)));
-                    mADC5TxtVw.setText(String.format(Integer.toString(data.ADC5IN)));
-
-                    mPWM3ProgressBar.setProgress(data.PWM3);    // Set the progress bar.
-
+                Double offset = dataSnapshot.getValue(Double.class);
+                if (offset != null) {
+                    mTracer.setServerOffset(offset.longValue());
                 }
             }
 
             @Override
             public void onCancelled(DatabaseError databaseError) {
-                // Getting Post failed, log a message
-                // ...
             }
         });
 
+        String saved = getSharedPreferences(PREFS, MODE_PRIVATE).getString(PREF_DEVICE, null);
+        if (saved != null) {
+            showDevice(saved);
+        } else {
+            // Only the small index is read, never the readings of every board.
+            mDatabase.child(DevicePaths.INDEX).addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    for (DataSnapshot device : dataSnapshot.getChildren()) {
+                        getSharedPreferences(PREFS, MODE_PRIVATE).edit().putString(PREF_DEVICE, device.getKey()).apply();
+                        showDevice(device.getKey());    // First board found is shown.
+                        return;
+                    }
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    // Getting Post failed, log a message
+                    // ...
+                }
+            });
+        }
+
 
         // Listener for minus button.
         mMinusButton.setOnClickListener(new View.OnClickListener() {
@@ -194,6 +286,10 @@ public class MainActivity extends AppCompatActivity {
         mPWM5SeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if(fromUser && data != null) {
+                    data.PWM5 = progress;      // Streamed while dragging.
+                    updateFirebase();
+                }
             }
 
             @Override
@@ -203,7 +299,7 @@ public class MainActivity extends AppCompatActivity {
 
             /**
              *  Description:
-             *      Update Firebase when the user is done making their selection.
+             *      Send the final selection when the user lets go.
              *
              * @param seekBar   Object holding integer for user selection.
              */
@@ -221,6 +317,10 @@ public class MainActivity extends AppCompatActivity {
         mPWM4SeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if(fromUser && data != null) {
+                    data.PWM4 = progress;      // Streamed while dragging.
+                    updateFirebase();
+                }
             }
 
             @Override
@@ -230,7 +330,7 @@ public class MainActivity extends AppCompatActivity {
 
             /**
              *  Description:
-             *      Update Firebase when the user is done making their selection.
+             *      Send the final selection when the user lets go.
              *
              * @param seekBar   Object holding integer for user selection.
              */
@@ -249,7 +349,10 @@ public class MainActivity extends AppCompatActivity {
         mPWM6SeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-
+                if(fromUser && data != null) {
+                    data.PWM6 = progress;      // Streamed while dragging.
+                    updateFirebase();
+                }
             }
 
             @Override
@@ -259,7 +362,7 @@ public class MainActivity extends AppCompatActivity {
 
             /**
              *  Description:
-             *      Update Firebase when the user is done making their selection.
+             *      Send the final selection when the user lets go.
              *
              * @param seekBar   Object holding integer for user selection.
              */
@@ -273,25 +376,421 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        // Fan setpoint listener, sent when the user lets go.
+        mSetpointSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                if(data != null) {
+                    data.SETPOINT = (SETPOINT_MIN_C + seekBar.getProgress()) * 10;    // Tenths of a degree.
+                }
+                updateFirebase();
+            }
+        });
+
     }
 
     /**
      *  Description:
-     *      Method that updates firebase with
-     *      user selections.
+     *      Subscribes to the shown channels of one board. Nothing
+     *      is downloaded for the other channels or boards.
+     *
+     * @param deviceId  Id of the board to show.
+     */
+    private void showDevice(String deviceId) {
+
+        if (mTelemetry != null) {
+            for (int i = 0; i < SHOWN_CHANNELS.length; i++) {   // Stop the previous board.
+                mTelemetry.child(TelemetryDelta.FIELDS[SHOWN_CHANNELS[i]]).removeEventListener(mChannelListeners[i]);
+            }
+            for (int i = 0; i < TRACE_FIELDS.length; i++) {
+                mTelemetry.child(TRACE_FIELDS[i]).removeEventListener(mTraceListeners[i]);
+            }
+            mDatabase.child(DevicePaths.ack(mDeviceId)).removeEventListener(mAckListener);
+        }
+        if (mLan != null) {
+            mLan.stop();
+            mLan = null;
+        }
+        mDeviceId = deviceId;
+        mTelemetry = mDatabase.child(DevicePaths.telemetry(deviceId));
+        mCommands = mDatabase.child(DevicePaths.commands(deviceId));
+        mHandler.removeCallbacks(mSendRunnable);    // A drag on the previous board is dropped, not sent here.
+        mStreamer.cancel();
+        mPendingUiMs = 0;
+        data = null;
+        for (int i = 0; i < SHOWN_CHANNELS.length; i++) {
+            if (mChannelListeners[i] == null) {
+                mChannelListeners[i] = new ChannelListener(SHOWN_CHANNELS[i]);
+            }
+            mTelemetry.child(TelemetryDelta.FIELDS[SHOWN_CHANNELS[i]]).addValueEventListener(mChannelListeners[i]);
+        }
+        for (int i = 0; i < TRACE_FIELDS.length; i++) {
+            if (mTraceListeners[i] == null) {
+                mTraceListeners[i] = new TraceListener(i);
+            }
+            mTelemetry.child(TRACE_FIELDS[i]).addValueEventListener(mTraceListeners[i]);
+        }
+        mDatabase.child(DevicePaths.ack(deviceId)).addValueEventListener(mAckListener);
+        loadHistory();
+
+        // Looks for the board on the local network once its key is read, the cloud stays the fallback.
+        final String lanDevice = deviceId;
+        mDatabase.child(DevicePaths.lanKey(deviceId)).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                byte[] key = LanProtocol.keyFromHex(dataSnapshot.getValue(String.class));
+                if (key == null || !lanDevice.equals(mDeviceId) || mLan != null) {
+                    return;     // No key published yet, or another board is shown.
+                }
+                try {
+                    mLan = new LanClient(lanDevice, key, InetAddress.getByName("255.255.255.255"), LanProtocol.PORT);
+                    mLan.setListener(mLanListener);
+                    mLan.start("lan");
+                } catch (IOException e) {
+                    Log.e(TAG, "LAN control unavailable", e);
+                    mLan = null;
+                }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+            }
+        });
+
+        // Start from the last commands so one seekbar doesn't reset the others.
+        mCommands.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                FirebaseData commands = dataSnapshot.getValue(FirebaseData.class);
+                data = commands != null ? commands : new FirebaseData();
+                if (data.SETPOINT > 0) {
+                    mSetpointSeekBar.setProgress(data.SETPOINT / 10 - SETPOINT_MIN_C);
+                }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                // Getting Post failed, log a message
+                // ...
+            }
+        });
+    }
+
+    /** Class
+     *
+     *  Description:
+     *      Listener for one telemetry channel. Stores the value
+     *      and asks for a frame, the views are drawn in doFrame.
+     *
+     */
+    private class ChannelListener implements ValueEventListener {
+
+        private final int mChannel;     // Index in TelemetryDelta.FIELDS.
+
+        ChannelListener(int channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            if (mLan != null && mLan.isConnected()) {
+                return;     // The LAN is newer, older cloud values would flicker.
+            }
+            Long value = dataSnapshot.getValue(Long.class);
+            if (value != null && mModel.set(mChannel, value.intValue())) {
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);  // At most one draw per frame.
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            // Getting Post failed, log a message
+            // ...
+        }
+    }
+
+    /** Class
+     *
+     *  Description:
+     *      Charts the history of a channel when its view is tapped.
+     *
+     */
+    private class ChartClickListener implements View.OnClickListener {
+
+        private final int mChannel;     // Index in TelemetryDelta.FIELDS.
+
+        ChartClickListener(int channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public void onClick(View v) {
+            mChartChannel = mChannel;
+            loadHistory();
+        }
+    }
+
+    /**
+     *  Description:
+     *      Downloads the history of the charted channel at the
+     *      resolution that fits the chart. At most MAX_POINTS
+     *      buckets are asked for, whatever the span.
+     *
+     */
+    private void loadHistory() {
+        if (mDeviceId == null) {
+            return;
+        }
+        long span = CHART_SPANS_MS[mChartSpan];
+        final long to = System.currentTimeMillis();     // Buckets are stamped with the Pi's wall clock.
+        final long from = to - span;
+        final int resolution = ChartDecimator.pickResolution(span,
+                mChart.getWidth() > 0 ? mChart.getWidth() : ChartDecimator.MAX_POINTS);
+        final int request = ++mChartRequest;
+        String field = TelemetryDelta.FIELDS[mChartChannel];
+        mChartLabel.setText(field + ", " + CHART_SPAN_NAMES[mChartSpan]);
+
+        mDatabase.child(DevicePaths.rollups(mDeviceId, RollupPublisher.RESOLUTIONS[resolution], field))
+                .orderByKey()
+                .startAt(RollupPublisher.key(resolution, from))
+                .endAt(RollupPublisher.key(resolution, to))
+                .limitToLast(ChartDecimator.MAX_POINTS)
+                .addListenerForSingleValueEvent(new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot dataSnapshot) {
+                        if (request != mChartRequest) {
+                            return;     // Channel or span changed meanwhile.
+                        }
+                        int n = 0;
+                        for (DataSnapshot bucket : dataSnapshot.getChildren()) {
+                            if (n == ChartDecimator.MAX_POINTS) {
+                                break;
+                            }
+                            if (!RollupPublisher.decode(bucket.getValue(String.class), mBucket)) {
+                                continue;
+                            }
+                            try {
+                                mChart.getTimes()[n] = Long.parseLong(bucket.getKey());
+                            } catch (NumberFormatException e) {
+                                continue;
+                            }
+                            mChart.getMins()[n] = mBucket[0];
+                            mChart.getMaxs()[n] = mBucket[1];
+                            mChart.getAvgs()[n] = mBucket[2];
+                            n++;
+                        }
+                        mChart.setData(from, to, n);
+                    }
+
+                    @Override
+                    public void onCancelled(DatabaseError databaseError) {
+                    }
+                });
+    }
+
+    /** Class
+     *
+     *  Description:
+     *      Listener for one latency tracing field. Doesn't ask for
+     *      a frame, the time is taken when a value is drawn.
+     *
+     */
+    private class TraceListener implements ValueEventListener {
+
+        private final int mField;       // Index in TRACE_FIELDS.
+
+        TraceListener(int field) {
+            mField = field;
+        }
+
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            Long value = dataSnapshot.getValue(Long.class);
+            if (value != null) {
+                mTrace[mField] = value;
+                mTraceFresh |= mField == TIMESTAMP;
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+        }
+    }
+
+    // Board acknowledgements through the cloud.
+    private final ValueEventListener mAckListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            Long ack = dataSnapshot.getValue(Long.class);
+            if (ack != null) {
+                onAck(ack);
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+        }
+    };
+
+    /**
+     *  Description:
+     *      Times the round trip of the newest command when the
+     *      board acknowledges it, by whichever path comes first.
+     *
+     * @param ack   SEQ of the command on the hardware.
+     */
+    private void onAck(long ack) {
+        if (ack == mLastSentSeq && mLastSentUiMs != 0) {
+            mTracer.record(LatencyTracer.UI_TO_ACK, mTracer.serverNow() - mLastSentUiMs);
+            mLastSentUiMs = 0;      // Only timed once.
+        }
+    }
+
+    // Called on the LAN receive thread, the values are read on the main thread.
+    private final LanClient.Listener mLanListener = new LanClient.Listener() {
+        @Override
+        public void onReceive() {
+            mHandler.post(mLanRunnable);
+        }
+    };
+
+    // Shows telemetry and acknowledgements that came over the LAN.
+    private final Runnable mLanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            LanClient lan = mLan;
+            if (lan == null) {
+                return;     // Board changed meanwhile.
+            }
+            if (lan.pollTelemetry(mLanChannels)) {
+                for (int channel : SHOWN_CHANNELS) {
+                    if (mModel.set(channel, mLanChannels[channel])) {
+                        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+                    }
+                }
+            }
+            onAck(lan.getAck());
+        }
+    };
+
+    // Draws the channels that changed since the last frame.
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mModel.render(mRenderer) > 0 && mTraceFresh) {
+                mTraceFresh = false;
+                long uploadToRender = mTracer.serverNow() - mTrace[TIMESTAMP];
+                mTracer.record(LatencyTracer.UPLOAD_TO_RENDER, uploadToRender);
+                mTracer.record(LatencyTracer.READ_TO_RENDER, mTrace[AGE] + uploadToRender);   // Leaves out the Pi's uplink.
+            }
+        }
+    };
+
+    private final TelemetryViewModel.Renderer mRenderer = new TelemetryViewModel.Renderer() {
+        @Override
+        public void render(int channel, int value) {
+            switch (channel) {
+                case TelemetryDelta.ADA5IN:     // Updating Analog Digital text views.
+                    mTempTxtVw.setText(Integer.toString(value));
+                    break;
+                case TelemetryDelta.ADC3IN:
+                    mADC3TxtVw.setText(Integer.toString(value));
+                    break;
+                case TelemetryDelta.ADC4IN:
+                    mADC4TxtVw.setText(Integer.toString(value));
+                    break;
+                case TelemetryDelta.ADC5IN:
+                    mADC5TxtVw.setText(Integer.toString(value));
+                    break;
+                case TelemetryDelta.PWM3:
+                    mPWM3ProgressBar.setProgress(value);    // Set the progress bar.
+                    break;
+            }
+        }
+    };
+
+    /**
+     *  Description:
+     *      Method that sends the user selections to the board
+     *      on screen. Calls made faster than COMMAND_RATE_HZ
+     *      are merged, the newest values are always sent.
      *
      */
     private void updateFirebase() {
 
-        if(data != null) {
-            // Get current time: https://stackoverflow.com/questions/36301543/get-todays-date-and-time-as-string#36301666
-            data.TIMESTAMP = DateFormat.getDateTimeInstance().format(new Date());
-            Map<String, Object> dbaseValues = data.toMap();  // Create map object containing most up to date user selections.
-            // Update Firebase.
-            mDatabase.updateChildren(dbaseValues);
+        if(data != null && mCommands != null) {
+            if (mPendingUiMs == 0) {
+                mPendingUiMs = mTracer.serverNow();     // Oldest input merged into the next send.
+            }
+            mStreamer.request();
+            mSendRunnable.run();
+        }
+    }
+
+    // Sends the commands when the streamer allows it.
+    private final Runnable mSendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (data == null) {
+                return;     // Board switched, its commands are still loading.
+            }
+            long wait = mStreamer.next(SystemClock.uptimeMillis());
+            if (wait == CommandStreamer.SEND_NOW) {
+                data.SEQ++;     // The board ignores anything older than what it has applied.
+                data.UI_MS = mPendingUiMs;
+                mPendingUiMs = 0;
+                mInFlightUiMs[(mInFlightHead + mInFlightCount) % COMMAND_IN_FLIGHT] = data.UI_MS;
+                mInFlightCount++;
+                mLastSentSeq = data.SEQ;
+                mLastSentUiMs = data.UI_MS;
+                if (mLan != null) {
+                    mLan.sendCommand(data);     // Fast path, the board drops whichever copy is second.
+                }
+                Map<String, Object> dbaseValues = data.toCommandMap();  // Create map object containing most up to date user selections. Server sets the time.
+                // Update Firebase.
+                mCommands.updateChildren(dbaseValues, mSendComplete);
+            } else if (wait > 0) {
+                mHandler.removeCallbacks(this);     // Only one delayed send at a time.
+                mHandler.postDelayed(this, wait);
+            }
+        }
+    };
+
+    // Frees the network slot and sends anything that changed meanwhile.
+    private final DatabaseReference.CompletionListener mSendComplete = new DatabaseReference.CompletionListener() {
+        @Override
+        public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+            mStreamer.complete();
+            if (mInFlightCount > 0) {       // Writes complete in the order they were made.
+                mTracer.record(LatencyTracer.UI_TO_CLOUD, mTracer.serverNow() - mInFlightUiMs[mInFlightHead]);
+                mInFlightHead = (mInFlightHead + 1) % COMMAND_IN_FLIGHT;
+                mInFlightCount--;
+            }
+            mSendRunnable.run();
+        }
+    };
 
+    /**
+     *  Cleanup function for class.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mHandler.removeCallbacks(mSendRunnable);
+        mHandler.removeCallbacks(mLanRunnable);
+        if (mLan != null) {
+            mLan.stop();    // Close the LAN socket.
+            mLan = null;
         }
     }
 
 }
-
@@ -0,0 +1,92 @@
+/**
+ * TelemetryViewModel.java
+ *
+ * Name: Andrew Capatina / Ryan Bornhorst
+ *
+ * Description:
+ *      This file contains the values shown on the dashboard.
+ *      Channel listeners store the newest value of each
+ *      channel here and the frame callback draws only the
+ *      channels that differ from what is on screen.
+ *
+ */
+
+package com.example.iothomeautomation;
+
+/** Class
+ *
+ *  Description:
+ *      Keeps the newest and the rendered value of every
+ *      channel. Only touched from the main thread.
+ *
+ */
+public class TelemetryViewModel {
+
+    /** Interface
+     *
+     *  Description:
+     *      Draws one channel on screen.
+     *
+     */
+    public interface Renderer {
+        void render(int channel, int value);
+    }
+
+    private final int[] mValues;        // Newest value of each channel.
+    private final int[] mRendered;      // Value on screen for each channel.
+    private final boolean[] mReceived;  // False until a channel has a value.
+    private final boolean[] mShown;     // False until a channel is drawn once.
+    private boolean mFramePending = false;  // A frame is already asked for.
+
+    public TelemetryViewModel(int channels) {
+        mValues = new int[channels];
+        mRendered = new int[channels];
+        mReceived = new boolean[channels];
+        mShown = new boolean[channels];
+    }
+
+    /**
+     *  Description:
+     *      Stores a new value for a channel.
+     *
+     * @param channel   Index of the channel.
+     * @param value     New value.
+     * @return  True if the caller needs to ask for a frame.
+     */
+    public boolean set(int channel, int value) {
+        mValues[channel] = value;
+        mReceived[channel] = true;
+        if (mFramePending || (mShown[channel] && mRendered[channel] == value)) {
+            return false;       // Already drawn or a frame is coming.
+        }
+        mFramePending = true;
+        return true;
+    }
+
+    /**
+     *  Description:
+     *      Draws every channel that changed since the last
+     *      frame. Called once per frame.
+     *
+     * @param renderer  Draws the views.
+     * @return  Number of channels drawn.
+     */
+    public int render(Renderer renderer) {
+        mFramePending = false;
+        int drawn = 0;
+        for (int i = 0; i < mValues.length; i++) {
+            if (!mReceived[i] || (mShown[i] && mRendered[i] == mValues[i])) {
+                continue;       // Nothing new for this channel.
+            }
+            renderer.render(i, mValues[i]);
+            mRendered[i] = mValues[i];
+            mShown[i] = true;
+            drawn++;
+        }
+        return drawn;
+    }
+
+    public int get(int channel) {
+        return mValues[channel];
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.iothomeautomation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the seekbar command pacing.
+ */
+public class CommandStreamerTest {
+
+    @Test
+    public void next_sendsFirstRequestImmediately() {
+        CommandStreamer streamer = new CommandStreamer(20, 2);
+
+        assertEquals(CommandStreamer.IDLE, streamer.next(0));
+        streamer.request();
+        assertEquals(CommandStreamer.SEND_NOW, streamer.next(0));
+        assertEquals(CommandStreamer.IDLE, streamer.next(1));
+    }
+
+    @Test
+    public void next_coalescesRequestsWithinInterval() {
+        CommandStreamer streamer = new CommandStreamer(20, 4);
+        streamer.request();
+        streamer.next(1000);
+
+        for (int i = 0; i < 10; i++) {
+            streamer.request();             // A drag fires many progress events.
+        }
+        assertEquals(30, streamer.next(1020));
+        assertEquals(CommandStreamer.SEND_NOW, streamer.next(1050));
+        assertEquals(9, streamer.getCoalesced());
+    }
+
+    @Test
+    public void next_waitsForCompletionWhenWindowFull() {
+        CommandStreamer streamer = new CommandStreamer(20, 1);
+        streamer.request();
+        streamer.next(0);
+
+        streamer.request();
+        assertEquals(CommandStreamer.IDLE, streamer.next(500));   // Slow network.
+        assertTrue(streamer.isPending());
+
+        streamer.complete();
+        assertEquals(CommandStreamer.SEND_NOW, streamer.next(600));
+        assertEquals(1, streamer.getInFlight());
+    }
+
+    @Test
+    public void cancel_dropsTheRequestButKeepsTheSlots() {
+        CommandStreamer streamer = new CommandStreamer(20, 1);
+        streamer.request();
+        streamer.next(0);
+        streamer.request();
+
+        streamer.cancel();
+        streamer.complete();
+
+        assertFalse(streamer.isPending());
+        assertEquals(CommandStreamer.IDLE, streamer.next(100));
+        assertEquals(0, streamer.getInFlight());
+        assertEquals(0, streamer.getCoalesced());
+        streamer.request();
+        assertEquals(CommandStreamer.SEND_NOW, streamer.next(100));
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.iothomeautomation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the dashboard view model.
+ */
+public class TelemetryViewModelTest {
+
+    private final int[] mDrawn = new int[3];
+    private final TelemetryViewModel.Renderer mRenderer = new TelemetryViewModel.Renderer() {
+        @Override
+        public void render(int channel, int value) {
+            mDrawn[channel]++;
+        }
+    };
+
+    @Test
+    public void set_asksForOneFramePerBatch() {
+        TelemetryViewModel model = new TelemetryViewModel(3);
+
+        assertTrue(model.set(0, 10));
+        assertFalse(model.set(1, 20));
+        assertFalse(model.set(0, 11));
+        assertEquals(2, model.render(mRenderer));
+        assertEquals(11, model.get(0));
+        assertEquals(0, mDrawn[2]);     // Never received.
+    }
+
+    @Test
+    public void render_skipsUnchangedChannels() {
+        TelemetryViewModel model = new TelemetryViewModel(3);
+        model.set(0, 10);
+        model.render(mRenderer);
+
+        assertFalse(model.set(0, 10));  // Same as on screen, no frame.
+        assertTrue(model.set(1, 5));
+        assertEquals(1, model.render(mRenderer));
+        assertEquals(1, mDrawn[0]);
+    }
+
+    @Test
+    public void render_skipsValueThatReturnedBeforeFrame() {
+        TelemetryViewModel model = new TelemetryViewModel(3);
+        model.set(0, 10);
+        model.render(mRenderer);
+
+        model.set(0, 12);
+        model.set(0, 10);
+        assertEquals(0, model.render(mRenderer));
+    }
+}